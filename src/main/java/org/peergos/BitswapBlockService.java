@@ -1,17 +1,38 @@
 package org.peergos;
 
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
 import io.libp2p.core.*;
+import io.prometheus.client.*;
 import org.peergos.protocol.bitswap.*;
 import org.peergos.protocol.dht.*;
+import org.peergos.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class BitswapBlockService implements BlockService {
 
+    private static final Counter coalescedRequests = Counter.build()
+            .name("bitswap_coalesced_requests_total")
+            .help("Number of block requests which joined an identical request already in flight")
+            .register();
+    // the blocks of a request usually share providers, so only look up the first few rather than flood the dht
+    private static final int MAX_PROVIDER_LOOKUPS = 8;
+    // providers are found on network threads, and starting a session with one dials it, which mustn't block them
+    private static final ExecutorService SESSION_STARTS = Executors.newFixedThreadPool(8, r -> {
+        Thread t = new Thread(r, "Bitswap session start");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final Host us;
     private final Bitswap bitswap;
     private final Kademlia dht;
+    // the single in flight fetch for each want, which any concurrent requests for the same want wait on
+    private final ConcurrentHashMap<Want, CompletableFuture<HashedBlock>> inFlight = new ConcurrentHashMap<>();
 
     public BitswapBlockService(Host us, Bitswap bitswap, Kademlia dht) {
         this.us = us;
@@ -21,20 +42,144 @@ public class BitswapBlockService implements BlockService {
 
     @Override
     public List<HashedBlock> get(List<Want> hashes, Set<PeerId> peers) {
-        if (peers.isEmpty()) {
-            // Optimistic bitswap has been removed purposely.
-            List<PeerAddresses> providers = dht.findProviders(hashes.get(0).cid, us, 5).join();
-            peers = providers.stream()
-                    .map(p -> PeerId.fromBase58(p.peerId.toBase58()))
-                    .collect(Collectors.toSet());
-            return bitswap.get(hashes, us, peers)
-                    .stream()
-                    .map(f -> f.join())
-                    .collect(Collectors.toList());
+        return getAsync(hashes, peers).stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<CompletableFuture<HashedBlock>> getAsync(List<Want> hashes, Set<PeerId> peers) {
+        List<Want> wants = hashes.stream()
+                .filter(w -> w.cid.getType() != Multihash.Type.id)
+                .collect(Collectors.toList());
+        List<CompletableFuture<HashedBlock>> results = new ArrayList<>();
+        Map<Want, CompletableFuture<HashedBlock>> ours = new LinkedHashMap<>();
+        for (Want w : wants) {
+            CompletableFuture<HashedBlock> fresh = new CompletableFuture<>();
+            CompletableFuture<HashedBlock> existing = inFlight.putIfAbsent(w, fresh);
+            if (existing != null) {
+                coalescedRequests.inc();
+                results.add(existing);
+            } else {
+                ours.put(w, fresh);
+                results.add(fresh);
+            }
         }
-        return bitswap.get(hashes, us, peers)
-                .stream()
-                .map(f -> f.join())
+        if (! ours.isEmpty())
+            fetch(new ArrayList<>(ours.keySet()), peers, ours);
+        return results;
+    }
+
+    /**
+     * Look up providers for the first few requested cids concurrently, and fetch from the union of them.
+     */
+    @Override
+    public Set<PeerId> findProviders(Want w) {
+        return findProviders(List.of(w));
+    }
+
+    private Set<PeerId> findProviders(List<Want> wants) {
+        // Optimistic bitswap has been removed purposely.
+        List<CompletableFuture<List<PeerAddresses>>> lookups = wants.stream()
+                .map(w -> w.cid)
+                .distinct()
+                .limit(MAX_PROVIDER_LOOKUPS)
+                .map(c -> dht.findProviders(c, us, 5)
+                        .exceptionally(t -> Collections.emptyList()))
                 .collect(Collectors.toList());
+        return lookups.stream()
+                .flatMap(f -> f.join().stream())
+                .map(p -> PeerId.fromBase58(p.peerId.toBase58()))
+                .collect(Collectors.toSet());
+    }
+
+    private void fetch(List<Want> wants, Set<PeerId> peers, Map<Want, CompletableFuture<HashedBlock>> ours) {
+        if (! peers.isEmpty()) {
+            start(new BitswapSession(bitswap, us, peers), wants, ours, c -> {});
+            return;
+        }
+        // the (possibly cached) providers didn't send it, so walk the dht again next time, including if the lookup
+        // caches them after the fetch has already failed
+        Set<Cid> failed = ConcurrentHashMap.newKeySet();
+        Consumer<Cid> onProviderFailure = c -> {
+            failed.add(c);
+            dht.providerCache.invalidate(c);
+        };
+        // start fetching from the first provider found, and add the rest to the session as the lookups find them
+        Set<PeerId> found = new HashSet<>();
+        BitswapSession[] session = new BitswapSession[1];
+        Consumer<PeerId> addProvider = p -> {
+            BitswapSession toStart = null, toExtend = null;
+            synchronized (found) {
+                if (! found.add(p))
+                    return;
+                if (session[0] == null)
+                    toStart = session[0] = new BitswapSession(bitswap, us, Set.of(p));
+                else
+                    toExtend = session[0];
+            }
+            if (toStart != null)
+                start(toStart, wants, ours, onProviderFailure);
+            else
+                toExtend.addProvider(p);
+        };
+        try {
+            List<CompletableFuture<List<PeerAddresses>>> lookups = wants.stream()
+                    .map(w -> w.cid)
+                    .distinct()
+                    .limit(MAX_PROVIDER_LOOKUPS)
+                    .map(c -> dht.findProviders(c, us, 5,
+                                    p -> SESSION_STARTS.execute(TraceLogger.wrap(
+                                            () -> addProvider.accept(PeerId.fromBase58(p.peerId.toBase58())))))
+                            .exceptionally(t -> Collections.emptyList())
+                            .whenComplete((res, t) -> {
+                                if (failed.contains(c))
+                                    dht.providerCache.invalidate(c);
+                            }))
+                    .collect(Collectors.toList());
+            CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0]))
+                    .thenRunAsync(TraceLogger.wrap(() -> {
+                        BitswapSession none = null;
+                        synchronized (found) {
+                            if (session[0] == null)
+                                none = session[0] = new BitswapSession(bitswap, us, Collections.emptySet());
+                        }
+                        // no providers, so ask whoever we are connected to, keeping the cached negative result
+                        if (none != null)
+                            start(none, wants, ours, c -> {});
+                    }), SESSION_STARTS);
+        } catch (Throwable t) {
+            fail(ours, t);
+        }
+    }
+
+    private void start(BitswapSession session,
+                       List<Want> wants,
+                       Map<Want, CompletableFuture<HashedBlock>> ours,
+                       Consumer<Cid> onFailure) {
+        try {
+            List<CompletableFuture<HashedBlock>> fetched = session.get(wants);
+            for (int i = 0; i < wants.size(); i++) {
+                Want w = wants.get(i);
+                CompletableFuture<HashedBlock> result = ours.get(w);
+                fetched.get(i).whenComplete((b, t) -> {
+                    inFlight.remove(w, result);
+                    if (t != null) {
+                        onFailure.accept(w.cid);
+                        result.completeExceptionally(t);
+                    } else
+                        result.complete(b);
+                });
+            }
+        } catch (Throwable t) {
+            fail(ours, t);
+        }
+    }
+
+    private void fail(Map<Want, CompletableFuture<HashedBlock>> ours, Throwable t) {
+        ours.forEach((w, result) -> {
+            inFlight.remove(w, result);
+            result.completeExceptionally(t);
+        });
     }
 }
@@ -1,14 +1,34 @@
 package org.peergos;
 
 import io.libp2p.core.*;
+import org.peergos.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface BlockService {
 
     List<HashedBlock> get(List<Want> hashes, Set<PeerId> peers);
 
+    /**
+     * Start fetching blocks, completing each future as soon as its own block arrives.
+     */
+    default List<CompletableFuture<HashedBlock>> getAsync(List<Want> hashes, Set<PeerId> peers) {
+        CompletableFuture<List<HashedBlock>> all = CompletableFuture.supplyAsync(TraceLogger.wrapSupplier(() -> get(hashes, peers)));
+        return IntStream.range(0, hashes.size())
+                .mapToObj(i -> all.thenApply(blocks -> blocks.get(i)))
+                .collect(Collectors.toList());
+    }
+
     default HashedBlock get(Want c, Set<PeerId> peers) {
         return get(Collections.singletonList(c), peers).get(0);
     }
+
+    /**
+     * @return peers which are likely to have the block, or nothing if this service can't tell
+     */
+    default Set<PeerId> findProviders(Want w) {
+        return Collections.emptySet();
+    }
 }
@@ -1,12 +1,12 @@
 package org.peergos;
 
-import com.sun.net.httpserver.HttpServer;
-
 import io.ipfs.multiaddr.MultiAddress;
 
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.config.*;
 import org.peergos.net.APIHandler;
+import org.peergos.net.APIServer;
+import org.peergos.protocol.dht.DatabaseProviderStore;
 import org.peergos.protocol.dht.DatabaseRecordStore;
 import org.peergos.protocol.http.*;
 import org.peergos.util.JSONParser;
@@ -54,37 +54,43 @@ public class Client {
         if (config.metrics.enabled) {
             AggregatedMetrics.startExporter(config.metrics.address, config.metrics.port);
         }
+        // before anything is traced, so the writer starts in the right dir
+        TraceLogger traceLogger = TraceLogger.getInstance();
+        traceLogger.configure(config.tracing, ipfsPath);
+        traceLogger.setIdentity(config.identity.peerId);
         BlockRequestAuthoriser authoriser = (c, p, a) -> CompletableFuture.completedFuture(true);
 
         Path datastorePath = ipfsPath.resolve("datastore").resolve("h2-v2.datastore");
         DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toAbsolutePath().toString());
+        DatabaseProviderStore providers = new DatabaseProviderStore(datastorePath.toAbsolutePath().toString());
         BlockMetadataStore meta = buildBlockMetadata(args);
         EmbeddedIpfs ipfs = EmbeddedIpfs.build(records,
+                providers,
                 buildBlockStore(config, ipfsPath, meta, true),
                 true,
                 config.addresses.getSwarmAddresses(),
                 config.bootstrap.getBootstrapAddresses(),
                 config.identity,
                 authoriser,
-                config.addresses.proxyTargetAddress.map(Client::proxyHandler));
+                config.addresses.proxyTargetAddress.map(Client::proxyHandler),
+                Optional.empty(),
+                Optional.empty(),
+                Optional.of(ipfsPath.resolve("datastore").resolve("reprovide-progress")));
         ipfs.start();
 
         System.out.println("Started client: " + args.getArg("id"));
-        TraceLogger traceLogger = TraceLogger.getInstance();
-        traceLogger.setIdentity(config.identity.peerId);
 
         String apiAddressArg = "Addresses.API";
         MultiAddress apiAddress = args.hasArg(apiAddressArg) ? new MultiAddress(args.getArg(apiAddressArg))
                 : config.addresses.apiAddress;
         InetSocketAddress localAPIAddress = new InetSocketAddress(apiAddress.getHost(), apiAddress.getPort());
 
-        int maxConnectionQueue = 500;
-        int handlerThreads = 5;
+        int maxConcurrentRequests = args.getInt("API.MaxConcurrentRequests", APIServer.DEFAULT_MAX_CONCURRENT);
+        int maxQueuedRequests = args.getInt("API.MaxQueuedRequests", APIServer.DEFAULT_MAX_QUEUED);
         LOG.info("Starting HTTP API server at " + apiAddress.getHost() + ":" + localAPIAddress.getPort());
-        HttpServer httpServer = HttpServer.create(localAPIAddress, maxConnectionQueue);
+        APIServer httpServer = new APIServer(localAPIAddress, maxConcurrentRequests, maxQueuedRequests);
 
         httpServer.createContext(APIHandler.API_URL, new APIHandler(ipfs));
-        httpServer.setExecutor(Executors.newFixedThreadPool(handlerThreads));
         httpServer.start();
 
         Thread shutdownHook = new Thread(() -> {
@@ -94,6 +100,12 @@ public class Client {
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
+            LOG.info("Flushing provider records...");
+            try {
+                providers.close();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
         });
         Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
@@ -0,0 +1,145 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.libp2p.core.*;
+import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Fetches a dag by following links as soon as each block arrives, rather than a level at a time. Up to concurrency
+ * blocks are fetched at once, and each block is passed to the consumer as soon as it is available, in no particular
+ * order. Blocks reachable by more than one path are only fetched once.
+ */
+public class DagFetcher {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    private final Blockstore local;
+    private final BlockService remote;
+
+    public DagFetcher(Blockstore local, BlockService remote) {
+        this.local = local;
+        this.remote = remote;
+    }
+
+    /**
+     * @param maxDepth how many levels of links below the root to follow, or -1 for the whole dag
+     * @return the number of blocks delivered
+     */
+    public long fetch(Want root,
+                      int maxDepth,
+                      int concurrency,
+                      Set<PeerId> peers,
+                      Consumer<HashedBlock> consumer) {
+        ExecutorService pool = TraceLogger.propagating(Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "Dag fetch " + root.cid);
+            t.setDaemon(true);
+            return t;
+        }));
+        Traversal traversal = new Traversal(pool, peers, maxDepth, consumer);
+        try {
+            traversal.submit(root, 0);
+            return traversal.done.join();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private class Traversal {
+        final ExecutorService pool;
+        final int maxDepth;
+        final Consumer<HashedBlock> consumer;
+        final Set<Cid> seen = ConcurrentHashMap.newKeySet();
+        final AtomicInteger pending = new AtomicInteger(0);
+        final AtomicLong delivered = new AtomicLong(0);
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        volatile Set<PeerId> peers;
+
+        Traversal(ExecutorService pool, Set<PeerId> peers, int maxDepth, Consumer<HashedBlock> consumer) {
+            this.pool = pool;
+            this.peers = peers;
+            this.maxDepth = maxDepth;
+            this.consumer = consumer;
+        }
+
+        void submit(Want w, int depth) {
+            if (w.cid.getType() == Multihash.Type.id || ! seen.add(w.cid))
+                return;
+            pending.incrementAndGet();
+            pool.execute(() -> {
+                try {
+                    if (! done.isDone())
+                        visit(w, depth);
+                } catch (Throwable t) {
+                    done.completeExceptionally(t);
+                } finally {
+                    if (pending.decrementAndGet() == 0)
+                        done.complete(delivered.get());
+                }
+            });
+        }
+
+        void visit(Want w, int depth) {
+            byte[] data = local.get(w.cid).join().orElseGet(() -> fetchRemote(w));
+            // queue the children before handing this block on, so they are in flight while the consumer runs
+            if (maxDepth < 0 || depth < maxDepth) {
+                for (Cid link : CborObject.getLinks(w.cid, data))
+                    submit(new Want(link), depth + 1);
+            }
+            synchronized (consumer) {
+                consumer.accept(new HashedBlock(w.cid, data));
+            }
+            delivered.incrementAndGet();
+        }
+
+        byte[] fetchRemote(Want w) {
+            Set<PeerId> current = peers;
+            if (current.isEmpty()) {
+                // the providers of the first missing block are likely to have the rest of the dag
+                current = remote.findProviders(w);
+                addPeers(current);
+            }
+            Optional<byte[]> res = get(w, current);
+            if (res.isEmpty() && ! current.isEmpty()) {
+                // the peers so far don't have this part of the dag, so look up who provides it and widen the peer set
+                Set<PeerId> providers = new HashSet<>(remote.findProviders(w));
+                providers.removeAll(current);
+                if (! providers.isEmpty()) {
+                    addPeers(providers);
+                    res = get(w, providers);
+                }
+            }
+            if (res.isEmpty())
+                throw new IllegalStateException("Couldn't retrieve block " + w.cid);
+            LOG.fine("Fetched " + w.cid + " from network");
+            return res.get();
+        }
+
+        Optional<byte[]> get(Want w, Set<PeerId> from) {
+            try {
+                return remote.get(List.of(w), from).stream()
+                        .findFirst()
+                        .map(b -> b.block);
+            } catch (Exception e) {
+                LOG.fine("Couldn't retrieve block " + w.cid + " from " + from.size() + " peers: " + e.getMessage());
+                return Optional.empty();
+            }
+        }
+
+        synchronized void addPeers(Set<PeerId> more) {
+            if (peers.containsAll(more))
+                return;
+            Set<PeerId> all = new HashSet<>(peers);
+            all.addAll(more);
+            peers = all;
+        }
+    }
+}
@@ -33,6 +33,8 @@ import java.sql.SQLException;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
@@ -58,6 +60,18 @@ public class EmbeddedIpfs {
                         Optional<HttpProtocol.Binding> p2pHttp,
                         List<MultiAddress> bootstrap,
                         Optional<BlockingDeque<Cid>> newBlockProvider) {
+        this(node, blockstore, records, dht, bitswap, p2pHttp, bootstrap, newBlockProvider, Optional.empty());
+    }
+
+    public EmbeddedIpfs(Host node,
+                        Blockstore blockstore,
+                        RecordStore records,
+                        Kademlia dht,
+                        Bitswap bitswap,
+                        Optional<HttpProtocol.Binding> p2pHttp,
+                        List<MultiAddress> bootstrap,
+                        Optional<BlockingDeque<Cid>> newBlockProvider,
+                        Optional<Path> reprovideProgress) {
         this.node = node;
         this.blockstore = blockstore;
         this.records = records;
@@ -66,8 +80,9 @@ public class EmbeddedIpfs {
         this.p2pHttp = p2pHttp;
         this.bootstrap = bootstrap;
         this.blocks = new BitswapBlockService(node, bitswap, dht);
-        this.blockProvider = newBlockProvider.map(q -> new PeriodicBlockProvider(1000L,
-                () -> blockstore.refs(false).join().stream(), node, dht, q));
+        this.blockProvider = newBlockProvider.map(q -> new PeriodicBlockProvider(
+                PeriodicBlockProvider.REPROVIDE_INTERVAL_MILLIS,
+                () -> blockstore.refs(false).join().stream(), node, dht, q, reprovideProgress));
     }
 
     public int maxBlockSize() {
@@ -84,23 +99,30 @@ public class EmbeddedIpfs {
         List<Want> local = new ArrayList<>();
         List<Want> remote = new ArrayList<>();
 
-        for (Want w : wants) {
-            if (blockstore.has(w.cid).join())
-                local.add(w);
+        List<Boolean> present = blockstore.hasAll(wants.stream()
+                .map(w -> w.cid)
+                .collect(Collectors.toList())).join();
+        for (int i = 0; i < wants.size(); i++) {
+            if (present.get(i))
+                local.add(wants.get(i));
             else
-                remote.add(w);
+                remote.add(wants.get(i));
+        }
+        try {
+            List<Optional<byte[]>> localBlocks = blockstore.getAll(local.stream()
+                    .map(w -> w.cid)
+                    .collect(Collectors.toList())).join();
+            for (int i = 0; i < local.size(); i++) {
+                Want w = local.get(i);
+                Optional<byte[]> block = localBlocks.get(i);
+                block.ifPresent(b -> blocksFound.add(new HashedBlock(w.cid, b)));
+                if (block.isEmpty())
+                    remote.add(w);
+            }
+        } catch (Exception e) {
+            blocksFound.clear();
+            remote.addAll(local);
         }
-        local.stream()
-                .forEach(w -> {
-                    try {
-                        Optional<byte[]> block = blockstore.get(w.cid).join();
-                        block.ifPresent(b -> blocksFound.add(new HashedBlock(w.cid, b)));
-                        if (block.isEmpty())
-                            remote.add(w);
-                    } catch (Exception e) {
-                        remote.add(w);
-                    }
-                });
         if (remote.isEmpty())
             return blocksFound;
         return java.util.stream.Stream.concat(
@@ -109,6 +131,64 @@ public class EmbeddedIpfs {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Pass each block to consumer as soon as it is available, local blocks first, then remote blocks in the order they
+     * arrive. All the remote wants are fetched together. Blocks which can't be retrieved are skipped.
+     *
+     * @return the number of blocks delivered
+     */
+    public int streamBlocks(List<Want> wants, Set<PeerId> peers, Consumer<HashedBlock> consumer) {
+        List<Cid> cids = wants.stream()
+                .map(w -> w.cid)
+                .collect(Collectors.toList());
+        List<Boolean> present = blockstore.hasAll(cids).join();
+        List<Want> local = new ArrayList<>();
+        List<Want> remote = new ArrayList<>();
+        for (int i = 0; i < wants.size(); i++)
+            (present.get(i) ? local : remote).add(wants.get(i));
+
+        int delivered = 0;
+        List<Optional<byte[]>> localBlocks = blockstore.getAll(local.stream()
+                .map(w -> w.cid)
+                .collect(Collectors.toList())).join();
+        for (int i = 0; i < local.size(); i++) {
+            Optional<byte[]> block = localBlocks.get(i);
+            if (block.isPresent()) {
+                consumer.accept(new HashedBlock(local.get(i).cid, block.get()));
+                delivered++;
+            } else
+                remote.add(local.get(i));
+        }
+        if (remote.isEmpty())
+            return delivered;
+
+        AtomicInteger remoteDelivered = new AtomicInteger(0);
+        CompletableFuture<?>[] fetched = blocks.getAsync(remote, peers).stream()
+                .map(f -> f.thenAccept(b -> {
+                    synchronized (consumer) {
+                        consumer.accept(b);
+                    }
+                    remoteDelivered.incrementAndGet();
+                }).exceptionally(t -> {
+                    LOG.log(Level.FINE, t.getMessage(), t);
+                    return null;
+                }))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(fetched).join();
+        return delivered + remoteDelivered.get();
+    }
+
+    /**
+     * Fetch a dag, passing each block to consumer as it arrives. Links are followed as soon as their block is
+     * available, so a deep dag costs far fewer round trips than fetching it a level at a time.
+     *
+     * @param maxDepth how many levels of links below the root to follow, or -1 for the whole dag
+     * @return the number of blocks delivered
+     */
+    public long getDag(Want root, int maxDepth, Set<PeerId> peers, Consumer<HashedBlock> consumer) {
+        return new DagFetcher(blockstore, blocks).fetch(root, maxDepth, DagFetcher.DEFAULT_CONCURRENCY, peers, consumer);
+    }
+
     public CompletableFuture<Integer> publishValue(PrivKey priv, byte[] value, long sequence, int hoursTtl) {
         Multihash pub = Multihash.deserialize(PeerId.fromPubKey(priv.publicKey()).getBytes());
         LocalDateTime expiry = LocalDateTime.now().plusHours(hoursTtl);
@@ -165,6 +245,7 @@ public class EmbeddedIpfs {
         }
         blockProvider.ifPresent(b -> b.stop());
         dht.stopBootstrapThread();
+        bitswap.shutdown();
         return node != null ? node.stop() : CompletableFuture.completedFuture(null);
     }
 
@@ -194,10 +275,23 @@ public class EmbeddedIpfs {
             if (updateMetadb)
                 s3blocks.updateMetadataStoreIfEmpty();
             withMetadb = s3blocks;
+        } else if (config.datastore.blockMount.prefix.equals("segment.datastore")) {
+            SegmentBlockstore segments = SegmentBlockstore.build(ipfsPath, config.datastore.blockMount.getParams());
+            CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(segments, meta);
+            if (updateMetadb)
+                cachedBlocks.updateMetadataStoreIfEmpty();
+            withMetadb = cachedBlocks;
         } else {
             throw new IllegalStateException("Unrecognized datastore prefix: " + config.datastore.blockMount.prefix);
         }
-        return typeLimited(filteredBlockStore(withMetadb, config), config);
+        return typeLimited(filteredBlockStore(cached(withMetadb, config), config), config);
+    }
+
+    public static Blockstore cached(Blockstore blocks, Config config) {
+        BlockCache cache = config.datastore.blockCache;
+        return cache.isEnabled() ?
+                new CachingBlockstore(blocks, cache.maxSize, cache.maxBlockSize) :
+                blocks;
     }
 
     public static Blockstore typeLimited(Blockstore blocks, Config config) {
@@ -240,10 +334,25 @@ public class EmbeddedIpfs {
                                      Optional<HttpProtocol.HttpRequestProcessor> handler,
                                      Optional<String> bitswapProtocolId,
                                      Optional<Integer> maxBitswapMsgSize) {
+        return build(records, new ShardedProviderStore(), blocks, provideBlocks, swarmAddresses, bootstrap, identity,
+                authoriser, handler, bitswapProtocolId, maxBitswapMsgSize, Optional.empty());
+    }
+
+    public static EmbeddedIpfs build(RecordStore records,
+                                     ProviderStore providers,
+                                     Blockstore blocks,
+                                     boolean provideBlocks,
+                                     List<MultiAddress> swarmAddresses,
+                                     List<MultiAddress> bootstrap,
+                                     IdentitySection identity,
+                                     BlockRequestAuthoriser authoriser,
+                                     Optional<HttpProtocol.HttpRequestProcessor> handler,
+                                     Optional<String> bitswapProtocolId,
+                                     Optional<Integer> maxBitswapMsgSize,
+                                     Optional<Path> reprovideProgress) {
         Blockstore blockstore = provideBlocks ?
                 new ProvidingBlockstore(blocks) :
                 blocks;
-        ProviderStore providers = new RamProviderStore(10_000);
 
         HostBuilder builder = new HostBuilder().setIdentity(identity.privKeyProtobuf).listen(swarmAddresses);
         if (! builder.getPeerId().equals(identity.peerId)) {
@@ -271,7 +380,8 @@ public class EmbeddedIpfs {
         Optional<BlockingDeque<Cid>> newBlockProvider = provideBlocks ?
                 Optional.of(((ProvidingBlockstore)blockstore).toPublish) :
                 Optional.empty();
-        return new EmbeddedIpfs(node, blockstore, records, dht, bitswap, httpHandler, bootstrap, newBlockProvider);
+        return new EmbeddedIpfs(node, blockstore, records, dht, bitswap, httpHandler, bootstrap, newBlockProvider,
+                reprovideProgress);
     }
 
     public static Multiaddr[] getAddresses(Host node, Kademlia dht, Multihash targetNodeId) throws ConnectionException {
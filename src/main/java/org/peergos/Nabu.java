@@ -1,7 +1,5 @@
 package org.peergos;
 
-import com.sun.net.httpserver.HttpServer;
-
 import io.ipfs.cid.Cid;
 import io.ipfs.cid.Cid.Codec;
 import io.ipfs.multiaddr.MultiAddress;
@@ -11,12 +9,15 @@ import io.libp2p.crypto.keys.Ed25519Kt;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.config.*;
 import org.peergos.net.APIHandler;
+import org.peergos.net.APIServer;
 import org.peergos.net.HttpProxyHandler;
+import org.peergos.protocol.dht.DatabaseProviderStore;
 import org.peergos.protocol.dht.DatabaseRecordStore;
 import org.peergos.protocol.http.*;
 import org.peergos.util.JSONParser;
 import org.peergos.util.JsonHelper;
 import org.peergos.util.Logging;
+import org.peergos.util.TraceLogger;
 
 import java.io.File;
 import java.io.IOException;
@@ -53,19 +54,28 @@ public class Nabu {
             AggregatedMetrics.startExporter(config.metrics.address, config.metrics.port);
         }
         LOG.info("Starting Nabu version: " + APIHandler.CURRENT_VERSION);
+        // before anything is traced, so the writer starts in the right dir
+        TraceLogger traceLogger = TraceLogger.getInstance();
+        traceLogger.configure(config.tracing, ipfsPath);
+        traceLogger.setIdentity(config.identity.peerId);
         BlockRequestAuthoriser authoriser = (c, p, a) -> CompletableFuture.completedFuture(true);
 
         Path datastorePath = ipfsPath.resolve("datastore").resolve("h2-v2.datastore");
         DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toAbsolutePath().toString());
+        DatabaseProviderStore providers = new DatabaseProviderStore(datastorePath.toAbsolutePath().toString());
         BlockMetadataStore meta = buildBlockMetadata(args);
         EmbeddedIpfs ipfs = EmbeddedIpfs.build(records,
+                providers,
                 buildBlockStore(config, ipfsPath, meta, true),
                 true,
                 config.addresses.getSwarmAddresses(),
                 config.bootstrap.getBootstrapAddresses(),
                 config.identity,
                 authoriser,
-                config.addresses.proxyTargetAddress.map(Nabu::proxyHandler));
+                config.addresses.proxyTargetAddress.map(Nabu::proxyHandler),
+                Optional.empty(),
+                Optional.empty(),
+                Optional.of(ipfsPath.resolve("datastore").resolve("reprovide-progress")));
         ipfs.start();
 
         String apiAddressArg = "Addresses.API";
@@ -73,16 +83,15 @@ public class Nabu {
                 : config.addresses.apiAddress;
         InetSocketAddress localAPIAddress = new InetSocketAddress(apiAddress.getHost(), apiAddress.getPort());
 
-        int maxConnectionQueue = 500;
-        int handlerThreads = 50;
+        int maxConcurrentRequests = args.getInt("API.MaxConcurrentRequests", APIServer.DEFAULT_MAX_CONCURRENT);
+        int maxQueuedRequests = args.getInt("API.MaxQueuedRequests", APIServer.DEFAULT_MAX_QUEUED);
         LOG.info("Starting RPC API server at " + apiAddress.getHost() + ":" + localAPIAddress.getPort());
-        HttpServer apiServer = HttpServer.create(localAPIAddress, maxConnectionQueue);
+        APIServer apiServer = new APIServer(localAPIAddress, maxConcurrentRequests, maxQueuedRequests);
 
         apiServer.createContext(APIHandler.API_URL, new APIHandler(ipfs));
         if (config.addresses.proxyTargetAddress.isPresent())
             apiServer.createContext(HttpProxyService.API_URL,
                     new HttpProxyHandler(new HttpProxyService(ipfs.node, ipfs.p2pHttp.get(), ipfs.dht)));
-        apiServer.setExecutor(Executors.newFixedThreadPool(handlerThreads));
         apiServer.start();
 
         Thread shutdownHook = new Thread(() -> {
@@ -92,6 +101,12 @@ public class Nabu {
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
+            LOG.info("Flushing provider records...");
+            try {
+                providers.close();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
         });
         Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
@@ -2,9 +2,13 @@ package org.peergos;
 
 import io.ipfs.cid.*;
 import io.libp2p.core.*;
+import io.prometheus.client.*;
 import org.peergos.protocol.dht.*;
+import org.peergos.util.ArrayOps;
 import org.peergos.util.Logging;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
@@ -13,25 +17,60 @@ import java.util.logging.*;
 import java.util.stream.*;
 import java.util.stream.Stream;
 
+/**
+ * Provides new blocks as they are written, and reprovides every block once per interval, before their provider
+ * records expire.
+ *
+ * Reprovides are batched by a Reprovider, and its progress through the keyspace is saved after each region, so a
+ * restarted node carries on with the current cycle rather than starting again.
+ */
 public class PeriodicBlockProvider {
 
     private static final Logger LOG = Logging.LOG();
+    private static final Gauge cycleDuration = Gauge.build()
+            .name("reprovide_cycle_duration_seconds")
+            .help("Time taken by the last complete reprovide cycle")
+            .register();
+    private static final Counter cycles = Counter.build()
+            .name("reprovide_cycles_total")
+            .help("Completed reprovide cycles")
+            .register();
+
+    // well within the provider record TTL, so records are refreshed before they expire
+    public static final long REPROVIDE_INTERVAL_MILLIS = 22 * 3600_000L;
+
+    private static final class Progress {
+        final long cycleStart;
+        // the last key reprovided in this cycle
+        final Optional<Key256> after;
+        final boolean finished;
+
+        Progress(long cycleStart, Optional<Key256> after, boolean finished) {
+            this.cycleStart = cycleStart;
+            this.after = after;
+            this.finished = finished;
+        }
+    }
+
     private final long reprovideIntervalMillis;
     private final Supplier<Stream<Cid>> getBlocks;
     private final Host us;
     private final Kademlia dht;
     private final BlockingDeque<Cid> newBlocksToPublish;
+    private final Optional<Path> progressFile;
 
     public PeriodicBlockProvider(long reprovideIntervalMillis,
                                  Supplier<Stream<Cid>> getBlocks,
                                  Host us,
                                  Kademlia dht,
-                                 BlockingDeque<Cid> newBlocksToPublish) {
+                                 BlockingDeque<Cid> newBlocksToPublish,
+                                 Optional<Path> progressFile) {
         this.reprovideIntervalMillis = reprovideIntervalMillis;
         this.getBlocks = getBlocks;
         this.us = us;
         this.dht = dht;
         this.newBlocksToPublish = newBlocksToPublish;
+        this.progressFile = progressFile;
     }
 
     private final AtomicBoolean running = new AtomicBoolean(false);
@@ -46,16 +85,81 @@ public class PeriodicBlockProvider {
     }
 
     public void run() {
+        Optional<Progress> progress = progressFile.flatMap(PeriodicBlockProvider::readProgress);
         while (running.get()) {
             try {
-                publish(getBlocks.get());
-                Thread.sleep(reprovideIntervalMillis);
+                long now = System.currentTimeMillis();
+                if (progress.isPresent() && now - progress.get().cycleStart < reprovideIntervalMillis) {
+                    if (progress.get().finished) {
+                        Thread.sleep(Math.min(progress.get().cycleStart + reprovideIntervalMillis - now, 60_000));
+                        continue;
+                    }
+                } else
+                    progress = Optional.of(new Progress(now, Optional.empty(), false));
+                progress = Optional.of(reprovide(progress.get()));
             } catch (Throwable e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException f) {}
             }
         }
     }
 
+    private Progress reprovide(Progress progress) throws InterruptedException {
+        List<Cid> blocks = getBlocks.get().collect(Collectors.toList());
+        PeerAddresses ourAddrs = PeerAddresses.fromHost(us);
+        Reprovider reprovider = new Reprovider(
+                b -> dht.findClosestPeersAsync(b.bareMultihash().toBytes(), Reprovider.LOOKUP_PEERS, us),
+                (peer, batch) -> dht.provideBlocks(peer, batch, us, ourAddrs),
+                Reprovider.DEFAULT_PARALLEL_PEERS,
+                Reprovider.DEFAULT_MAX_MESSAGES_PER_SECOND);
+        long count = reprovider.reprovide(blocks, progress.after,
+                key -> saveProgress(new Progress(progress.cycleStart, Optional.of(key), false)),
+                running::get);
+        if (! running.get()) // stopped part way, so carry on from the last saved region next time
+            return progress;
+        Progress finished = new Progress(progress.cycleStart, Optional.empty(), true);
+        saveProgress(finished);
+        long duration = System.currentTimeMillis() - progress.cycleStart;
+        cycleDuration.set(duration / 1000.0);
+        cycles.inc();
+        LOG.info("Reprovided " + count + " blocks in " + duration / 1000 + "s");
+        return finished;
+    }
+
+    private static Optional<Progress> readProgress(Path file) {
+        if (! Files.exists(file))
+            return Optional.empty();
+        try {
+            String[] parts = Files.readString(file).trim().split(" ");
+            long cycleStart = Long.parseLong(parts[0]);
+            if (parts[1].equals("done"))
+                return Optional.of(new Progress(cycleStart, Optional.empty(), true));
+            Optional<Key256> after = parts[1].equals("start") ?
+                    Optional.empty() :
+                    Optional.of(Key256.of(ArrayOps.hexToBytes(parts[1])));
+            return Optional.of(new Progress(cycleStart, after, false));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Ignoring invalid reprovide progress in " + file, e);
+            return Optional.empty();
+        }
+    }
+
+    private void saveProgress(Progress p) {
+        if (progressFile.isEmpty())
+            return;
+        String state = p.finished ? "done" : p.after.map(k -> ArrayOps.bytesToHex(k.toBytes())).orElse("start");
+        Path file = progressFile.get();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(tmp, p.cycleStart + " " + state);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't save reprovide progress to " + file, e);
+        }
+    }
+
     public void provideNewBlocks() {
         while (running.get()) {
             try {
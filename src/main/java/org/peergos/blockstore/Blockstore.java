@@ -5,9 +5,13 @@ import io.ipfs.multibase.binary.Base32;
 import io.ipfs.multihash.Multihash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.util.*;
 
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 public interface Blockstore {
 
@@ -28,10 +32,68 @@ public interface Blockstore {
 
     CompletableFuture<Optional<byte[]>> get(Cid c);
 
+    /**
+     * Get a block without copying it more than necessary. The returned buffer may be backed by a memory mapped file or
+     * shared with the store, so callers must treat it as read only.
+     */
+    default CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return get(c).thenApply(opt -> opt.map(ByteBuffer::wrap));
+    }
+
     CompletableFuture<Cid> put(byte[] block, Cid.Codec codec);
 
     CompletableFuture<Boolean> rm(Cid c);
 
+    /*
+     * The batch operations below return results in the same order as their arguments. Implementations should override
+     * them whenever they can answer a batch in fewer round trips than one call per block.
+     */
+
+    default CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                .map(this::has)
+                .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                .map(this::get)
+                .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(b -> put(b, codec))
+                .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                .map(this::rm)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Apply a batch operation to only the cids matching a predicate, and use a default result for the others.
+     */
+    static <T> CompletableFuture<List<T>> batchSubset(List<Cid> cids,
+                                                      Predicate<Cid> include,
+                                                      T excluded,
+                                                      Function<List<Cid>, CompletableFuture<List<T>>> batch) {
+        List<Cid> included = cids.stream()
+                .filter(include)
+                .collect(Collectors.toList());
+        if (included.size() == cids.size())
+            return batch.apply(cids);
+        return batch.apply(included).thenApply(res -> {
+            List<T> all = new ArrayList<>(cids.size());
+            int i = 0;
+            for (Cid c : cids)
+                all.add(include.test(c) ? res.get(i++) : excluded);
+            return all;
+        });
+    }
+
     CompletableFuture<List<Cid>> refs(boolean useBlockstore);
 
     CompletableFuture<Boolean> bloomAdd(Cid cid);
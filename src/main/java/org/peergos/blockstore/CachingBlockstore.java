@@ -0,0 +1,318 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.prometheus.client.*;
+import org.peergos.blockstore.metadatadb.*;
+import org.peergos.util.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A read cache of blocks in front of another blockstore, bounded by the total size of the cached blocks.
+ *
+ * Eviction uses S3-FIFO (Yang et al., SOSP '23): new blocks enter a small FIFO holding ~10% of the capacity, and are
+ * only promoted to the main FIFO if they are read again before reaching its head. Blocks evicted from the small queue
+ * are remembered in a ghost queue of cids, so a block which returns soon after is inserted directly into the main queue.
+ * The main queue gives blocks which have been read since they were last examined another pass (up to 3). This keeps a
+ * single large scan, e.g. a dag export or reprovide, from flushing the popular blocks.
+ *
+ * Block data is copied into heap buffers, so the cache is bounded by the heap rather than the direct memory limit.
+ *
+ * Removing a block bumps a generation counter for its cid, both before and after the target deletes it, and a read from
+ * the target only caches its result if the generation is unchanged, so a read racing a removal can't put the removed
+ * block back in the cache.
+ */
+public class CachingBlockstore implements Blockstore {
+
+    private static final Counter hits = Counter.build()
+            .name("block_cache_hits_total")
+            .help("Number of block reads served from the block cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("block_cache_misses_total")
+            .help("Number of block reads not found in the block cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("block_cache_evictions_total")
+            .help("Number of blocks evicted from the block cache")
+            .register();
+    private static final Gauge cachedBytes = Gauge.build()
+            .name("block_cache_size_bytes")
+            .help("Total size of the blocks in the block cache")
+            .register();
+
+    private static final int MAX_FREQUENCY = 3;
+    private static final int GENERATION_STRIPES = 1024;
+
+    private static final class Entry {
+        final Cid cid;
+        final ByteBuffer data;
+        volatile int frequency = 0;
+        boolean inMain;
+
+        Entry(Cid cid, ByteBuffer data) {
+            this.cid = cid;
+            this.data = data;
+        }
+
+        int size() {
+            return data.capacity();
+        }
+    }
+
+    private final Blockstore target;
+    private final long maxBytes, maxBlockSize, maxSmallBytes;
+    private final ConcurrentHashMap<Cid, Entry> cache = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> small = new ArrayDeque<>();
+    private final ArrayDeque<Entry> main = new ArrayDeque<>();
+    private final LinkedHashSet<Cid> ghost = new LinkedHashSet<>();
+    private long smallBytes = 0, mainBytes = 0;
+    // bumped when a block is removed, striped by cid so it stays bounded
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    public CachingBlockstore(Blockstore target, long maxBytes, long maxBlockSize) {
+        this.target = target;
+        this.maxBytes = maxBytes;
+        this.maxBlockSize = Math.min(maxBlockSize, maxBytes);
+        this.maxSmallBytes = Math.max(1, maxBytes / 10);
+    }
+
+    private Optional<ByteBuffer> lookup(Cid c) {
+        Entry e = cache.get(c);
+        if (e == null) {
+            misses.inc();
+            return Optional.empty();
+        }
+        hits.inc();
+        // racy increments are fine here, this is only a hint
+        if (e.frequency < MAX_FREQUENCY)
+            e.frequency++;
+        return Optional.of(e.data.duplicate());
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] res = new byte[buf.remaining()];
+        buf.get(res);
+        return res;
+    }
+
+    private static int stripe(Cid c) {
+        return Math.floorMod(c.hashCode(), GENERATION_STRIPES);
+    }
+
+    private synchronized long generation(Cid c) {
+        return generations[stripe(c)];
+    }
+
+    /**
+     * @param generation the generation of c before the block was read from the target
+     */
+    private void insert(Cid c, ByteBuffer block, long generation) {
+        int size = block.remaining();
+        if (size > maxBlockSize || cache.containsKey(c))
+            return;
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        copy.put(block.duplicate());
+        copy.flip();
+        Entry e = new Entry(c, copy.asReadOnlyBuffer());
+        synchronized (this) {
+            // the block was removed since it was read
+            if (generations[stripe(c)] != generation)
+                return;
+            if (cache.putIfAbsent(c, e) != null)
+                return;
+            if (ghost.remove(c)) {
+                e.inMain = true;
+                main.addLast(e);
+                mainBytes += size;
+            } else {
+                small.addLast(e);
+                smallBytes += size;
+            }
+            while (smallBytes + mainBytes > maxBytes)
+                evict();
+            cachedBytes.set(smallBytes + mainBytes);
+        }
+    }
+
+    private void evict() {
+        if (! small.isEmpty() && (smallBytes >= maxSmallBytes || main.isEmpty()))
+            evictSmall();
+        else
+            evictMain();
+    }
+
+    private void evictSmall() {
+        Entry e = small.pollFirst();
+        smallBytes -= e.size();
+        if (e.frequency > 0) {
+            // read while in the small queue, so promote it
+            e.frequency = 0;
+            e.inMain = true;
+            main.addLast(e);
+            mainBytes += e.size();
+            return;
+        }
+        remove(e);
+        ghost.add(e.cid);
+        // the ghost queue remembers about as many blocks as the main queue holds
+        while (ghost.size() > Math.max(main.size(), 1)) {
+            Iterator<Cid> oldest = ghost.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private void evictMain() {
+        while (! main.isEmpty()) {
+            Entry e = main.pollFirst();
+            mainBytes -= e.size();
+            if (e.frequency > 0) {
+                e.frequency--;
+                main.addLast(e);
+                mainBytes += e.size();
+                continue;
+            }
+            remove(e);
+            return;
+        }
+    }
+
+    private void remove(Entry e) {
+        cache.remove(e.cid, e);
+        evictions.inc();
+    }
+
+    private synchronized void invalidate(Cid c) {
+        generations[stripe(c)]++;
+        Entry e = cache.remove(c);
+        if (e == null)
+            return;
+        if (e.inMain) {
+            main.remove(e);
+            mainBytes -= e.size();
+        } else {
+            small.remove(e);
+            smallBytes -= e.size();
+        }
+        cachedBytes.set(smallBytes + mainBytes);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        if (cache.containsKey(c))
+            return Futures.of(true);
+        return target.has(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        Optional<ByteBuffer> cached = lookup(c);
+        if (cached.isPresent())
+            return Futures.of(cached.map(CachingBlockstore::toArray));
+        long generation = generation(c);
+        return target.get(c).thenApply(res -> {
+            res.ifPresent(b -> insert(c, ByteBuffer.wrap(b), generation));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        Optional<ByteBuffer> cached = lookup(c);
+        if (cached.isPresent())
+            return Futures.of(cached);
+        long generation = generation(c);
+        return target.getBuffer(c).thenApply(res -> {
+            res.ifPresent(b -> insert(c, b, generation));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Blockstore.batchSubset(cids, c -> ! cache.containsKey(c), true, target::hasAll);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Optional<byte[]>> res = new ArrayList<>(cids.size());
+        List<Cid> missing = new ArrayList<>();
+        long[] generations = new long[cids.size()];
+        for (int i = 0; i < cids.size(); i++) {
+            Cid c = cids.get(i);
+            Optional<byte[]> cached = lookup(c).map(CachingBlockstore::toArray);
+            res.add(cached);
+            if (cached.isEmpty()) {
+                missing.add(c);
+                generations[i] = generation(c);
+            }
+        }
+        if (missing.isEmpty())
+            return Futures.of(res);
+        return target.getAll(missing).thenApply(fetched -> {
+            int j = 0;
+            for (int i = 0; i < res.size(); i++) {
+                if (res.get(i).isPresent())
+                    continue;
+                Optional<byte[]> block = fetched.get(j++);
+                Cid c = cids.get(i);
+                long generation = generations[i];
+                block.ifPresent(b -> insert(c, ByteBuffer.wrap(b), generation));
+                res.set(i, block);
+            }
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        // blocks are only cached once they are read, so bulk imports don't pollute the cache
+        return target.put(block, codec);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return target.putAll(blocks, codec);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        // invalidate again once the delete has landed, as a read racing with it may have cached the block meanwhile
+        invalidate(c);
+        return target.rm(c).whenComplete((r, t) -> invalidate(c));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        cids.forEach(this::invalidate);
+        return target.rmAll(cids).whenComplete((r, t) -> cids.forEach(this::invalidate));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+
+    public synchronized long size() {
+        return smallBytes + mainBytes;
+    }
+}
@@ -7,17 +7,25 @@ import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class FileBlockstore implements Blockstore {
@@ -27,6 +35,7 @@ public class FileBlockstore implements Blockstore {
     private final Path blocksRoot;
     private final String BLOCKS = "blocks";
     private final String BLOCK_FILE_SUFFIX = ".data";
+    private static final long MMAP_THRESHOLD = 256 * 1024;
 
     public FileBlockstore(Path root) {
         if (root == null || !root.toFile().isDirectory()) {
@@ -70,25 +79,42 @@ public class FileBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid cid) {
-        try {
-            Path path = getFilePath(cid);
-            File file = blocksRoot.resolve(path).toFile();
-            if (!file.exists()) {
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
-            TraceLogger.getInstance().HandleFileReadStart(cid);
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] buffer = new byte[1024];
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                for (int len; (len = din.read(buffer)) != -1;) {
-                    bout.write(buffer, 0, len);
-                }
-                return CompletableFuture.completedFuture(Optional.of(bout.toByteArray()));
-            } finally {
-                TraceLogger.getInstance().HandleFileReadEnd(cid);
+        return readBlock(cid, false)
+                .thenApply(opt -> opt.map(ByteBuffer::array));
+    }
+
+    /**
+     * Reads the block file directly into a single buffer of the right size, or memory maps it if it is large, so the
+     * result can be handed to protobuf or netty without further copies.
+     */
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        return readBlock(cid, true);
+    }
+
+    private CompletableFuture<Optional<ByteBuffer>> readBlock(Cid cid, boolean allowMap) {
+        Path path = getFilePath(cid);
+        Path file = blocksRoot.resolve(path);
+        TraceLogger.getInstance().HandleFileReadStart(cid);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IllegalStateException("Block too large: " + cid);
+            if (allowMap && size >= MMAP_THRESHOLD)
+                return CompletableFuture.completedFuture(Optional.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0)
+                    throw new EOFException("Block file truncated: " + file);
             }
+            buf.flip();
+            return CompletableFuture.completedFuture(Optional.of(buf));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            TraceLogger.getInstance().HandleFileReadEnd(cid);
         }
     }
 
@@ -113,8 +139,14 @@ public class FileBlockstore implements Blockstore {
                                 + parentDir.toString() + " writable");
                 }
             }
-            Files.write(target, block, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE,
-                    StandardOpenOption.WRITE);
+            // never rewrite a block file in place, it may be memory mapped by a concurrent read
+            Path tmp = parent.resolve(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            try {
+                Files.write(tmp, block, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
             return CompletableFuture.completedFuture(cid);
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -132,6 +164,55 @@ public class FileBlockstore implements Blockstore {
         }
     }
 
+    /**
+     * @return the indices of the given cids, ordered by the path of their block file, so that a batch visits each shard
+     * directory once and in order
+     */
+    private int[] pathOrder(List<Cid> cids) {
+        List<Path> paths = cids.stream().map(this::getFilePath).collect(Collectors.toList());
+        return IntStream.range(0, cids.size())
+                .boxed()
+                .sorted(Comparator.comparing(paths::get))
+                .mapToInt(i -> i)
+                .toArray();
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Boolean[] res = new Boolean[cids.size()];
+        for (int i : pathOrder(cids))
+            res[i] = blocksRoot.resolve(getFilePath(cids.get(i))).toFile().exists();
+        return CompletableFuture.completedFuture(Arrays.asList(res));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        List<Optional<byte[]>> res = new ArrayList<>(cids.size());
+        for (int i = 0; i < cids.size(); i++)
+            res.add(Optional.empty());
+        for (int i : pathOrder(cids))
+            res.set(i, readBlock(cids.get(i), false).join().map(ByteBuffer::array));
+        return CompletableFuture.completedFuture(res);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        List<Cid> cids = blocks.stream()
+                .map(b -> new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(b)))
+                .collect(Collectors.toList());
+        for (int i : pathOrder(cids))
+            put(blocks.get(i), codec).join();
+        return CompletableFuture.completedFuture(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        Boolean[] res = new Boolean[cids.size()];
+        for (int i : pathOrder(cids))
+            res[i] = rm(cids.get(i)).join();
+        return CompletableFuture.completedFuture(Arrays.asList(res));
+    }
+
     @Override
     public CompletableFuture<Boolean> bloomAdd(Cid cid) {
         // not implemented
@@ -5,6 +5,7 @@ import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -45,6 +46,13 @@ public class FilteredBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(Optional.empty());
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        if (filter.has(c))
+            return blocks.getBuffer(c);
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         return blocks.put(block, codec)
@@ -56,6 +64,30 @@ public class FilteredBlockstore implements Blockstore {
         return blocks.rm(c);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Blockstore.batchSubset(cids, filter::has, false, blocks::hasAll);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return Blockstore.batchSubset(cids, filter::has, Optional.empty(), blocks::getAll);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> toPut, Cid.Codec codec) {
+        return blocks.putAll(toPut, codec)
+                .thenApply(cids -> {
+                    cids.forEach(filter::add);
+                    return cids;
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return blocks.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return blocks.refs(useBlockstore);
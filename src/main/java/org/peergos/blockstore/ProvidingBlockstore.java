@@ -4,6 +4,7 @@ import io.ipfs.cid.*;
 import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.*;
 
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
@@ -32,6 +33,11 @@ public class ProvidingBlockstore implements Blockstore {
         return target.get(c);
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return target.getBuffer(c);
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         CompletableFuture<Cid> res = target.put(block, codec);
@@ -44,6 +50,28 @@ public class ProvidingBlockstore implements Blockstore {
         return target.rm(c);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return target.hasAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        CompletableFuture<List<Cid>> res = target.putAll(blocks, codec);
+        res.thenApply(toPublish::addAll);
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return target.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return target.refs(useBlockstore);
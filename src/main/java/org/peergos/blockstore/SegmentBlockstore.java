@@ -0,0 +1,625 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.peergos.Hash;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.*;
+
+/**
+ * A blockstore which packs blocks into large append-only segment files, rather than a file per block.
+ *
+ * Each record in a segment is [cid length: int][data length: int][cid][data]. An H2 index maps each cid to the
+ * segment, offset and length of its data. Sealed segments are memory mapped for reads, while the active segment is read
+ * with positional reads. Removing a block only removes it from the index; a background task rewrites the live blocks of
+ * any sealed segment whose live fraction has dropped below a threshold into the active segment, and then deletes it.
+ * Appended data is always forced to disk before the index entry pointing at it is committed.
+ */
+public class SegmentBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int TYPICAL_CID_SIZE = 36;
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_COMPACTION_PERIOD_MINUTES = 10;
+
+    private static final String GET = "SELECT segment_id, data_offset, data_length FROM segmentindex WHERE cid = ?;";
+    private static final String HAS = "SELECT 1 FROM segmentindex WHERE cid = ?;";
+    private static final String INSERT = "MERGE INTO segmentindex (cid, segment_id, data_offset, data_length) KEY(cid) VALUES(?, ?, ?, ?);";
+    private static final String REMOVE = "DELETE FROM segmentindex WHERE cid = ?;";
+    private static final String LIST = "SELECT cid FROM segmentindex;";
+    private static final String LIVE_BYTES = "SELECT segment_id, SUM(data_length), COUNT(*) FROM segmentindex GROUP BY segment_id;";
+    private static final String SEGMENT_CONTENTS = "SELECT cid, data_offset, data_length FROM segmentindex WHERE segment_id = ?;";
+    private static final String MOVE = "UPDATE segmentindex SET segment_id = ?, data_offset = ? WHERE cid = ? AND segment_id = ? AND data_offset = ?;";
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final String SEGMENT_END = "SELECT MAX(data_offset + data_length) FROM segmentindex WHERE segment_id = ?;";
+
+    private final Path segmentsRoot;
+    private final Connection index;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final Map<Integer, MappedByteBuffer> sealed = new ConcurrentHashMap<>();
+    // reads and appends hold the read lock, compaction takes the write lock to drop a segment
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private final ScheduledExecutorService compactor;
+    // the id and channel of the active segment change together when it rolls over
+    private volatile ActiveSegment active;
+    private long activeSize;
+    // appended data up to here has been forced to disk, so concurrent puts can share a single force
+    private final Object forceLock = new Object();
+    private int forcedSegment = -1;
+    private long forcedEnd = 0;
+
+    public SegmentBlockstore(Path root, long maxSegmentSize, double compactionThreshold, long compactionPeriodMinutes) {
+        if (root == null)
+            throw new IllegalStateException("Segment blockstore path must be set");
+        if (maxSegmentSize > Integer.MAX_VALUE)
+            throw new IllegalStateException("Segments must be smaller than 2 GiB to be memory mapped");
+        try {
+            Files.createDirectories(root);
+            this.segmentsRoot = root;
+            this.maxSegmentSize = maxSegmentSize;
+            this.compactionThreshold = compactionThreshold;
+            this.index = DriverManager.getConnection("jdbc:h2:" + root.resolve("index").toAbsolutePath());
+            this.index.setAutoCommit(true);
+            createTable();
+            openSegments();
+        } catch (IOException | SQLException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Segment compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        if (compactionPeriodMinutes > 0)
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                }
+            }, compactionPeriodMinutes, compactionPeriodMinutes, TimeUnit.MINUTES);
+        LOG.info("Using SegmentBlockstore at location: " + root);
+    }
+
+    public SegmentBlockstore(Path root) {
+        this(root, DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_COMPACTION_PERIOD_MINUTES);
+    }
+
+    public static SegmentBlockstore build(Path ipfsPath, Map<String, Object> params) {
+        String path = (String) params.getOrDefault("path", "segments");
+        long maxSegmentSize = params.containsKey("maxSegmentSize") ?
+                Long.parseLong(params.get("maxSegmentSize").toString()) :
+                DEFAULT_MAX_SEGMENT_SIZE;
+        double threshold = params.containsKey("compactionThreshold") ?
+                Double.parseDouble(params.get("compactionThreshold").toString()) :
+                DEFAULT_COMPACTION_THRESHOLD;
+        return new SegmentBlockstore(ipfsPath.resolve(path), maxSegmentSize, threshold, DEFAULT_COMPACTION_PERIOD_MINUTES);
+    }
+
+    private void createTable() throws SQLException {
+        try (Statement stmt = index.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS segmentindex (cid VARBINARY(128) primary key not null, " +
+                    "segment_id INT not null, data_offset BIGINT not null, data_length INT not null);");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS segmentindex_segment ON segmentindex (segment_id);");
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return segmentsRoot.resolve(String.format("%010d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(segmentsRoot)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void openSegments() throws IOException, SQLException {
+        List<Integer> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++)
+            sealed.put(segments.get(i), map(segments.get(i)));
+        if (segments.isEmpty()) {
+            openActive(0);
+            return;
+        }
+        int last = segments.get(segments.size() - 1);
+        openActive(last);
+        // drop anything after the last indexed record, e.g. a partial write from a crash
+        long end = 0;
+        try (PreparedStatement stmt = index.prepareStatement(SEGMENT_END)) {
+            stmt.setInt(1, last);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next())
+                    end = rs.getLong(1);
+            }
+        }
+        if (end < activeSize) {
+            active.channel.truncate(end);
+            activeSize = end;
+        }
+    }
+
+    private static final class ActiveSegment {
+        final int id;
+        final FileChannel channel;
+
+        ActiveSegment(int id, FileChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    private void openActive(int segment) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        activeSize = channel.size();
+        channel.position(activeSize);
+        active = new ActiveSegment(segment, channel);
+    }
+
+    private MappedByteBuffer map(int segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private Optional<Location> lookup(Cid cid) {
+        try (PreparedStatement stmt = index.prepareStatement(GET)) {
+            stmt.setBytes(1, cid.toBytes());
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next())
+                    return Optional.of(new Location(rs.getInt(1), rs.getLong(2), rs.getInt(3)));
+                return Optional.empty();
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private Map<Cid, Location> lookupAll(List<Cid> cids) {
+        Map<Cid, Location> res = new HashMap<>();
+        for (int start = 0; start < cids.size(); start += MAX_BATCH_SIZE) {
+            List<Cid> batch = cids.subList(start, Math.min(cids.size(), start + MAX_BATCH_SIZE));
+            String query = "SELECT cid, segment_id, data_offset, data_length FROM segmentindex WHERE cid IN (" +
+                    batch.stream().map(c -> "?").collect(Collectors.joining(",")) + ");";
+            try (PreparedStatement stmt = index.prepareStatement(query)) {
+                for (int i = 0; i < batch.size(); i++)
+                    stmt.setBytes(i + 1, batch.get(i).toBytes());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next())
+                        res.put(Cid.cast(rs.getBytes(1)), new Location(rs.getInt(2), rs.getLong(3), rs.getInt(4)));
+                }
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Append a record to the active segment, rolling to a new segment if it is full.
+     * @return the location of the block data
+     */
+    private Location append(byte[] cid, ByteBuffer data) throws IOException {
+        synchronized (appendLock) {
+            int length = data.remaining();
+            long recordSize = RECORD_HEADER_SIZE + cid.length + length;
+            if (activeSize > 0 && activeSize + recordSize > maxSegmentSize) {
+                ActiveSegment old = active;
+                old.channel.force(false);
+                // map the sealed segment before closing it, so concurrent reads of it can fall back to the mapping
+                sealed.put(old.id, map(old.id));
+                openActive(old.id + 1);
+                old.channel.close();
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + cid.length);
+            header.putInt(cid.length);
+            header.putInt(length);
+            header.put(cid);
+            header.flip();
+            ByteBuffer[] record = {header, data.duplicate()};
+            long written = 0;
+            while (written < recordSize)
+                written += active.channel.write(record);
+            Location loc = new Location(active.id, activeSize + RECORD_HEADER_SIZE + cid.length, length);
+            activeSize += recordSize;
+            return loc;
+        }
+    }
+
+    /**
+     * Wait until the data at loc is on disk, so the index never points at data lost in a crash. Segments before the
+     * active one were forced when they were sealed, and one force covers every append before it, so concurrent puts
+     * share it.
+     */
+    private void force(Location loc) throws IOException {
+        synchronized (forceLock) {
+            if (loc.segment < forcedSegment || (loc.segment == forcedSegment && loc.offset + loc.length <= forcedEnd))
+                return;
+            ActiveSegment current;
+            long end;
+            synchronized (appendLock) {
+                current = active;
+                end = activeSize;
+            }
+            if (loc.segment == current.id) {
+                try {
+                    current.channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // it was forced when it was sealed
+                }
+            }
+            forcedSegment = current.id;
+            forcedEnd = end;
+        }
+    }
+
+    private void index(Cid cid, Location loc) throws SQLException {
+        try (PreparedStatement insert = index.prepareStatement(INSERT)) {
+            insert.setBytes(1, cid.toBytes());
+            insert.setInt(2, loc.segment);
+            insert.setLong(3, loc.offset);
+            insert.setInt(4, loc.length);
+            insert.executeUpdate();
+        }
+    }
+
+    private ByteBuffer read(Location loc) throws IOException {
+        MappedByteBuffer mapped = sealed.get(loc.segment);
+        if (mapped != null)
+            return slice(mapped, loc);
+        // the segment is sealed before the active one changes, so if it isn't sealed it must still be this one
+        ActiveSegment current = active;
+        if (current.id != loc.segment) {
+            mapped = sealed.get(loc.segment);
+            if (mapped == null)
+                throw new IOException("Segment " + loc.segment + " not found");
+            return slice(mapped, loc);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(loc.length);
+        long pos = loc.offset;
+        try {
+            while (buf.hasRemaining()) {
+                int read = current.channel.read(buf, pos);
+                if (read < 0)
+                    throw new EOFException("Segment " + loc.segment + " truncated");
+                pos += read;
+            }
+        } catch (ClosedChannelException e) {
+            // the segment was sealed while we were reading it
+            mapped = sealed.get(loc.segment);
+            if (mapped == null)
+                throw e;
+            return slice(mapped, loc);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer mapped, Location loc) {
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) loc.offset);
+        view.limit((int) loc.offset + loc.length);
+        return view.slice();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid cid) {
+        try (PreparedStatement stmt = index.prepareStatement(HAS)) {
+            stmt.setBytes(1, cid.toBytes());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return Futures.of(rs.next());
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> has(new Cid(1, c, h.getType(), h.getHash())).join()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid cid) {
+        return getBuffer(cid).thenApply(opt -> opt.map(buf -> {
+            if (buf.hasArray() && buf.arrayOffset() == 0 && buf.remaining() == buf.array().length)
+                return buf.array();
+            byte[] res = new byte[buf.remaining()];
+            buf.get(res);
+            return res;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        segmentLock.readLock().lock();
+        try {
+            Optional<Location> loc = lookup(cid);
+            if (loc.isEmpty())
+                return Futures.of(Optional.empty());
+            return Futures.of(Optional.of(read(loc.get())));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+        if (has(cid).join())
+            return Futures.of(cid);
+        segmentLock.readLock().lock();
+        try {
+            Location loc = append(cid.toBytes(), ByteBuffer.wrap(block));
+            force(loc);
+            index(cid, loc);
+            return Futures.of(cid);
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, Location> found = lookupAll(cids);
+        return Futures.of(cids.stream()
+                .map(found::containsKey)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Looks up the whole batch in the index at once, then reads the blocks in segment and offset order.
+     */
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        segmentLock.readLock().lock();
+        try {
+            Map<Cid, Location> found = lookupAll(cids);
+            List<Cid> ordered = found.entrySet().stream()
+                    .sorted(Comparator.<Map.Entry<Cid, Location>>comparingInt(e -> e.getValue().segment)
+                            .thenComparingLong(e -> e.getValue().offset))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+            Map<Cid, byte[]> blocks = new HashMap<>();
+            for (Cid cid : ordered) {
+                ByteBuffer buf = read(found.get(cid));
+                byte[] data = new byte[buf.remaining()];
+                buf.get(data);
+                blocks.put(cid, data);
+            }
+            return Futures.of(cids.stream()
+                    .map(c -> Optional.ofNullable(blocks.get(c)))
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the whole batch while holding the segment for writing, then indexes it in a single batch.
+     */
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        List<Cid> cids = blocks.stream()
+                .map(b -> new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(b)))
+                .collect(Collectors.toList());
+        Map<Cid, Location> existing = lookupAll(cids);
+        segmentLock.readLock().lock();
+        try (PreparedStatement insert = index.prepareStatement(INSERT)) {
+            Location last = null;
+            synchronized (appendLock) {
+                Set<Cid> added = new HashSet<>();
+                for (int i = 0; i < cids.size(); i++) {
+                    Cid cid = cids.get(i);
+                    if (existing.containsKey(cid) || ! added.add(cid))
+                        continue;
+                    Location loc = append(cid.toBytes(), ByteBuffer.wrap(blocks.get(i)));
+                    insert.setBytes(1, cid.toBytes());
+                    insert.setInt(2, loc.segment);
+                    insert.setLong(3, loc.offset);
+                    insert.setInt(4, loc.length);
+                    insert.addBatch();
+                    last = loc;
+                }
+            }
+            // one force covers the whole batch
+            if (last != null)
+                force(last);
+            insert.executeBatch();
+            return Futures.of(cids);
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        try (PreparedStatement remove = index.prepareStatement(REMOVE)) {
+            for (Cid cid : cids) {
+                remove.setBytes(1, cid.toBytes());
+                remove.addBatch();
+            }
+            int[] counts = remove.executeBatch();
+            return Futures.of(Arrays.stream(counts)
+                    .mapToObj(n -> n > 0)
+                    .collect(Collectors.toList()));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid cid) {
+        try (PreparedStatement remove = index.prepareStatement(REMOVE)) {
+            remove.setBytes(1, cid.toBytes());
+            return Futures.of(remove.executeUpdate() > 0);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        try (PreparedStatement stmt = index.prepareStatement(LIST);
+             ResultSet rs = stmt.executeQuery()) {
+            List<Cid> res = new ArrayList<>();
+            while (rs.next())
+                res.add(Cid.cast(rs.getBytes(1)));
+            return Futures.of(res);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        // not implemented
+        return Futures.of(false);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        throw new IllegalStateException("Unsupported operation!");
+    }
+
+    /**
+     * Rewrite the live blocks of any sealed segment whose live fraction is below the compaction threshold, and delete
+     * the old segment.
+     * @return the number of segments reclaimed
+     */
+    public int compact() {
+        Map<Integer, Long> live = new HashMap<>();
+        try (PreparedStatement stmt = index.prepareStatement(LIVE_BYTES);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next())
+                live.put(rs.getInt(1), rs.getLong(2) + rs.getLong(3) * (RECORD_HEADER_SIZE + TYPICAL_CID_SIZE));
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+        int reclaimed = 0;
+        for (Integer segment : new TreeSet<>(sealed.keySet())) {
+            MappedByteBuffer mapped = sealed.get(segment);
+            long size = mapped.capacity();
+            long liveBytes = live.getOrDefault(segment, 0L);
+            if (size == 0 || (double) liveBytes / size >= compactionThreshold)
+                continue;
+            try {
+                compactSegment(segment, mapped);
+                reclaimed++;
+            } catch (IOException | SQLException e) {
+                LOG.log(Level.WARNING, "Failed to compact segment " + segment + ": " + e.getMessage(), e);
+            }
+        }
+        return reclaimed;
+    }
+
+    private void compactSegment(int segment, MappedByteBuffer mapped) throws IOException, SQLException {
+        List<Cid> cids = new ArrayList<>();
+        List<Location> locations = new ArrayList<>();
+        try (PreparedStatement stmt = index.prepareStatement(SEGMENT_CONTENTS)) {
+            stmt.setInt(1, segment);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    cids.add(Cid.cast(rs.getBytes(1)));
+                    locations.add(new Location(segment, rs.getLong(2), rs.getInt(3)));
+                }
+            }
+        }
+        for (int start = 0; start < cids.size(); start += MAX_BATCH_SIZE) {
+            int end = Math.min(cids.size(), start + MAX_BATCH_SIZE);
+            segmentLock.readLock().lock();
+            try (PreparedStatement move = index.prepareStatement(MOVE)) {
+                Location to = null;
+                for (int i = start; i < end; i++) {
+                    Location from = locations.get(i);
+                    to = append(cids.get(i).toBytes(), slice(mapped, from));
+                    // only move the entry if it hasn't been removed or rewritten in the meantime
+                    move.setInt(1, to.segment);
+                    move.setLong(2, to.offset);
+                    move.setBytes(3, cids.get(i).toBytes());
+                    move.setInt(4, segment);
+                    move.setLong(5, from.offset);
+                    move.addBatch();
+                }
+                // the copies must be on disk before the index points at them
+                force(to);
+                move.executeBatch();
+            } finally {
+                segmentLock.readLock().unlock();
+            }
+        }
+        segmentLock.writeLock().lock();
+        try {
+            sealed.remove(segment);
+            Files.deleteIfExists(segmentPath(segment));
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        LOG.info("Compacted segment " + segment + ", moved " + cids.size() + " blocks");
+    }
+
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            synchronized (appendLock) {
+                active.channel.force(true);
+                active.channel.close();
+            }
+            index.close();
+        } catch (IOException | SQLException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+}
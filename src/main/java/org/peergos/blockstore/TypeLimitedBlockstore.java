@@ -5,6 +5,7 @@ import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -53,6 +54,13 @@ public class TypeLimitedBlockstore implements Blockstore {
         return CompletableFuture.completedFuture(Optional.empty());
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        if (allowedCodecs.contains(cid.codec))
+            return blocks.getBuffer(cid);
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         if (allowedCodecs.contains(codec)) {
@@ -69,6 +77,33 @@ public class TypeLimitedBlockstore implements Blockstore {
         throw new IllegalArgumentException("Unsupported codec: " + cid.codec);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        return Blockstore.batchSubset(cids, c -> allowedCodecs.contains(c.codec), false, blocks::hasAll);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return Blockstore.batchSubset(cids, c -> allowedCodecs.contains(c.codec), Optional.empty(), blocks::getAll);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> toPut, Cid.Codec codec) {
+        if (allowedCodecs.contains(codec)) {
+            return blocks.putAll(toPut, codec);
+        }
+        throw new IllegalArgumentException("Unsupported codec: " + codec);
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        for (Cid cid : cids) {
+            if (! allowedCodecs.contains(cid.codec))
+                throw new IllegalArgumentException("Unsupported codec: " + cid.codec);
+        }
+        return blocks.rmAll(cids);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
         return blocks.refs(useBlockstore).thenApply(res -> res.stream()
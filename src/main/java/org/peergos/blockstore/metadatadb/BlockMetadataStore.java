@@ -4,7 +4,9 @@ import io.ipfs.cid.Cid;
 import org.peergos.cbor.CborObject;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -15,6 +17,20 @@ public interface BlockMetadataStore {
 
     void put(Cid block, BlockMetadata meta);
 
+    /**
+     * @return the metadata of those blocks which are present
+     */
+    default Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        for (Cid block : blocks)
+            get(block).ifPresent(m -> res.put(block, m));
+        return res;
+    }
+
+    default void putAll(Map<Cid, BlockMetadata> metas) {
+        metas.forEach(this::put);
+    }
+
     void remove(Cid block);
 
     long size();
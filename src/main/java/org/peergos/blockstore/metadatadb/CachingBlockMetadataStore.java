@@ -6,13 +6,17 @@ import org.peergos.Hash;
 import org.peergos.blockstore.Blockstore;
 import org.peergos.util.Futures;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.*;
 
 public class CachingBlockMetadataStore implements Blockstore {
 
+    private static final int METADATA_UPDATE_BATCH_SIZE = 1000;
     private final Blockstore target;
     private final BlockMetadataStore metadata;
 
@@ -63,6 +67,14 @@ public class CachingBlockMetadataStore implements Blockstore {
         });
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid hash) {
+        if (metadata.get(hash).isPresent())
+            return target.getBuffer(hash);
+        // we need the block bytes to extract the metadata anyway
+        return get(hash).thenApply(bopt -> bopt.map(ByteBuffer::wrap));
+    }
+
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
         Optional<BlockMetadata> meta = metadata.get(c);
@@ -71,6 +83,60 @@ public class CachingBlockMetadataStore implements Blockstore {
         return get(c).thenApply(opt -> opt.isPresent());
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = metadata.getAll(cids);
+        List<Cid> unknown = cids.stream()
+                .filter(c -> ! known.containsKey(c))
+                .collect(Collectors.toList());
+        if (unknown.isEmpty())
+            return Futures.of(cids.stream().map(c -> true).collect(Collectors.toList()));
+        return getAll(unknown).thenApply(blocks -> {
+            Map<Cid, Boolean> found = new HashMap<>();
+            for (int i = 0; i < unknown.size(); i++)
+                found.put(unknown.get(i), blocks.get(i).isPresent());
+            return cids.stream()
+                    .map(c -> known.containsKey(c) || found.get(c))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        return target.getAll(cids).thenApply(blocks -> {
+            Map<Cid, BlockMetadata> metas = new HashMap<>();
+            for (int i = 0; i < cids.size(); i++) {
+                Cid cid = cids.get(i);
+                blocks.get(i).ifPresent(b -> metas.put(cid, BlockMetadataStore.extractMetadata(cid, b)));
+            }
+            if (! metas.isEmpty())
+                metadata.putAll(metas);
+            return blocks;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return target.putAll(blocks, codec).thenApply(cids -> {
+            Map<Cid, BlockMetadata> metas = new HashMap<>();
+            for (int i = 0; i < cids.size(); i++)
+                metas.put(cids.get(i), BlockMetadataStore.extractMetadata(cids.get(i), blocks.get(i)));
+            metadata.putAll(metas);
+            return cids;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return target.rmAll(cids).thenApply(res -> {
+            for (int i = 0; i < cids.size(); i++) {
+                if (res.get(i))
+                    metadata.remove(cids.get(i));
+            }
+            return res;
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> hasAny(Multihash h) {
         return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
@@ -103,10 +169,14 @@ public class CachingBlockMetadataStore implements Blockstore {
         if (metadata.size() > 0)
             return;
         List<Cid> cids = target.refs(true).join();
-        for(Cid c : cids) {
-            Optional<BlockMetadata> existing = metadata.get(c);
-            if (existing.isEmpty())
-                metadata.put(c, target.getBlockMetadata(c).join());
+        for (int start = 0; start < cids.size(); start += METADATA_UPDATE_BATCH_SIZE) {
+            List<Cid> batch = cids.subList(start, Math.min(cids.size(), start + METADATA_UPDATE_BATCH_SIZE));
+            Map<Cid, BlockMetadata> existing = metadata.getAll(batch);
+            List<Cid> missing = batch.stream()
+                    .filter(c -> ! existing.containsKey(c))
+                    .collect(Collectors.toList());
+            // reading the blocks in one batch populates their metadata
+            getAll(missing).join();
         }
     }
 }
@@ -11,7 +11,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -26,6 +28,7 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     private static final String REMOVE = "DELETE FROM blockmetadata where cid = ?;";
     private static final String LIST = "SELECT cid FROM blockmetadata;";
     private static final String SIZE = "SELECT COUNT(*) FROM blockmetadata;";
+    private static final int MAX_BATCH_SIZE = 500;
     private Supplier<Connection> conn;
     private final BlockMetadataSqlSupplier commands;
 
@@ -103,6 +106,56 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    @Override
+    public Map<Cid, BlockMetadata> getAll(List<Cid> blocks) {
+        Map<Cid, BlockMetadata> res = new HashMap<>();
+        for (int start = 0; start < blocks.size(); start += MAX_BATCH_SIZE) {
+            List<Cid> batch = blocks.subList(start, Math.min(blocks.size(), start + MAX_BATCH_SIZE));
+            String query = "SELECT * FROM blockmetadata WHERE cid IN (" +
+                    batch.stream().map(c -> "?").collect(Collectors.joining(",")) + ");";
+            try (Connection conn = getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
+                for (int i = 0; i < batch.size(); i++)
+                    stmt.setBytes(i + 1, batch.get(i).toBytes());
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    List<Cid> links = ((CborObject.CborList) CborObject.fromByteArray(rs.getBytes("links")))
+                            .map(cbor -> Cid.cast(((CborObject.CborByteArray)cbor).value));
+                    res.put(Cid.cast(rs.getBytes("cid")), new BlockMetadata(rs.getInt("size"), links));
+                }
+            } catch (SQLException sqe) {
+                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+                throw new RuntimeException(sqe);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void putAll(Map<Cid, BlockMetadata> metas) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.addMetadataCommand())) {
+            for (Map.Entry<Cid, BlockMetadata> e : metas.entrySet()) {
+                insert.setBytes(1, e.getKey().toBytes());
+                insert.setLong(2, e.getValue().size);
+                insert.setBytes(3, serializeLinks(e.getValue().links));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    private static byte[] serializeLinks(List<Cid> links) {
+        return new CborObject.CborList(links.stream()
+                .map(Cid::toBytes)
+                .map(CborObject.CborByteArray::new)
+                .collect(Collectors.toList()))
+                .toByteArray();
+    }
+
     @Override
     public void put(Cid block, BlockMetadata meta) {
         try (Connection conn = getConnection();
@@ -110,11 +163,7 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
             insert.setBytes(1, block.toBytes());
             insert.setLong(2, meta.size);
-            insert.setBytes(3, new CborObject.CborList(meta.links.stream()
-                    .map(Cid::toBytes)
-                    .map(CborObject.CborByteArray::new)
-                    .collect(Collectors.toList()))
-                    .toByteArray());
+            insert.setBytes(3, serializeLinks(meta.links));
             insert.executeUpdate();
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
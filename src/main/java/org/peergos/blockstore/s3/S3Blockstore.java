@@ -21,6 +21,8 @@ import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicLong;
@@ -92,6 +94,8 @@ public class S3Blockstore implements Blockstore {
     private final Hasher hasher;
 
     private final BlockMetadataStore blockMetadata;
+    // used to pipeline the requests of batch operations
+    private final ExecutorService batchRequests;
 
     public S3Blockstore(Map<String, Object> params, BlockMetadataStore blockMetadata) {
         this.blockMetadata = blockMetadata;
@@ -128,6 +132,13 @@ public class S3Blockstore implements Blockstore {
                 rootDirectory : rootDirectory + "/");
 
         hasher = new Hasher();
+        int batchParallelism = Integer.parseInt(getParam(params, "batchParallelism", "16"));
+        AtomicLong threadCount = new AtomicLong(0);
+        batchRequests = TraceLogger.propagating(Executors.newFixedThreadPool(batchParallelism, r -> {
+            Thread t = new Thread(r, "S3 batch request " + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }));
         LOG.info("Using S3BlockStore");
     }
     private String getHost() {
@@ -321,6 +332,45 @@ public class S3Blockstore implements Blockstore {
         return getWithBackoff(() -> getWithoutRetry(cid));
     }
 
+    /**
+     * Answers the whole batch from one metadata store query, without any S3 requests. Blocks the metadata store
+     * doesn't know are absent, as in has and getAll.
+     */
+    @Override
+    public CompletableFuture<List<Boolean>> hasAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = blockMetadata.getAll(cids);
+        return Futures.of(cids.stream()
+                .map(known::containsKey)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Checks the metadata store for the whole batch in one query, then issues the GETs for present blocks concurrently.
+     */
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> cids) {
+        Map<Cid, BlockMetadata> known = blockMetadata.getAll(cids);
+        return Futures.combineAllInOrder(cids.stream()
+                .map(c -> known.containsKey(c) ?
+                        CompletableFuture.supplyAsync(() -> getWithBackoff(() -> getWithoutRetry(c)).join(), batchRequests) :
+                        Futures.of(Optional.<byte[]>empty()))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putAll(List<byte[]> blocks, Cid.Codec codec) {
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(b -> CompletableFuture.supplyAsync(() -> put(b, codec).join(), batchRequests))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> rmAll(List<Cid> cids) {
+        return Futures.combineAllInOrder(cids.stream()
+                .map(c -> CompletableFuture.supplyAsync(() -> rm(c).join(), batchRequests))
+                .collect(Collectors.toList()));
+    }
+
     private CompletableFuture<Optional<byte[]>> getWithoutRetry(Cid cid) {
         String path = folder + hashToKey(cid);
         Optional<Pair<Integer, Integer>> range = Optional.empty();
@@ -0,0 +1,38 @@
+package org.peergos.config;
+
+import org.peergos.util.JsonHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BlockCache implements Jsonable {
+    public static final long DEFAULT_MAX_BLOCK_SIZE = 1024 * 1024;
+
+    public final long maxSize;
+    public final long maxBlockSize;
+
+    public BlockCache(long maxSize, long maxBlockSize) {
+        if (maxSize < 0 || maxBlockSize < 0) {
+            throw new IllegalStateException("Invalid BlockCache sizes: " + maxSize + ", " + maxBlockSize);
+        }
+        this.maxSize = maxSize;
+        this.maxBlockSize = maxBlockSize;
+    }
+    public static BlockCache none() {
+        return new BlockCache(0, DEFAULT_MAX_BLOCK_SIZE);
+    }
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+    public Map<String, Object> toJson() {
+        Map<String, Object> configMap = new LinkedHashMap<>();
+        configMap.put("maxSize", Long.toString(maxSize));
+        configMap.put("maxBlockSize", Long.toString(maxBlockSize));
+        return configMap;
+    }
+    public static BlockCache fromJson(Map<String, Object> json) {
+        return new BlockCache(Long.parseLong(JsonHelper.getStringProperty(json, "maxSize")),
+                Long.parseLong(JsonHelper.getStringProperty(json, "maxBlockSize"))
+        );
+    }
+}
@@ -18,6 +18,7 @@ public class Config {
     public final DatastoreSection datastore;
     public final IdentitySection identity;
     public final MetricsSection metrics;
+    public final TracingSection tracing;
 
     public static final List<MultiAddress> defaultBootstrapNodes = new ArrayList<MultiAddress>();
 
@@ -28,6 +29,7 @@ public class Config {
         this.datastore = config.datastore;
         this.identity = config.identity;
         this.metrics = config.metrics;
+        this.tracing = config.tracing;
     }
     public Config(Supplier<Mount> dataStoreSupplier) {
         Config config = defaultConfig(Optional.of(dataStoreSupplier));
@@ -36,14 +38,20 @@ public class Config {
         this.datastore = config.datastore;
         this.identity = config.identity;
         this.metrics = config.metrics;
+        this.tracing = config.tracing;
     }
     public Config(AddressesSection addresses, BootstrapSection bootstrap, DatastoreSection datastore,
                   IdentitySection identity, MetricsSection metrics) {
+        this(addresses, bootstrap, datastore, identity, metrics, TracingSection.defaultConfig());
+    }
+    public Config(AddressesSection addresses, BootstrapSection bootstrap, DatastoreSection datastore,
+                  IdentitySection identity, MetricsSection metrics, TracingSection tracing) {
         this.addresses = addresses;
         this.bootstrap = bootstrap;
         this.datastore = datastore;
         this.identity = identity;
         this.metrics = metrics;
+        this.tracing = tracing;
         validate(this);
     }
 
@@ -54,7 +62,9 @@ public class Config {
         DatastoreSection datastoreSection = Jsonable.parse(json, p -> DatastoreSection.fromJson(p));
         IdentitySection identitySection = Jsonable.parse(json, p -> IdentitySection.fromJson(p));
         MetricsSection metricsSection = Jsonable.parse(json, p -> MetricsSection.fromJson(p));
-        return new Config(addressesSection, bootstrapSection, datastoreSection, identitySection, metricsSection);
+        TracingSection tracingSection = Jsonable.parse(json, p -> TracingSection.fromJson(p));
+        return new Config(addressesSection, bootstrapSection, datastoreSection, identitySection, metricsSection,
+                tracingSection);
     }
 
     @Override
@@ -64,6 +74,7 @@ public class Config {
         configMap.putAll(bootstrap.toJson());
         configMap.putAll(datastore.toJson());
         configMap.putAll(metrics.toJson());
+        configMap.putAll(tracing.toJson());
         configMap.putAll(identity.toJson());
         return JsonHelper.pretty(configMap);
     }
@@ -105,7 +116,9 @@ public class Config {
         BootstrapSection bootstrapSection = new BootstrapSection(bootstrapNodes);
         IdentitySection identitySection = new IdentitySection(privKey.bytes(), peerId);
         MetricsSection metricsSection = MetricsSection.defaultConfig();
-        return new Config(addressesSection, bootstrapSection, datastoreSection, identitySection, metricsSection);
+        TracingSection tracingSection = TracingSection.defaultConfig();
+        return new Config(addressesSection, bootstrapSection, datastoreSection, identitySection, metricsSection,
+                tracingSection);
     }
 
     public void validate(Config config) {
@@ -114,9 +127,10 @@ public class Config {
             throw new IllegalStateException("Expecting Addresses/Swarm entries");
         }
         Mount blockMount = config.datastore.blockMount;
-        if (!( (blockMount.prefix.equals("flatfs.datastore")  || blockMount.prefix.equals("s3.datastore"))
+        if (!( (blockMount.prefix.equals("flatfs.datastore")  || blockMount.prefix.equals("s3.datastore")
+                || blockMount.prefix.equals("segment.datastore"))
                 && blockMount.type.equals("measure"))) {
-            throw new IllegalStateException("Expecting /blocks mount to have prefix == ('flatfs.datastore' or 's3.datastore') and type == 'measure'");
+            throw new IllegalStateException("Expecting /blocks mount to have prefix == ('flatfs.datastore' or 's3.datastore' or 'segment.datastore') and type == 'measure'");
         }
         Map<String, Object> blockParams = blockMount.getParams();
         String blockPath = (String) blockParams.get("path");
@@ -128,6 +142,9 @@ public class Config {
         if (blockMount.prefix.equals("s3.datastore") && !blockType.equals("s3ds")) {
             throw new IllegalStateException("Expecting /blocks s3.datastore mount to have a type of 's3ds'");
         }
+        if (blockMount.prefix.equals("segment.datastore") && !(blockType.equals("segment") && blockPath != null)) {
+            throw new IllegalStateException("Expecting /blocks segment.datastore mount to have a type of 'segment' and a path");
+        }
 
         Mount rootMount = config.datastore.rootMount;
         if (!(rootMount.prefix.equals("h2.datastore") && rootMount.type.equals("measure"))) {
@@ -0,0 +1,76 @@
+package org.peergos.config;
+
+import org.peergos.util.JsonHelper;
+
+import java.util.*;
+
+public class TracingSection implements Jsonable {
+    public final boolean enabled;
+    // fraction of requests whose trace is recorded from the start, on every node they reach
+    public final double sampleRate;
+    // requests which weren't sampled are still recorded if they take at least this long, 0 to disable
+    public final long slowRequestMillis;
+    // OTLP/HTTP endpoint for spans, otherwise they are written to files in the ipfs dir
+    public final Optional<String> collector;
+    // short ids for peers in trace events, peers not listed get an id derived from their peer id
+    public final Map<String, Integer> nodeIds;
+    // how many trace segments, and span files, are kept in the traces dir, the oldest are deleted
+    public final int maxTraceFiles;
+
+    public TracingSection(boolean enabled,
+                          double sampleRate,
+                          long slowRequestMillis,
+                          Optional<String> collector,
+                          Map<String, Integer> nodeIds,
+                          int maxTraceFiles) {
+        if (sampleRate < 0.0 || sampleRate > 1.0) {
+            throw new IllegalStateException("Invalid Tracing sample rate: " + sampleRate);
+        }
+        if (slowRequestMillis < 0) {
+            throw new IllegalStateException("Invalid Tracing slow request threshold: " + slowRequestMillis);
+        }
+        if (maxTraceFiles < 1) {
+            throw new IllegalStateException("Invalid Tracing max trace files: " + maxTraceFiles);
+        }
+        this.enabled = enabled;
+        this.sampleRate = sampleRate;
+        this.slowRequestMillis = slowRequestMillis;
+        this.collector = collector;
+        this.nodeIds = nodeIds;
+        this.maxTraceFiles = maxTraceFiles;
+    }
+
+    public static TracingSection defaultConfig() {
+        return new TracingSection(true, 0.01, 1_000, Optional.empty(), Collections.emptyMap(), 64);
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> tracingMap = new LinkedHashMap<>();
+        tracingMap.put("Enabled", enabled);
+        tracingMap.put("SampleRate", Double.toString(sampleRate));
+        tracingMap.put("SlowRequestMillis", (int) slowRequestMillis);
+        collector.ifPresent(c -> tracingMap.put("Collector", c));
+        tracingMap.put("NodeIds", new TreeMap<>(nodeIds));
+        tracingMap.put("MaxTraceFiles", maxTraceFiles);
+        Map<String, Object> configMap = new LinkedHashMap<>();
+        configMap.put("Tracing", tracingMap);
+        return configMap;
+    }
+
+    public static TracingSection fromJson(Map<String, Object> json) {
+        Optional<Map<String, Object>> tracingOpt = JsonHelper.getOptionalPropertyMap(json, "Tracing");
+        return tracingOpt.map(t -> {
+            Map<String, Integer> nodeIds = new HashMap<>();
+            JsonHelper.getOptionalPropertyMap(t, "NodeIds")
+                    .ifPresent(m -> m.forEach((peer, id) -> nodeIds.put(peer, ((Number) id).intValue())));
+            return new TracingSection(JsonHelper.getBooleanProperty(t, "Enabled"),
+                    Double.parseDouble(JsonHelper.getStringProperty(t, "SampleRate")),
+                    JsonHelper.getIntProperty(t, "SlowRequestMillis"),
+                    JsonHelper.getOptionalProperty(t, "Collector").map(c -> (String) c),
+                    nodeIds,
+                    JsonHelper.getOptionalProperty(t, "MaxTraceFiles")
+                            .map(n -> ((Number) n).intValue())
+                            .orElse(defaultConfig().maxTraceFiles));
+        }).orElse(TracingSection.defaultConfig());
+    }
+}
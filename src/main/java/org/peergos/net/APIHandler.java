@@ -1,22 +1,31 @@
 package org.peergos.net;
 
 import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
 
-import org.apache.commons.io.IOUtils;
 import org.peergos.*;
+import org.peergos.cbor.*;
 import org.peergos.util.*;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 public class APIHandler extends Handler {
     public static final String API_URL = "/api/v0/";
     public static final Version CURRENT_VERSION = Version.parse("0.7.7");
     public static final String GET = "block/get";
     public static final String PUT = "block/put";
+    public static final String GET_BULK = "block/get/bulk";
+    public static final String STAT_BULK = "block/stat/bulk";
+    public static final String RM_BULK = "block/rm/bulk";
+    public static final String DAG_EXPORT = "dag/export";
     public static final String HEALTHZ = "healthz";
+    // uploaded blocks are stored in batches of at most this many blocks or bytes
+    private static final int MAX_PUT_BATCH_BLOCKS = 256;
+    private static final long MAX_PUT_BATCH_BYTES = 8 * 1024 * 1024;
 
     private final EmbeddedIpfs ipfs;
     private final int maxBlockSize;
@@ -44,36 +53,96 @@ public class APIHandler extends Handler {
                     }
                     Want want = new Want(Cid.decode(cid.get(0)));
                     List<String> trace = params.get("trace");
-                    boolean shouldTrace = trace != null && !trace.isEmpty() && !ipfs.isLocal(want);
-                    if (shouldTrace)
-                        traceLogger.startTrace();
-                    List<HashedBlock> block = ipfs.getBlocks(List.of(want), new HashSet<>());
-                    if (!block.isEmpty()) {
-                        if (shouldTrace) {
-                            httpExchange.getResponseHeaders().add("Trace-Id", traceLogger.getTraceId());
-                        }
-                        replyBytes(httpExchange, block.get(0).block);
-                    } else {
-                        try {
-                            httpExchange.sendResponseHeaders(400, 0);
-                        } catch (IOException ioe) {
-                            HttpUtil.replyError(httpExchange, ioe);
+                    // sampled or slow requests are traced anyway, trace=1 makes sure this one is
+                    traceLogger.startTrace(trace != null && !trace.isEmpty());
+                    try {
+                        List<HashedBlock> block = ipfs.getBlocks(List.of(want), new HashSet<>());
+                        if (!block.isEmpty()) {
+                            if (traceLogger.isSampled()) {
+                                httpExchange.getResponseHeaders().add("Trace-Id", traceLogger.getTraceId());
+                            }
+                            replyBytes(httpExchange, block.get(0).block);
+                        } else {
+                            try {
+                                httpExchange.sendResponseHeaders(400, 0);
+                            } catch (IOException ioe) {
+                                HttpUtil.replyError(httpExchange, ioe);
+                            }
                         }
-                    }
-                    if (shouldTrace)
+                    } finally {
+                        // request threads may be reused, so never leave a trace context behind
                         traceLogger.endTrace();
+                    }
                     break;
                 }
                 case PUT: {
-                    String result = IOUtils.toString(httpExchange.getRequestBody(), StandardCharsets.UTF_8);
-                    byte[] block = result.getBytes();
-                    if (block.length == 0 || block.length > maxBlockSize) {
-                        throw new APIException("Block missing or too large");
+                    List<String> format = params.get("format");
+                    Cid.Codec codec = format == null || format.isEmpty() ? Cid.Codec.Raw : parseFormat(format.get(0));
+                    BlockUpload upload = new BlockUpload(codec);
+                    readBlocks(httpExchange, upload::add);
+                    upload.flush();
+                    if (upload.cids.isEmpty())
+                        throw new APIException("Block missing");
+                    StringBuilder reply = new StringBuilder();
+                    for (int i = 0; i < upload.cids.size(); i++) {
+                        Map res = new LinkedHashMap<>();
+                        res.put("cid", upload.cids.get(i).toString());
+                        res.put("Hash", upload.cids.get(i).toString());
+                        res.put("Size", upload.sizes.get(i));
+                        reply.append(JSONParser.toString(res)).append("\n");
+                    }
+                    replyJson(httpExchange, reply.toString());
+                    break;
+                }
+                case GET_BULK: {
+                    AggregatedMetrics.API_BLOCK_GET_BULK.inc();
+                    List<Want> wants = parseWants(httpExchange, params);
+                    // each block is a CAR section: varint(cid length + block length), cid, block
+                    streamReply(httpExchange, "application/octet-stream", wants, (out, b) -> {
+                        byte[] cid = b.hash.toBytes();
+                        Multihash.putUvarint(out, cid.length + b.block.length);
+                        out.write(cid);
+                        out.write(b.block);
+                    });
+                    break;
+                }
+                case STAT_BULK: {
+                    AggregatedMetrics.API_BLOCK_STAT_BULK.inc();
+                    List<Want> wants = parseWants(httpExchange, params);
+                    streamReply(httpExchange, "application/json", wants, (out, b) -> {
+                        Map<String, Object> stat = new LinkedHashMap<>();
+                        stat.put("Key", b.hash.toString());
+                        stat.put("Size", b.block.length);
+                        out.write((JSONParser.toString(stat) + "\n").getBytes());
+                    });
+                    break;
+                }
+                case RM_BULK: {
+                    AggregatedMetrics.API_BLOCK_RM_BULK.inc();
+                    List<Cid> cids = parseWants(httpExchange, params).stream()
+                            .map(w -> w.cid)
+                            .collect(Collectors.toList());
+                    List<Boolean> removed = ipfs.blockstore.rmAll(cids).join();
+                    StringBuilder reply = new StringBuilder();
+                    for (int i = 0; i < cids.size(); i++) {
+                        Map<String, Object> res = new LinkedHashMap<>();
+                        res.put("Hash", cids.get(i).toString());
+                        if (! removed.get(i))
+                            res.put("Error", "block not found");
+                        reply.append(JSONParser.toString(res)).append("\n");
                     }
-                    Cid cid = ipfs.blockstore.put(block, Cid.Codec.Raw).join();
-                    Map res = new HashMap<>();
-                    res.put("cid", cid.toString());
-                    replyJson(httpExchange, JSONParser.toString(res));
+                    replyJson(httpExchange, reply.toString());
+                    break;
+                }
+                case DAG_EXPORT: {
+                    List<String> cid = params.get("cid");
+                    if (cid == null || cid.size() != 1) {
+                        throw new APIException("argument \"cid\" is required");
+                    }
+                    Cid root = Cid.decode(cid.get(0));
+                    List<String> depth = params.get("depth");
+                    int maxDepth = depth == null || depth.isEmpty() ? -1 : Integer.parseInt(depth.get(0));
+                    exportDag(httpExchange, new Want(root), maxDepth);
                     break;
                 }
                 case HEALTHZ: {
@@ -95,4 +164,162 @@ public class APIHandler extends Handler {
             httpExchange.close();
         }
     }
+
+    /**
+     * The cids to operate on, either as repeated arg query parameters, or a JSON list of wants in the request body.
+     */
+    private static List<Want> parseWants(HttpExchange httpExchange, Map<String, List<String>> params) throws IOException, APIException {
+        List<String> args = params.get("arg");
+        List<Want> wants;
+        if (args != null && ! args.isEmpty()) {
+            wants = args.stream()
+                    .map(a -> new Want(Cid.decode(a)))
+                    .collect(Collectors.toList());
+        } else {
+            Object json = JSONParser.parse(new String(read(httpExchange.getRequestBody())));
+            if (! (json instanceof List))
+                throw new APIException("Expected a JSON list of wants");
+            wants = ((List<Object>) json).stream()
+                    .map(m -> Want.fromJson((Map<String, String>) m))
+                    .collect(Collectors.toList());
+        }
+        if (wants.isEmpty())
+            throw new APIException("argument \"arg\" is required");
+        return wants;
+    }
+
+    private interface BlockWriter {
+        void write(OutputStream out, HashedBlock b) throws IOException;
+    }
+
+    /**
+     * Reply with a chunked response, writing each block as soon as it resolves. Blocks which can't be found are left
+     * out.
+     */
+    private void streamReply(HttpExchange httpExchange, String contentType, List<Want> wants, BlockWriter writer) throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", contentType);
+        httpExchange.sendResponseHeaders(200, 0);
+        OutputStream out = new BufferedOutputStream(httpExchange.getResponseBody());
+        ipfs.streamBlocks(wants, new HashSet<>(), b -> {
+            try {
+                writer.write(out, b);
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        out.close();
+    }
+
+    private static Cid.Codec parseFormat(String format) throws APIException {
+        switch (format) {
+            case "raw": return Cid.Codec.Raw;
+            case "cbor":
+            case "dag-cbor": return Cid.Codec.DagCbor;
+            default: throw new APIException("Unsupported block format: " + format);
+        }
+    }
+
+    /**
+     * Read the uploaded blocks, either the raw request body as a single block or each part of a multipart body, handing
+     * each one on as soon as it has been read.
+     */
+    private void readBlocks(HttpExchange httpExchange, Consumer<BlockBuffer> onBlock) throws IOException, APIException {
+        String contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("multipart/form-data")) {
+            int boundaryIndex = contentType.indexOf("boundary=");
+            if (boundaryIndex < 0)
+                throw new APIException("Multipart upload is missing a boundary");
+            String boundary = contentType.substring(boundaryIndex + "boundary=".length()).replace("\"", "");
+            MultipartReceiver.streamFiles(httpExchange.getRequestBody(), boundary,
+                    () -> new BlockBuffer(maxBlockSize), onBlock);
+        } else {
+            String length = httpExchange.getRequestHeaders().getFirst("Content-Length");
+            int expectedSize = length == null ? 0 : (int) Math.min(Long.parseLong(length), maxBlockSize + 1L);
+            if (expectedSize > maxBlockSize)
+                throw new APIException("Block too large, max size is " + maxBlockSize);
+            onBlock.accept(new BlockBuffer(maxBlockSize, expectedSize).readFrom(httpExchange.getRequestBody()));
+        }
+    }
+
+    /**
+     * Stores uploaded blocks in bounded batches as they arrive, so a request with many parts never holds more than one
+     * batch in memory. Only the cid and size of each stored block are kept for the reply.
+     */
+    private class BlockUpload {
+        private final Cid.Codec codec;
+        private final List<BlockBuffer> batch = new ArrayList<>();
+        private long batchBytes = 0;
+        final List<Cid> cids = new ArrayList<>();
+        final List<Integer> sizes = new ArrayList<>();
+
+        BlockUpload(Cid.Codec codec) {
+            this.codec = codec;
+        }
+
+        void add(BlockBuffer block) {
+            if (block.size() == 0)
+                throw new IllegalStateException("Block missing");
+            batch.add(block);
+            batchBytes += block.size();
+            if (batch.size() >= MAX_PUT_BATCH_BLOCKS || batchBytes >= MAX_PUT_BATCH_BYTES)
+                flush();
+        }
+
+        void flush() {
+            if (batch.isEmpty())
+                return;
+            cids.addAll(putBlocks(batch, codec));
+            for (BlockBuffer b : batch)
+                sizes.add(b.size());
+            batch.clear();
+            batchBytes = 0;
+        }
+    }
+
+    /**
+     * Store blocks, skipping any we already have. The hashes computed while they were uploaded are only used to check
+     * which we have; the blockstore hashes the blocks it stores again.
+     */
+    private List<Cid> putBlocks(List<BlockBuffer> blocks, Cid.Codec codec) {
+        List<Cid> cids = blocks.stream()
+                .map(b -> new Cid(1, codec, Multihash.Type.sha2_256, b.sha256()))
+                .collect(Collectors.toList());
+        List<Boolean> present = ipfs.blockstore.hasAll(cids).join();
+        List<byte[]> toStore = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (! present.get(i))
+                toStore.add(blocks.get(i).toByteArray());
+        }
+        if (! toStore.isEmpty())
+            ipfs.blockstore.putAll(toStore, codec).join();
+        return cids;
+    }
+
+    /**
+     * Stream a dag as a CARv1 file, writing each block as soon as it arrives.
+     */
+    private void exportDag(HttpExchange httpExchange, Want root, int maxDepth) throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", "application/vnd.ipld.car");
+        // a zero length means a chunked response, so blocks go out as they are fetched
+        httpExchange.sendResponseHeaders(200, 0);
+        OutputStream out = new BufferedOutputStream(httpExchange.getResponseBody());
+        byte[] header = CborObject.CborMap.build(Map.of(
+                "roots", new CborObject.CborList(List.of(new CborObject.CborMerkleLink(root.cid))),
+                "version", new CborObject.CborLong(1))).toByteArray();
+        Multihash.putUvarint(out, header.length);
+        out.write(header);
+        ipfs.getDag(root, maxDepth, new HashSet<>(), b -> {
+            try {
+                byte[] cid = b.hash.toBytes();
+                Multihash.putUvarint(out, cid.length + b.block.length);
+                out.write(cid);
+                out.write(b.block);
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        out.close();
+    }
 }
@@ -0,0 +1,146 @@
+package org.peergos.net;
+
+import com.sun.net.httpserver.*;
+import io.prometheus.client.*;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * An HTTP server for the API which doesn't tie up a scarce pool thread per request.
+ *
+ * Requests run on virtual threads when the JVM supports them, and otherwise on a pool of maxConcurrent threads. At most
+ * maxConcurrent requests are handled at once. Up to maxQueued more wait for a slot, on the semaphore or in the pool's
+ * queue, and any beyond that are rejected immediately with a 503, so a burst of slow block fetches can't stall the node.
+ */
+public class APIServer {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_CONCURRENT = 200;
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+    public static final int DEFAULT_CONNECTION_BACKLOG = 500;
+
+    private static final Gauge inFlight = Gauge.build()
+            .name("api_requests_in_flight")
+            .help("Number of API requests currently being handled")
+            .register();
+    private static final Gauge queued = Gauge.build()
+            .name("api_requests_queued")
+            .help("Number of API requests waiting for a free slot")
+            .register();
+    private static final Counter rejected = Counter.build()
+            .name("api_requests_rejected_total")
+            .help("Number of API requests rejected because too many were queued")
+            .register();
+    // requests which overflow the pool's queue run here, only to be rejected
+    private static final ThreadLocal<Boolean> rejecting = ThreadLocal.withInitial(() -> false);
+    private static final ExecutorService OVERFLOW = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(() -> {
+            rejecting.set(true);
+            r.run();
+        }, "API request overflow");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final int maxQueued;
+
+    public APIServer(InetSocketAddress address, int maxConcurrent, int maxQueued) throws IOException {
+        this.server = HttpServer.create(address, DEFAULT_CONNECTION_BACKLOG);
+        this.executor = buildExecutor(maxConcurrent, maxQueued);
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxQueued = maxQueued;
+        server.setExecutor(executor);
+    }
+
+    public APIServer(InetSocketAddress address) throws IOException {
+        this(address, DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Virtual threads if the runtime has them (Java 21+), looked up reflectively as we still target Java 11.
+     */
+    private static ExecutorService buildExecutor(int maxConcurrent, int maxQueued) {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            LOG.info("Using virtual threads for API requests");
+            return virtual;
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, maxQueued)), r -> {
+                Thread t = new Thread(r, "API request");
+                t.setDaemon(true);
+                return t;
+            }, (r, full) -> OVERFLOW.execute(r));
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    public void createContext(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> handleLimited(exchange, handler));
+    }
+
+    private void handleLimited(HttpExchange exchange, HttpHandler handler) throws IOException {
+        if (rejecting.get()) {
+            rejected.inc();
+            reject(exchange);
+            return;
+        }
+        if (! permits.tryAcquire()) {
+            if (waiting.incrementAndGet() > maxQueued) {
+                waiting.decrementAndGet();
+                rejected.inc();
+                reject(exchange);
+                return;
+            }
+            queued.inc();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reject(exchange);
+                return;
+            } finally {
+                waiting.decrementAndGet();
+                queued.dec();
+            }
+        }
+        inFlight.inc();
+        try {
+            handler.handle(exchange);
+        } finally {
+            inFlight.dec();
+            permits.release();
+        }
+    }
+
+    private static void reject(HttpExchange exchange) {
+        try {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, e.getMessage(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+}
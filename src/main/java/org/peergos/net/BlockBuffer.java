@@ -0,0 +1,92 @@
+package org.peergos.net;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Collects an uploaded block, failing as soon as it exceeds the maximum block size rather than after reading it all.
+ * The buffer grows with the data rather than being allocated up front, so small blocks stay small. The SHA-256 is
+ * computed in chunks as the data arrives, so it is ready when the upload finishes.
+ */
+public class BlockBuffer extends OutputStream {
+    private static final int HASH_CHUNK_SIZE = 64 * 1024;
+    private static final int MIN_GROWTH = 4 * 1024;
+
+    private final int maxSize;
+    private final MessageDigest sha256;
+    private byte[] buf;
+    private int count = 0, hashed = 0;
+
+    public BlockBuffer(int maxSize, int expectedSize) {
+        this.maxSize = maxSize;
+        this.buf = new byte[Math.max(0, Math.min(maxSize, expectedSize))];
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public BlockBuffer(int maxSize) {
+        this(maxSize, 0);
+    }
+
+    private void ensureCapacity(int extra) throws IOException {
+        int required = count + extra;
+        if (required > maxSize)
+            throw new IOException("Block too large, max size is " + maxSize);
+        if (required > buf.length)
+            buf = Arrays.copyOf(buf, (int) Math.min(maxSize, Math.max(required, Math.max(MIN_GROWTH, 2L * buf.length))));
+    }
+
+    private void hashCompleteChunks() {
+        while (count - hashed >= HASH_CHUNK_SIZE) {
+            sha256.update(buf, hashed, HASH_CHUNK_SIZE);
+            hashed += HASH_CHUNK_SIZE;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+        hashCompleteChunks();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        hashCompleteChunks();
+    }
+
+    /**
+     * Read the rest of a stream into this buffer.
+     */
+    public BlockBuffer readFrom(InputStream in) throws IOException {
+        byte[] tmp = new byte[16 * 1024];
+        int r;
+        while ((r = in.read(tmp)) >= 0)
+            write(tmp, 0, r);
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Finish hashing, after all the data has been written. Only valid once.
+     */
+    public byte[] sha256() {
+        sha256.update(buf, hashed, count - hashed);
+        hashed = count;
+        return sha256.digest();
+    }
+
+    public byte[] toByteArray() {
+        return count == buf.length ? buf : Arrays.copyOf(buf, count);
+    }
+}
@@ -4,12 +4,17 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class MultipartReceiver {
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
 
     public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
         try {
@@ -35,22 +40,129 @@ public class MultipartReceiver {
         }
     }
 
+    /**
+     * Stream each part of a multipart body into its own buffer, handing each one on as soon as it is complete, so that
+     * only one part is held in memory at a time. The body is scanned for boundaries a buffer at a time, and the data
+     * between them is copied out in bulk.
+     */
+    public static <T extends OutputStream> void streamFiles(InputStream rawIn,
+                                                            String boundary,
+                                                            Supplier<T> newPart,
+                                                            Consumer<T> onPart) throws IOException {
+        Scanner in = new Scanner(rawIn, 64 * 1024);
+        ByteArrayOutputStream firstLine = new ByteArrayOutputStream();
+        in.readUntil(NEW_LINE, firstLine, MAX_HEADER_SIZE);
+        String first = new String(firstLine.toByteArray());
+        if (first.length() < 2 || !first.substring(2).equals(boundary))
+            throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first);
+        if (! in.readUntil(DOUBLE_NEW_LINE, new ByteArrayOutputStream(), MAX_HEADER_SIZE))
+            throw new IOException("Multipart body ended in the headers of a part");
+
+        byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+        while (true) {
+            T part = newPart.get();
+            if (! in.readUntil(boundaryBytes, part, Long.MAX_VALUE))
+                throw new IOException("Multipart body ended before the end of a part");
+            onPart.accept(part);
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            boolean complete = in.readUntil(DOUBLE_NEW_LINE, headerBytes, MAX_HEADER_SIZE);
+            byte[] headers = headerBytes.toByteArray();
+            if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()) || Arrays.equals(headers, "--\r\n".getBytes()))
+                return;
+            if (! complete)
+                throw new IOException("Multipart body ended in the headers of a part");
+        }
+    }
+
+    /**
+     * Scans a stream for delimiters a buffer at a time.
+     */
+    private static final class Scanner {
+        private final InputStream in;
+        private final byte[] buf;
+        private int pos = 0, limit = 0;
+
+        Scanner(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buf = new byte[bufferSize];
+        }
+
+        /**
+         * Read more of the stream, keeping any unconsumed bytes.
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r < 0)
+                return false;
+            limit += r;
+            return true;
+        }
+
+        /**
+         * Copy the buffered bytes up to end, failing if more than maxBytes have been copied in total.
+         * @return the total copied
+         */
+        private long copy(int end, OutputStream out, long written, long maxBytes) throws IOException {
+            long total = written + end - pos;
+            if (total > maxBytes)
+                throw new IOException("Multipart header too large, max size is " + maxBytes);
+            out.write(buf, pos, end - pos);
+            pos = end;
+            return total;
+        }
+
+        /**
+         * Copy bytes to out until pattern, which is consumed but not copied, or the end of the stream.
+         * @return whether the pattern was found
+         */
+        boolean readUntil(byte[] pattern, OutputStream out, long maxBytes) throws IOException {
+            long written = 0;
+            while (true) {
+                for (int i = pos; i <= limit - pattern.length; i++) {
+                    if (buf[i] == pattern[0] && Arrays.equals(buf, i, i + pattern.length, pattern, 0, pattern.length)) {
+                        copy(i, out, written, maxBytes);
+                        pos += pattern.length;
+                        return true;
+                    }
+                }
+                // the last few bytes could be the start of the pattern, so keep them until we have read more
+                written = copy(Math.max(pos, limit - pattern.length + 1), out, written, maxBytes);
+                if (! fill()) {
+                    copy(limit, out, written, maxBytes);
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
+        ByteArrayOutputStream prior = new ByteArrayOutputStream();
+        readUntil(pattern, in, prior);
+        return prior.toByteArray();
+    }
+
     /**
      *
      * @param pattern the pattern of bytes to search until
      * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
+     * @param prior where to write the bytes in this stream until pattern is encountered, or the end of the stream is reached
+     * @return whether the pattern was found
      * @throws IOException
      */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
+    private static boolean readUntil(byte[] pattern, InputStream in, OutputStream prior) throws IOException {
         int r;
         int indexInPattern = 0;
         while ((r = in.read()) != -1) {
             if ((byte) r == pattern[indexInPattern]) {
                 indexInPattern++;
                 if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
+                    return true;
             } else {
                 if (indexInPattern > 0)
                     prior.write(pattern, 0, indexInPattern);
@@ -59,12 +171,12 @@ public class MultipartReceiver {
                 if ((byte) r == pattern[0]) {
                     indexInPattern = 1;
                     if (pattern.length == 1)
-                        return prior.toByteArray();
+                        return true;
                 } else
                     prior.write(r);
             }
         }
-        return prior.toByteArray();
+        return false;
     }
 
     private static String readLine(InputStream in, int maxSize) throws IOException {
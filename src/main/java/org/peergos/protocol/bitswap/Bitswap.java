@@ -21,19 +21,28 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
     private static final Logger LOG = Logging.LOG();
     public static int MAX_MESSAGE_SIZE = 2*1024*1024;
     public static final String PROTOCOL_ID = "/ipfs/bitswap/1.2.0";
+    private static final ExecutorService CANCEL_SENDER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Bitswap cancels");
+        t.setDaemon(true);
+        return t;
+    });
 
     private final BitswapEngine engine;
     private final LRUCache<PeerId, Boolean> connected = new LRUCache<>(100);
     private AddressBook addrs;
+    // the host we last sent wants from, which cancels are sent from too
+    private volatile Host us;
+    private final ConcurrentHashMap<PeerId, Set<Want>> pendingCancels = new ConcurrentHashMap<>();
+    private final AtomicBoolean cancelFlushScheduled = new AtomicBoolean(false);
 
     public Bitswap(BitswapEngine engine) {
-        super(PROTOCOL_ID, new BitswapProtocol(engine));
-        this.engine = engine;
+        this(PROTOCOL_ID, engine);
     }
 
     public Bitswap(String protocolId, BitswapEngine engine) {
         super(protocolId, new BitswapProtocol(engine));
         this.engine = engine;
+        engine.setCancelSender(this::queueCancels);
     }
 
     public void setAddressBook(AddressBook addrs) {
@@ -41,17 +50,24 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
         this.addrs = addrs;
     }
 
+    public void shutdown() {
+        engine.shutdown();
+    }
+
     public int maxBlockSize() {
         return engine.maxMessageSize();
     }
 
     @Override
     public void handleConnection(@NotNull Connection connection) {
+        PeerId remoteId = connection.secureSession().getRemoteId();
         // add all outgoing connections to an LRU of candidates
         if (connection.isInitiator()) {
-            PeerId remoteId = connection.secureSession().getRemoteId();
             connected.put(remoteId, true);
         }
+        // a new connection means a new bitswap session, which starts with our full wantlist
+        engine.sentWants().reset(remoteId);
+        connection.closeFuture().thenRun(() -> engine.sentWants().reset(remoteId));
     }
 
     public CompletableFuture<HashedBlock> get(Want hash,
@@ -76,39 +92,126 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
         return results;
     }
 
+    public ProviderStats providerStats() {
+        return engine.providerStats();
+    }
+
+    /**
+     * Register local wants without sending them to anyone.
+     */
+    public List<CompletableFuture<HashedBlock>> want(List<Want> wants) {
+        return wants.stream()
+                .map(engine::getWant)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Add wants to those a single peer has been told about, leaving its other wants in place.
+     */
+    public void sendWantsTo(Host us, Set<Want> wants, PeerId peer) {
+        Set<Want> current = engine.sentWants().wantsFor(peer).stream()
+                .filter(engine::isWanted)
+                .collect(Collectors.toSet());
+        current.addAll(wants);
+        sendWants(us, current, Set.of(peer));
+    }
+
     public Set<PeerId> getBroadcastAudience() {
         HashSet<PeerId> res = new HashSet<>(engine.getConnected());
         res.addAll(connected.keySet());
         return res;
     }
 
+    /**
+     * Send our wants to peers. A single peer is only sent recent wants, but older wants it already has are kept, so a
+     * slow fetch isn't cancelled at a peer which may still send the block.
+     */
     public void sendWants(Host us, Set<PeerId> peers) {
-        Set<Want> wants = engine.getWants(peers);
+        Set<Want> wants = new HashSet<>(engine.getWants(peers));
+        if (peers.size() == 1)
+            engine.sentWants().wantsFor(peers.iterator().next()).stream()
+                    .filter(engine::isWanted)
+                    .forEach(wants::add);
         sendWants(us, wants, peers);
     }
 
+    /**
+     * Bring each peer's view of our wantlist up to date with wants. Peers are only sent the changes since we last told
+     * them, and nothing at all if there are none.
+     */
     public void sendWants(Host us, Set<Want> wants, Set<PeerId> peers) {
+        this.us = us;
         Map<Want, PeerId> haves = engine.getHaves();
         // broadcast to all connected bitswap peers if none are supplied
         Set<PeerId> audience = peers.isEmpty() ? getBroadcastAudience() : peers;
-        List<MessageOuterClass.Message.Wantlist.Entry> wantsProto = wants.stream()
-                .map(want -> MessageOuterClass.Message.Wantlist.Entry.newBuilder()
-                        .setWantType(audience.size() <= 2 || haves.containsKey(want) ?
-                                MessageOuterClass.Message.Wantlist.WantType.Block :
-                                MessageOuterClass.Message.Wantlist.WantType.Have)
-                                .setSendDontHave(true)
-                        .setBlock(ByteString.copyFrom(want.cid.toBytes()))
-                        .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(want.authHex.orElse(""))))
-                        .build())
-                .collect(Collectors.toList());
-        engine.buildAndSendMessages(wantsProto, Collections.emptyList(), Collections.emptyList(),
-                msg -> audience.forEach(peer -> {
-                    try {
-                        dialPeer(us, peer, c -> {
-                            c.send(msg);
-                        });
-                    } catch (Exception e) {}
-                }));
+        long now = System.currentTimeMillis();
+        for (PeerId peer : audience) {
+            PeerWantlists.Delta delta = engine.sentWants().update(peer, wants,
+                    want -> audience.size() <= 2 || haves.containsKey(want) ?
+                            MessageOuterClass.Message.Wantlist.WantType.Block :
+                            MessageOuterClass.Message.Wantlist.WantType.Have, now);
+            if (delta.isEmpty())
+                continue;
+            List<MessageOuterClass.Message.Wantlist.Entry> wantsProto = new ArrayList<>();
+            delta.wants.forEach((want, type) -> wantsProto.add(MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                    .setWantType(type)
+                    .setSendDontHave(true)
+                    .setBlock(ByteString.copyFrom(want.cid.toBytes()))
+                    .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(want.authHex.orElse(""))))
+                    .build()));
+            for (Want cancel : delta.cancels)
+                wantsProto.add(cancelEntry(cancel));
+            engine.buildAndSendMessages(wantsProto, delta.full, Collections.emptyList(), Collections.emptyList(),
+                    msg -> {
+                        try {
+                            dialPeer(us, peer, c -> {
+                                c.send(msg);
+                            });
+                        } catch (Exception e) {
+                            // we don't know what the peer has seen, so start again next time
+                            engine.sentWants().reset(peer);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Cancels arrive on the thread which received a block, so they are batched per peer and sent from another thread.
+     */
+    private void queueCancels(PeerId peer, Set<Want> wants) {
+        pendingCancels.computeIfAbsent(peer, p -> ConcurrentHashMap.newKeySet()).addAll(wants);
+        if (cancelFlushScheduled.compareAndSet(false, true))
+            CANCEL_SENDER.submit(this::flushCancels);
+    }
+
+    private void flushCancels() {
+        cancelFlushScheduled.set(false);
+        Host host = us;
+        for (PeerId peer : new ArrayList<>(pendingCancels.keySet())) {
+            Set<Want> cancels = pendingCancels.remove(peer);
+            if (cancels == null || cancels.isEmpty() || host == null)
+                continue;
+            List<MessageOuterClass.Message.Wantlist.Entry> entries = cancels.stream()
+                    .map(Bitswap::cancelEntry)
+                    .collect(Collectors.toList());
+            engine.buildAndSendMessages(entries, false, Collections.emptyList(), Collections.emptyList(),
+                    msg -> {
+                        try {
+                            dialPeer(host, peer, c -> c.send(msg));
+                        } catch (Exception e) {
+                            LOG.fine("Couldn't send cancels to " + peer + ": " + e.getMessage());
+                            engine.sentWants().reset(peer);
+                        }
+                    });
+        }
+    }
+
+    static MessageOuterClass.Message.Wantlist.Entry cancelEntry(Want w) {
+        return MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                .setCancel(true)
+                .setBlock(ByteString.copyFrom(w.cid.toBytes()))
+                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(w.authHex.orElse(""))))
+                .build();
     }
 
     private void dialPeer(Host us, PeerId peer, Consumer<BitswapController> action) {
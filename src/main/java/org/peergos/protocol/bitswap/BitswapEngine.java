@@ -22,6 +22,26 @@ import java.util.stream.*;
 
 public class BitswapEngine {
     private static final Logger LOG = Logging.LOG();
+    private static final ExecutorService RESPONDER_POOL =
+            TraceLogger.propagating(BitswapResponder.buildExecutor(BitswapResponder.DEFAULT_THREADS));
+    public static final long MAX_WANT_AGE_MILLIS = 10 * 60 * 1000;
+    private static final ScheduledExecutorService WANT_EXPIRY = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Bitswap want expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Counter duplicateBlocks = Counter.build()
+            .name("bitswap_duplicate_blocks_total")
+            .help("Number of blocks received which we didn't want, or had already received")
+            .register();
+    private static final Counter duplicateBlockBytes = Counter.build()
+            .name("bitswap_duplicate_block_bytes_total")
+            .help("Total size of blocks received which we didn't want, or had already received")
+            .register();
+    private static final Counter expiredWants = Counter.build()
+            .name("bitswap_expired_wants_total")
+            .help("Number of wants which timed out without receiving the block")
+            .register();
 
     private final Blockstore store;
     private final int maxMessageSize;
@@ -29,12 +49,29 @@ public class BitswapEngine {
     private final ConcurrentHashMap<Want, PeerId> blockHaves = new ConcurrentHashMap<>();
     private final Set<PeerId> connections = new HashSet<>();
     private final BlockRequestAuthoriser authoriser;
+    private final BitswapScheduler scheduler;
+    private final BitswapResponder responder;
+    private final PeerWantlists sentWants = new PeerWantlists(PeerWantlists.DEFAULT_RESEND_INTERVAL_MILLIS);
     private AddressBook addressBook;
+    private volatile BiConsumer<PeerId, Set<Want>> cancelSender = (p, w) -> {};
+    private final ProviderStats providerStats = new ProviderStats();
+    private final ScheduledFuture<?> expiry;
 
     public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize) {
         this.store = store;
         this.authoriser = authoriser;
         this.maxMessageSize = maxMessageSize;
+        this.scheduler = new BitswapScheduler(BitswapScheduler.DEFAULT_MAX_CONCURRENT,
+                BitswapScheduler.maxBytesInFlightPerPeer(maxMessageSize));
+        this.responder = new BitswapResponder(store, authoriser, maxMessageSize, scheduler, RESPONDER_POOL);
+        this.expiry = WANT_EXPIRY.scheduleWithFixedDelay(() -> expireWants(MAX_WANT_AGE_MILLIS), 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop expiring wants, so the shared expiry thread doesn't keep this engine alive.
+     */
+    public void shutdown() {
+        expiry.cancel(false);
     }
 
     public int maxMessageSize() {
@@ -45,17 +82,71 @@ public class BitswapEngine {
         this.addressBook = addrs;
     }
 
+    public BitswapScheduler scheduler() {
+        return scheduler;
+    }
+
+    public PeerWantlists sentWants() {
+        return sentWants;
+    }
+
+    public ProviderStats providerStats() {
+        return providerStats;
+    }
+
+    public boolean isWanted(Want w) {
+        return localWants.containsKey(w);
+    }
+
+    /**
+     * Set how cancels are sent to peers we have told about a want, once the want is satisfied or times out.
+     */
+    public void setCancelSender(BiConsumer<PeerId, Set<Want>> cancelSender) {
+        this.cancelSender = cancelSender;
+    }
+
+    /**
+     * Forget a want, and tell any peers we asked for it (other than the one which sent it) to stop. Only the given
+     * waiter is removed, so a new want for the same block created in the meantime is left intact.
+     */
+    private void removeWant(Want w, WantResult waiter, Optional<PeerId> satisfiedBy, int blockSize) {
+        localWants.remove(w, waiter);
+        blockHaves.remove(w);
+        Map<PeerId, Long> toCancel = sentWants.cancel(w);
+        satisfiedBy.ifPresent(peer -> {
+            Long sentTime = toCancel.remove(peer);
+            if (sentTime != null)
+                providerStats.recordBlock(peer, System.currentTimeMillis() - sentTime, blockSize);
+        });
+        for (PeerId peer : toCancel.keySet())
+            cancelSender.accept(peer, Set.of(w));
+    }
+
+    /**
+     * Fail and cancel any wants older than maxAgeMillis.
+     */
+    public void expireWants(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        for (Map.Entry<Want, WantResult> e : localWants.entrySet()) {
+            if (e.getValue().creationTime >= cutoff)
+                continue;
+            if (localWants.remove(e.getKey(), e.getValue())) {
+                expiredWants.inc();
+                removeWant(e.getKey(), e.getValue(), Optional.empty(), 0);
+                e.getValue().result.completeExceptionally(new TimeoutException("Timed out waiting for " + e.getKey().cid));
+            }
+        }
+        // a have can race with its want being removed
+        blockHaves.keySet().removeIf(w -> ! localWants.containsKey(w));
+    }
+
     public synchronized void addConnection(PeerId peer, Multiaddr addr) {
         connections.add(peer);
     }
 
     public CompletableFuture<HashedBlock> getWant(Want w) {
-        WantResult existing = localWants.get(w);
-        if (existing != null)
-            return existing.result;
-        WantResult res = new WantResult(System.currentTimeMillis());
-        localWants.put(w, res);
-        return res.result;
+        return localWants.computeIfAbsent(w,
+                x -> new WantResult(System.currentTimeMillis(), TraceLogger.getInstance().currentSpan())).result;
     }
 
     public boolean hasWants() {
@@ -73,9 +164,12 @@ public class BitswapEngine {
     private static final class WantResult {
         public final CompletableFuture<HashedBlock> result = new CompletableFuture<>();
         public final long creationTime;
+        // the trace this want was made in, to trace the block arriving
+        public final Optional<Span> trace;
 
-        public WantResult(long creationTime) {
+        public WantResult(long creationTime, Optional<Span> trace) {
             this.creationTime = creationTime;
+            this.trace = trace;
         }
     }
 
@@ -95,84 +189,30 @@ public class BitswapEngine {
         return blockHaves;
     }
 
-    private static byte[] prefixBytes(Cid c) {
-        ByteArrayOutputStream res = new ByteArrayOutputStream();
-        try {
-            Cid.putUvarint(res, c.version);
-            Cid.putUvarint(res, c.codec.type);
-            Cid.putUvarint(res, c.getType().index);
-            Cid.putUvarint(res, c.getType().length);
-            ;
-            return res.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     public void receiveMessage(MessageOuterClass.Message msg, Stream source, Counter sentBytes) {
         // TODO(sonudoo): This logging should be performed by handler. Requires some
         // code refactoring.
         TraceLogger.getInstance().HandleBitswapReceive(msg, source.remotePeerId());
-        List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
-        List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
-        int messageSize = 0;
         Multihash peerM = Multihash.deserialize(source.remotePeerId().getBytes());
         Cid sourcePeerId = new Cid(1, Cid.Codec.Libp2pKey, peerM.getType(), peerM.getHash());
-        if (msg.hasWantlist()) {
-            for (MessageOuterClass.Message.Wantlist.Entry e : msg.getWantlist().getEntriesList()) {
-                Cid c = Cid.cast(e.getBlock().toByteArray());
-                Optional<String> auth = e.getAuth().isEmpty() ? Optional.empty()
-                        : Optional.of(ArrayOps.bytesToHex(e.getAuth().toByteArray()));
-                boolean sendDontHave = e.getSendDontHave();
-                boolean wantBlock = e.getWantType().getNumber() == 0;
-                if (wantBlock) {
-                    boolean blockPresent = store.has(c).join();
-                    if (blockPresent && authoriser.allowRead(c, sourcePeerId, auth.orElse("")).join()) {
-                        MessageOuterClass.Message.Block blockP = MessageOuterClass.Message.Block.newBuilder()
-                                .setPrefix(ByteString.copyFrom(prefixBytes(c)))
-                                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth.orElse(""))))
-                                .setData(ByteString.copyFrom(store.get(c).join().get()))
-                                .build();
-                        int blockSize = blockP.getSerializedSize();
-                        if (blockSize + messageSize > maxMessageSize) {
-                            buildAndSendMessages(Collections.emptyList(), presences, blocks, source::writeAndFlush);
-                            presences = new ArrayList<>();
-                            blocks = new ArrayList<>();
-                            messageSize = 0;
-                        }
-                        messageSize += blockSize;
-                        blocks.add(blockP);
-                    } else if (sendDontHave) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    }
-                } else {
-                    boolean hasBlock = store.has(c).join();
-                    if (hasBlock) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.Have)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    } else if (sendDontHave) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    }
+        List<MessageOuterClass.Message.Wantlist.Entry> wants = msg.getWantlist().getEntriesList().stream()
+                .filter(e -> ! e.getCancel())
+                .collect(Collectors.toList());
+        if (! wants.isEmpty()) {
+            // replies are sent from the responder threads, in the context of the server span
+            responder.respond(wants, source.remotePeerId(), sourcePeerId, TraceLogger.wrapConsumer((reply, last) -> {
+                if (reply.getPayloadCount() > 0 || reply.getBlockPresencesCount() > 0) {
+                    sentBytes.inc(reply.getSerializedSize());
+                    source.writeAndFlush(reply);
                 }
-            }
+                // TODO(sonudoo): This logging should be performed by handler.
+                if (last)
+                    TraceLogger.getInstance().HandleBitswapServerEnd(reply, source.remotePeerId());
+            }));
         }
+        // don't leave the server span on the event loop thread
+        TraceLogger.getInstance().endTrace();
+        Map<Span, Integer> tracedBlocks = new HashMap<>();
         for (MessageOuterClass.Message.Block block : msg.getPayloadList()) {
             byte[] cidPrefix = block.getPrefix().toByteArray();
             Optional<String> auth = block.getAuth().isEmpty() ? Optional.empty()
@@ -189,17 +229,23 @@ public class BitswapEngine {
                     byte[] hash = Hash.sha256(data);
                     Cid c = new Cid(version, codec, type, hash);
                     Want w = new Want(c, auth);
-                    WantResult waiter = localWants.get(w);
+                    WantResult waiter = localWants.remove(w);
                     if (waiter != null) {
+                        removeWant(w, waiter, Optional.of(source.remotePeerId()), data.length);
+                        waiter.trace.ifPresent(span -> tracedBlocks.merge(span, 1, Integer::sum));
                         waiter.result.complete(new HashedBlock(c, data));
-                        localWants.remove(w);
-                    } else
-                        LOG.info("Received block we don't want: " + c + " from " + sourcePeerId.bareMultihash());
+                    } else {
+                        duplicateBlocks.inc();
+                        duplicateBlockBytes.inc(data.length);
+                        LOG.fine("Received block we don't want: " + c + " from " + sourcePeerId.bareMultihash());
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        tracedBlocks.forEach((span, count) ->
+                TraceLogger.getInstance().HandleBitswapClientEnd(span, source.remotePeerId(), count));
         for (MessageOuterClass.Message.BlockPresence blockPresence : msg.getBlockPresencesList()) {
             Cid c = Cid.cast(blockPresence.getCid().toByteArray());
             Optional<String> auth = blockPresence.getAuth().isEmpty() ? Optional.empty()
@@ -210,28 +256,28 @@ public class BitswapEngine {
                 blockHaves.put(w, source.remotePeerId());
             }
         }
+    }
 
-        if (presences.isEmpty() && blocks.isEmpty())
-            return;
-
-        buildAndSendMessages(Collections.emptyList(), presences, blocks, reply -> {
-            // TODO(sonudoo): Propagating the context id in response shouldn't be required.
-            // But the current handler for the response on client side runs on a separate
-            // thread which doesn't inherit the trace context.
-            reply = reply.toBuilder().setTraceId(msg.getTraceId()).build();
-            sentBytes.inc(reply.getSerializedSize());
-            source.writeAndFlush(reply);
-            // TODO(sonudoo): This logging should be performed by handler.
-            TraceLogger.getInstance().HandleBitswapServerEnd(reply, source.remotePeerId());
-        });
+    public void buildAndSendMessages(List<MessageOuterClass.Message.Wantlist.Entry> wants,
+            List<MessageOuterClass.Message.BlockPresence> presences,
+            List<MessageOuterClass.Message.Block> blocks,
+            Consumer<MessageOuterClass.Message> sender) {
+        buildAndSendMessages(wants, false, presences, blocks, sender);
     }
 
+    /**
+     * @param fullWantlist whether wants is our full wantlist, replacing anything the recipient has from us. Only the
+     *                     first message is marked as full, and any later ones add to it.
+     */
     public void buildAndSendMessages(List<MessageOuterClass.Message.Wantlist.Entry> wants,
+            boolean fullWantlist,
             List<MessageOuterClass.Message.BlockPresence> presences,
             List<MessageOuterClass.Message.Block> blocks,
             Consumer<MessageOuterClass.Message> sender) {
         // make sure we stay within the message size limit
         MessageOuterClass.Message.Builder builder = MessageOuterClass.Message.newBuilder();
+        if (fullWantlist)
+            builder.setWantlist(MessageOuterClass.Message.Wantlist.newBuilder().setFull(true).build());
         int messageSize = 0;
         for (int i = 0; i < wants.size(); i++) {
             MessageOuterClass.Message.Wantlist.Entry want = wants.get(i);
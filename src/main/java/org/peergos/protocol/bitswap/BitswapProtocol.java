@@ -29,6 +29,26 @@ public class BitswapProtocol extends ProtobufProtocolHandler<BitswapController>
             .name("bitswap_responder_sent_bytes")
             .help("Total sent bytes in bitswap responder")
             .register();
+    // the totals aren't labelled by peer, which would add a series for every peer that ever connects
+    static final Gauge queueDepth = Gauge.build()
+            .name("bitswap_responder_queue_depth")
+            .help("Wantlist entries queued in the bitswap responder")
+            .register();
+    static final Counter servedBytes = Counter.build()
+            .name("bitswap_responder_served_bytes")
+            .help("Total block bytes served by the bitswap responder")
+            .register();
+    // only the top BitswapScheduler.METRIC_PEERS peers are labelled, and the rest are cleared on each update
+    static final Gauge peerQueueDepth = Gauge.build()
+            .name("bitswap_responder_peer_queue_depth")
+            .help("Wantlist entries queued in the bitswap responder for the peers with the deepest queues")
+            .labelNames("peer")
+            .register();
+    static final Gauge peerServedBytes = Gauge.build()
+            .name("bitswap_responder_peer_served_bytes")
+            .help("Block bytes served by the bitswap responder to the peers served the most")
+            .labelNames("peer")
+            .register();
     private static final Counter blockedConnections = Counter.build()
             .name("bitswap_blocked_connections")
             .help("Total connection attempts blocked in bitswap")
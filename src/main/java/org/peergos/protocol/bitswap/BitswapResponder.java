@@ -0,0 +1,230 @@
+package org.peergos.protocol.bitswap;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.pb.*;
+import org.peergos.util.*;
+import org.peergos.util.Logging;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/**
+ * Answers the wantlist of an incoming bitswap message away from the network thread that delivered it.
+ *
+ * Each block read (authorisation and block read) is an independent asynchronous task, which is queued on the
+ * requesting peer's ledger in the BitswapScheduler so that one large wantlist cannot starve other peers. Replies
+ * are streamed back to the requester as soon as they reach the maximum message size, rather than after the whole
+ * wantlist has been read.
+ */
+public class BitswapResponder {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_THREADS = 16;
+
+    private final Blockstore store;
+    private final BlockRequestAuthoriser authoriser;
+    private final int maxMessageSize;
+    private final BitswapScheduler scheduler;
+    private final Executor exec;
+
+    public BitswapResponder(Blockstore store,
+                            BlockRequestAuthoriser authoriser,
+                            int maxMessageSize,
+                            BitswapScheduler scheduler,
+                            Executor exec) {
+        this.store = store;
+        this.authoriser = authoriser;
+        this.maxMessageSize = maxMessageSize;
+        this.scheduler = scheduler;
+        this.exec = exec;
+    }
+
+    public static ExecutorService buildExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Bitswap responder " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * The presence of every entry is looked up in one batch, which answers want-haves and absent blocks directly. Only
+     * the reads of present blocks are queued with the scheduler.
+     *
+     * @param wants the wantlist entries to answer
+     * @param peer the requesting peer
+     * @param sourcePeerId the requesting peer as a cid, for the authoriser
+     * @param sender called with each reply message, and whether it is the last reply for this wantlist. The last reply
+     *               may be empty, and should then not be sent.
+     * @return a future which completes when all entries have been answered
+     */
+    public CompletableFuture<Void> respond(List<MessageOuterClass.Message.Wantlist.Entry> wants,
+                                           PeerId peer,
+                                           Cid sourcePeerId,
+                                           BiConsumer<MessageOuterClass.Message, Boolean> sender) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (wants.isEmpty()) {
+            done.complete(null);
+            return done;
+        }
+        List<Cid> cids = wants.stream()
+                .map(e -> Cid.cast(e.getBlock().toByteArray()))
+                .collect(Collectors.toList());
+        ReplyBuffer reply = new ReplyBuffer(maxMessageSize, peer, scheduler, sender);
+        // one extra count for the loop dispatching the reads, so we don't finish before it has
+        AtomicInteger outstanding = new AtomicInteger(1);
+        Runnable finished = () -> {
+            if (outstanding.decrementAndGet() == 0) {
+                try {
+                    reply.flush(true);
+                } finally {
+                    done.complete(null);
+                }
+            }
+        };
+        CompletableFuture.supplyAsync(() -> store.hasAll(cids).join(), exec)
+                .whenComplete((present, err) -> {
+                    if (err != null) {
+                        LOG.log(Level.WARNING, err.getMessage(), err);
+                        finished.run();
+                        return;
+                    }
+                    for (int i = 0; i < wants.size(); i++) {
+                        MessageOuterClass.Message.Wantlist.Entry e = wants.get(i);
+                        Cid c = cids.get(i);
+                        boolean wantBlock = e.getWantType().getNumber() == 0;
+                        if (! present.get(i)) {
+                            if (e.getSendDontHave())
+                                reply.addPresence(presence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+                        } else if (! wantBlock) {
+                            reply.addPresence(presence(c, MessageOuterClass.Message.BlockPresenceType.Have));
+                        } else {
+                            outstanding.incrementAndGet();
+                            scheduler.submit(peer, () -> CompletableFuture.supplyAsync(() -> e, exec)
+                                            .thenCompose(entry -> sendBlock(entry, c, sourcePeerId, reply)))
+                                    .whenComplete((r, t) -> {
+                                        if (t != null)
+                                            LOG.log(Level.WARNING, t.getMessage(), t);
+                                        finished.run();
+                                    });
+                        }
+                    }
+                    finished.run();
+                });
+        return done;
+    }
+
+    private CompletableFuture<Void> sendBlock(MessageOuterClass.Message.Wantlist.Entry e,
+                                              Cid c,
+                                              Cid sourcePeerId,
+                                              ReplyBuffer reply) {
+        Optional<String> auth = e.getAuth().isEmpty() ? Optional.empty()
+                : Optional.of(ArrayOps.bytesToHex(e.getAuth().toByteArray()));
+        boolean sendDontHave = e.getSendDontHave();
+        return authoriser.allowRead(c, sourcePeerId, auth.orElse(""))
+                .thenCompose(allowed -> allowed ?
+                        store.getBuffer(c) :
+                        Futures.of(Optional.<ByteBuffer>empty()))
+                .thenAccept(data -> {
+                    if (data.isPresent()) {
+                        reply.addBlock(MessageOuterClass.Message.Block.newBuilder()
+                                .setPrefix(ByteString.copyFrom(prefixBytes(c)))
+                                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth.orElse(""))))
+                                .setData(UnsafeByteOperations.unsafeWrap(data.get()))
+                                .build());
+                    } else if (sendDontHave)
+                        reply.addPresence(presence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+                });
+    }
+
+    private static MessageOuterClass.Message.BlockPresence presence(Cid c,
+                                                                    MessageOuterClass.Message.BlockPresenceType type) {
+        return MessageOuterClass.Message.BlockPresence.newBuilder()
+                .setCid(ByteString.copyFrom(c.toBytes()))
+                .setType(type)
+                .build();
+    }
+
+    static byte[] prefixBytes(Cid c) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try {
+            Cid.putUvarint(res, c.version);
+            Cid.putUvarint(res, c.codec.type);
+            Cid.putUvarint(res, c.getType().index);
+            Cid.putUvarint(res, c.getType().length);
+            return res.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Accumulates presences and blocks from concurrently resolving entries, and sends a reply whenever the next item
+     * would take it over the maximum message size. Block bytes are charged to the peer's ledger until they are sent.
+     */
+    private static final class ReplyBuffer {
+        private final int maxMessageSize;
+        private final PeerId peer;
+        private final BitswapScheduler scheduler;
+        private final BiConsumer<MessageOuterClass.Message, Boolean> sender;
+        private MessageOuterClass.Message.Builder builder = MessageOuterClass.Message.newBuilder();
+        private int messageSize = 0;
+        private long blockBytes = 0;
+
+        public ReplyBuffer(int maxMessageSize,
+                           PeerId peer,
+                           BitswapScheduler scheduler,
+                           BiConsumer<MessageOuterClass.Message, Boolean> sender) {
+            this.maxMessageSize = maxMessageSize;
+            this.peer = peer;
+            this.scheduler = scheduler;
+            this.sender = sender;
+        }
+
+        public synchronized void addPresence(MessageOuterClass.Message.BlockPresence presence) {
+            int size = presence.getSerializedSize();
+            if (size + messageSize > maxMessageSize)
+                flush(false);
+            messageSize += size;
+            builder.addBlockPresences(presence);
+        }
+
+        public synchronized void addBlock(MessageOuterClass.Message.Block block) {
+            int size = block.getSerializedSize();
+            if (size + messageSize > maxMessageSize)
+                flush(false);
+            messageSize += size;
+            blockBytes += size;
+            scheduler.charge(peer, size);
+            builder.addPayload(block);
+        }
+
+        /**
+         * @param last whether this is the final reply, which is always passed to the sender, even if it is empty
+         */
+        public synchronized void flush(boolean last) {
+            if (messageSize == 0 && ! last)
+                return;
+            MessageOuterClass.Message reply = builder.build();
+            long sentBlockBytes = blockBytes;
+            builder = MessageOuterClass.Message.newBuilder();
+            messageSize = 0;
+            blockBytes = 0;
+            try {
+                sender.accept(reply, last);
+            } finally {
+                scheduler.release(peer, sentBlockBytes);
+            }
+        }
+    }
+}
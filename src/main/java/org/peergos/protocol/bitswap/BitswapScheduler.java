@@ -0,0 +1,245 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.util.Logging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/**
+ * Schedules the work of answering wantlists fairly between peers, in the spirit of go-bitswap's decision engine.
+ *
+ * Each peer has a ledger with a queue of pending entries. Peers with queued work are served in weighted round-robin
+ * order: a peer with weight w gets up to w entries started per turn. At most maxConcurrent entries run at once across
+ * all peers, and a peer is skipped while the block data read for it, but not yet sent, exceeds maxBytesInFlightPerPeer.
+ *
+ * A peer's ledger is dropped when it goes idle, but the bytes served to it are remembered for the most recently active
+ * peers. Queue depth and served bytes are exported per peer for the top few peers only, to bound the metric series.
+ */
+public class BitswapScheduler {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_CONCURRENT = 64;
+    public static final long DEFAULT_MAX_BYTES_IN_FLIGHT_PER_PEER = 8 * 1024 * 1024;
+    public static final int MAX_REMEMBERED_PEERS = 10_000;
+    public static final int METRIC_PEERS = 20;
+    private static final long METRICS_INTERVAL_MILLIS = 10_000;
+
+    /**
+     * A reply is only sent, releasing its bytes, once it reaches the max message size, so a peer's limit must leave room
+     * for more than one full message or its queue would never be served again.
+     */
+    public static long maxBytesInFlightPerPeer(int maxMessageSize) {
+        return Math.max(DEFAULT_MAX_BYTES_IN_FLIGHT_PER_PEER, 2L * maxMessageSize);
+    }
+
+    private final int maxConcurrent;
+    private final long maxBytesInFlightPerPeer;
+    private final Map<PeerId, PeerLedger> ledgers = new HashMap<>();
+    private final Map<PeerId, Integer> weights = new HashMap<>();
+    private final Deque<PeerLedger> active = new ArrayDeque<>();
+    // bytes served to peers whose ledgers have been dropped while idle, least recently active first
+    private final LinkedHashMap<PeerId, Long> servedToIdlePeers = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PeerId, Long> eldest) {
+            return size() > MAX_REMEMBERED_PEERS;
+        }
+    };
+    private int running = 0;
+    private long lastMetricsUpdate = 0;
+
+    public BitswapScheduler(int maxConcurrent, long maxBytesInFlightPerPeer) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxBytesInFlightPerPeer = maxBytesInFlightPerPeer;
+    }
+
+    static final class Job {
+        final PeerLedger ledger;
+        final Supplier<CompletableFuture<Void>> task;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Job(PeerLedger ledger, Supplier<CompletableFuture<Void>> task) {
+            this.ledger = ledger;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Set the share of the responder a peer gets relative to other peers with queued work. The default weight is 1.
+     */
+    public synchronized void setWeight(PeerId peer, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        weights.put(peer, weight);
+        PeerLedger ledger = ledgers.get(peer);
+        if (ledger != null)
+            ledger.weight = weight;
+    }
+
+    public synchronized int queueDepth(PeerId peer) {
+        PeerLedger ledger = ledgers.get(peer);
+        return ledger == null ? 0 : ledger.queue.size();
+    }
+
+    public synchronized long servedBytes(PeerId peer) {
+        PeerLedger ledger = ledgers.get(peer);
+        return ledger != null ? ledger.bytesServed : servedToIdlePeers.getOrDefault(peer, 0L);
+    }
+
+    /**
+     * @return up to n peers with the most queued entries, deepest first
+     */
+    public synchronized Map<PeerId, Integer> deepestQueues(int n) {
+        return ledgers.values().stream()
+                .filter(l -> ! l.queue.isEmpty())
+                .sorted(Comparator.comparingInt((PeerLedger l) -> l.queue.size()).reversed())
+                .limit(n)
+                .collect(Collectors.toMap(l -> l.peer, l -> l.queue.size(), (a, b) -> a, LinkedHashMap::new));
+    }
+
+    /**
+     * @return up to n peers, including remembered idle peers, which have been served the most bytes, most first
+     */
+    public synchronized Map<PeerId, Long> mostServed(int n) {
+        Map<PeerId, Long> served = new HashMap<>(servedToIdlePeers);
+        for (PeerLedger ledger : ledgers.values())
+            served.put(ledger.peer, ledger.bytesServed);
+        return served.entrySet().stream()
+                .filter(e -> e.getValue() > 0)
+                .sorted(Map.Entry.<PeerId, Long>comparingByValue().reversed())
+                .limit(n)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+    }
+
+    public CompletableFuture<Void> submit(PeerId peer, Supplier<CompletableFuture<Void>> task) {
+        Job job;
+        synchronized (this) {
+            PeerLedger ledger = ledgers.computeIfAbsent(peer, this::newLedger);
+            job = new Job(ledger, task);
+            ledger.queue.add(job);
+            if (! ledger.active) {
+                ledger.active = true;
+                active.addLast(ledger);
+            }
+            BitswapProtocol.queueDepth.inc();
+        }
+        dispatch();
+        return job.result;
+    }
+
+    /**
+     * Record that block data has been read for a peer and is waiting to be sent.
+     */
+    public synchronized void charge(PeerId peer, long bytes) {
+        PeerLedger ledger = ledgers.get(peer);
+        if (ledger != null)
+            ledger.bytesInFlight += bytes;
+    }
+
+    /**
+     * Record that block data previously charged to a peer has been sent.
+     */
+    public void release(PeerId peer, long bytes) {
+        synchronized (this) {
+            PeerLedger ledger = ledgers.get(peer);
+            if (ledger == null)
+                return;
+            ledger.bytesInFlight -= bytes;
+            ledger.bytesServed += bytes;
+            removeIfIdle(ledger);
+        }
+        BitswapProtocol.servedBytes.inc(bytes);
+        dispatch();
+    }
+
+    private PeerLedger newLedger(PeerId peer) {
+        PeerLedger ledger = new PeerLedger(peer, weights.getOrDefault(peer, 1));
+        Long served = servedToIdlePeers.remove(peer);
+        if (served != null)
+            ledger.bytesServed = served;
+        return ledger;
+    }
+
+    private void removeIfIdle(PeerLedger ledger) {
+        if (! ledger.isIdle())
+            return;
+        ledgers.remove(ledger.peer);
+        if (ledger.bytesServed > 0)
+            servedToIdlePeers.put(ledger.peer, ledger.bytesServed);
+    }
+
+    private void updatePeerMetrics() {
+        Map<PeerId, Integer> depths;
+        Map<PeerId, Long> served;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastMetricsUpdate < METRICS_INTERVAL_MILLIS)
+                return;
+            lastMetricsUpdate = now;
+            depths = deepestQueues(METRIC_PEERS);
+            served = mostServed(METRIC_PEERS);
+        }
+        BitswapProtocol.peerQueueDepth.clear();
+        depths.forEach((peer, depth) -> BitswapProtocol.peerQueueDepth.labels(peer.toBase58()).set(depth));
+        BitswapProtocol.peerServedBytes.clear();
+        served.forEach((peer, bytes) -> BitswapProtocol.peerServedBytes.labels(peer.toBase58()).set(bytes));
+    }
+
+    private void dispatch() {
+        List<Job> toStart = new ArrayList<>();
+        synchronized (this) {
+            int blocked = 0;
+            while (running < maxConcurrent && ! active.isEmpty() && blocked < active.size()) {
+                PeerLedger ledger = active.peekFirst();
+                if (ledger.bytesInFlight >= maxBytesInFlightPerPeer) {
+                    // this peer has enough data waiting to be sent, give the others a turn
+                    active.addLast(active.pollFirst());
+                    blocked++;
+                    continue;
+                }
+                Job job = ledger.queue.poll();
+                BitswapProtocol.queueDepth.dec();
+                running++;
+                ledger.running++;
+                ledger.credit--;
+                toStart.add(job);
+                blocked = 0;
+                if (ledger.queue.isEmpty()) {
+                    active.pollFirst();
+                    ledger.active = false;
+                    ledger.credit = ledger.weight;
+                } else if (ledger.credit <= 0) {
+                    ledger.credit = ledger.weight;
+                    active.addLast(active.pollFirst());
+                }
+            }
+        }
+        for (Job job : toStart)
+            start(job);
+        updatePeerMetrics();
+    }
+
+    private void start(Job job) {
+        CompletableFuture<Void> res;
+        try {
+            res = job.task.get();
+        } catch (Throwable t) {
+            res = CompletableFuture.failedFuture(t);
+        }
+        res.whenComplete((r, t) -> {
+            synchronized (this) {
+                running--;
+                job.ledger.running--;
+                removeIfIdle(job.ledger);
+            }
+            if (t != null) {
+                LOG.log(Level.FINE, t.getMessage(), t);
+                job.result.completeExceptionally(t);
+            } else
+                job.result.complete(null);
+            dispatch();
+        });
+    }
+}
@@ -0,0 +1,149 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * A fetch of a group of wants from a set of providers.
+ *
+ * The wants are split across the best few providers, ranked by their observed latency and throughput. Any want still
+ * outstanding after a provider's adaptive timeout is also asked of the next best provider which hasn't been tried for
+ * it. Once every provider has been tried and timed out the want fails with a TimeoutException.
+ *
+ * Providers can be added while the session runs, e.g. as a provider lookup finds them. Until the session has as many
+ * as its parallelism, each new provider is asked for every outstanding want, after that it joins the retry order.
+ */
+public class BitswapSession {
+    public static final int DEFAULT_PARALLELISM = 3;
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Bitswap session timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // retries dial their next provider, so they get their own threads rather than the common pool's
+    private static final ExecutorService RETRIES = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "Bitswap session retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Fetch {
+        final Want want;
+        final CompletableFuture<HashedBlock> block;
+        final CompletableFuture<HashedBlock> result = new CompletableFuture<>();
+        final Set<PeerId> tried = new HashSet<>();
+        PeerId latest;
+
+        Fetch(Want want, CompletableFuture<HashedBlock> block) {
+            this.want = want;
+            this.block = block;
+            block.whenComplete((b, t) -> {
+                if (t != null)
+                    result.completeExceptionally(t);
+                else
+                    result.complete(b);
+            });
+        }
+    }
+
+    private final Bitswap bitswap;
+    private final Host us;
+    private final int parallelism;
+    private final List<PeerId> ranked;
+    private final List<Fetch> active = new ArrayList<>();
+
+    public BitswapSession(Bitswap bitswap, Host us, Set<PeerId> providers, int parallelism) {
+        this.bitswap = bitswap;
+        this.us = us;
+        this.parallelism = parallelism;
+        this.ranked = new ArrayList<>(bitswap.providerStats().rank(providers));
+    }
+
+    public BitswapSession(Bitswap bitswap, Host us, Set<PeerId> providers) {
+        this(bitswap, us, providers, DEFAULT_PARALLELISM);
+    }
+
+    public List<CompletableFuture<HashedBlock>> get(List<Want> wants) {
+        boolean noProviders;
+        synchronized (this) {
+            noProviders = ranked.isEmpty();
+        }
+        if (noProviders)
+            return bitswap.get(wants, us, Collections.emptySet());
+        List<Fetch> fetches = new ArrayList<>();
+        Map<PeerId, List<Fetch>> assigned = new LinkedHashMap<>();
+        synchronized (this) {
+            List<CompletableFuture<HashedBlock>> blocks = bitswap.want(wants);
+            for (int i = 0; i < wants.size(); i++)
+                fetches.add(new Fetch(wants.get(i), blocks.get(i)));
+            active.addAll(fetches);
+
+            // split the wants round robin across the best providers
+            int width = Math.min(parallelism, ranked.size());
+            for (int i = 0; i < fetches.size(); i++)
+                assigned.computeIfAbsent(ranked.get(i % width), p -> new ArrayList<>()).add(fetches.get(i));
+        }
+        assigned.forEach(this::send);
+
+        return fetches.stream()
+                .map(f -> f.result)
+                .collect(Collectors.toList());
+    }
+
+    public void addProvider(PeerId provider) {
+        List<Fetch> outstanding;
+        synchronized (this) {
+            if (ranked.contains(provider))
+                return;
+            ranked.add(provider);
+            if (ranked.size() > parallelism)
+                return;
+            active.removeIf(f -> f.block.isDone());
+            outstanding = new ArrayList<>(active);
+        }
+        send(provider, outstanding);
+    }
+
+    private void send(PeerId provider, List<Fetch> fetches) {
+        List<Fetch> outstanding;
+        synchronized (this) {
+            outstanding = fetches.stream()
+                    .filter(f -> ! f.block.isDone() && f.tried.add(provider))
+                    .collect(Collectors.toList());
+            outstanding.forEach(f -> f.latest = provider);
+        }
+        if (outstanding.isEmpty())
+            return;
+        bitswap.sendWantsTo(us, outstanding.stream().map(f -> f.want).collect(Collectors.toSet()), provider);
+        long timeout = bitswap.providerStats().timeoutMillis(provider);
+        TIMER.schedule(TraceLogger.wrap(() -> retry(provider, outstanding)), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(PeerId slow, List<Fetch> fetches) {
+        List<Fetch> stragglers = fetches.stream()
+                .filter(f -> ! f.block.isDone())
+                .collect(Collectors.toList());
+        if (stragglers.isEmpty())
+            return;
+        bitswap.providerStats().recordFailure(slow);
+        Map<PeerId, List<Fetch>> next = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Fetch f : stragglers) {
+                Optional<PeerId> untried = ranked.stream()
+                        .filter(p -> ! f.tried.contains(p))
+                        .findFirst();
+                if (untried.isPresent())
+                    next.computeIfAbsent(untried.get(), p -> new ArrayList<>()).add(f);
+                else if (slow.equals(f.latest))
+                    f.result.completeExceptionally(new TimeoutException("No provider sent " + f.want.cid));
+            }
+        }
+        // sending dials, so get off the timer thread
+        next.forEach((provider, toSend) -> RETRIES.execute(TraceLogger.wrap(() -> send(provider, toSend))));
+    }
+}
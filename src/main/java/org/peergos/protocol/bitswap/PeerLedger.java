@@ -0,0 +1,32 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+
+import java.util.*;
+
+/**
+ * The server side accounting for a single peer: its queue of pending wantlist entries, and the bytes we have read
+ * for it but not yet sent, or have sent in total. All access is guarded by the owning BitswapScheduler.
+ */
+public class PeerLedger {
+    public final PeerId peer;
+    final Deque<BitswapScheduler.Job> queue = new ArrayDeque<>();
+    int weight, credit, running;
+    long bytesInFlight, bytesServed;
+    boolean active;
+
+    PeerLedger(PeerId peer, int weight) {
+        this.peer = peer;
+        this.weight = weight;
+        this.credit = weight;
+    }
+
+    boolean isIdle() {
+        return queue.isEmpty() && running == 0 && bytesInFlight == 0;
+    }
+
+    @Override
+    public String toString() {
+        return peer + " queued: " + queue.size() + ", in flight: " + bytesInFlight + " bytes, served: " + bytesServed + " bytes";
+    }
+}
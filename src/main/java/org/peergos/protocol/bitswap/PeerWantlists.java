@@ -0,0 +1,124 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Tracks which of our wants we have told each peer about, so that only changes need to be sent.
+ *
+ * A peer we have no record of (new, or whose connection was closed) gets a full wantlist. After that it only gets new
+ * wants, upgrades from want-have to want-block, cancels for wants we no longer have, and periodic re-sends of wants it
+ * was told about long ago, in case the message was lost.
+ */
+public class PeerWantlists {
+    public static final long DEFAULT_RESEND_INTERVAL_MILLIS = 30_000;
+
+    private static final class Sent {
+        final MessageOuterClass.Message.Wantlist.WantType type;
+        final long sentTime;
+
+        Sent(MessageOuterClass.Message.Wantlist.WantType type, long sentTime) {
+            this.type = type;
+            this.sentTime = sentTime;
+        }
+    }
+
+    public static final class Delta {
+        public final boolean full;
+        public final Map<Want, MessageOuterClass.Message.Wantlist.WantType> wants;
+        public final Set<Want> cancels;
+
+        public Delta(boolean full, Map<Want, MessageOuterClass.Message.Wantlist.WantType> wants, Set<Want> cancels) {
+            this.full = full;
+            this.wants = wants;
+            this.cancels = cancels;
+        }
+
+        public boolean isEmpty() {
+            // a new peer has no state to replace, so a full wantlist with no entries can be skipped
+            return wants.isEmpty() && cancels.isEmpty();
+        }
+    }
+
+    private final Map<PeerId, Map<Want, Sent>> sent = new HashMap<>();
+    private final long resendIntervalMillis;
+
+    public PeerWantlists(long resendIntervalMillis) {
+        this.resendIntervalMillis = resendIntervalMillis;
+    }
+
+    /**
+     * Work out what to send a peer so that its view of our wantlist matches current, and record it as sent.
+     */
+    public synchronized Delta update(PeerId peer,
+                                     Set<Want> current,
+                                     Function<Want, MessageOuterClass.Message.Wantlist.WantType> typeFor,
+                                     long now) {
+        Map<Want, Sent> told = sent.get(peer);
+        boolean full = told == null;
+        if (full) {
+            told = new HashMap<>();
+            sent.put(peer, told);
+        }
+        Map<Want, MessageOuterClass.Message.Wantlist.WantType> toSend = new LinkedHashMap<>();
+        for (Want w : current) {
+            MessageOuterClass.Message.Wantlist.WantType type = typeFor.apply(w);
+            Sent previous = told.get(w);
+            boolean upgrade = previous != null && previous.type != type
+                    && type == MessageOuterClass.Message.Wantlist.WantType.Block;
+            boolean stale = previous != null && previous.sentTime < now - resendIntervalMillis;
+            if (full || previous == null || upgrade || stale) {
+                toSend.put(w, type);
+                told.put(w, new Sent(type, now));
+            }
+        }
+        Set<Want> cancels = new HashSet<>();
+        if (! full) {
+            for (Iterator<Want> it = told.keySet().iterator(); it.hasNext(); ) {
+                Want w = it.next();
+                if (! current.contains(w)) {
+                    cancels.add(w);
+                    it.remove();
+                }
+            }
+        }
+        return new Delta(full, toSend, cancels);
+    }
+
+    /**
+     * Record that a want has been cancelled with every peer we told about it.
+     * @return the peers which should be sent a cancel, and when each was last sent the want
+     */
+    public synchronized Map<PeerId, Long> cancel(Want w) {
+        Map<PeerId, Long> res = new HashMap<>();
+        for (Map.Entry<PeerId, Map<Want, Sent>> e : sent.entrySet()) {
+            Sent s = e.getValue().remove(w);
+            if (s != null)
+                res.put(e.getKey(), s.sentTime);
+        }
+        return res;
+    }
+
+    /**
+     * @return the wants a peer currently thinks we have
+     */
+    public synchronized Set<Want> wantsFor(PeerId peer) {
+        Map<Want, Sent> told = sent.get(peer);
+        return told == null ? Collections.emptySet() : new HashSet<>(told.keySet());
+    }
+
+    /**
+     * Forget what we have told a peer, so that it will get a full wantlist next time.
+     */
+    public synchronized void reset(PeerId peer) {
+        sent.remove(peer);
+    }
+
+    public synchronized int peerCount() {
+        return sent.size();
+    }
+}
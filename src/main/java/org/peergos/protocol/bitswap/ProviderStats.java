@@ -0,0 +1,94 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Observed block latency and throughput per provider, as exponentially weighted moving averages.
+ *
+ * Used to rank providers for a fetch, and to derive a per provider timeout (mean + 4 * mean deviation, as for TCP
+ * retransmission) after which outstanding wants are retried elsewhere.
+ */
+public class ProviderStats {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+    public static final long MIN_TIMEOUT_MILLIS = 1_000;
+    public static final long MAX_TIMEOUT_MILLIS = 30_000;
+    private static final double ALPHA = 0.25;
+    private static final int MAX_PEERS = 10_000;
+    // the block size used to turn throughput into an expected fetch time when ranking
+    private static final int TYPICAL_BLOCK_SIZE = 256 * 1024;
+
+    private static final class Stats {
+        double latencyMillis, deviationMillis, bytesPerMilli;
+        int failures;
+        boolean sampled;
+    }
+
+    private final Map<PeerId, Stats> stats = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PeerId, Stats> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+
+    public synchronized void recordBlock(PeerId peer, long latencyMillis, int bytes) {
+        Stats s = stats.computeIfAbsent(peer, p -> new Stats());
+        long latency = Math.max(1, latencyMillis);
+        double throughput = (double) bytes / latency;
+        if (! s.sampled) {
+            s.latencyMillis = latency;
+            s.deviationMillis = latency / 2.0;
+            s.bytesPerMilli = throughput;
+            s.sampled = true;
+        } else {
+            s.deviationMillis = (1 - ALPHA) * s.deviationMillis + ALPHA * Math.abs(latency - s.latencyMillis);
+            s.latencyMillis = (1 - ALPHA) * s.latencyMillis + ALPHA * latency;
+            s.bytesPerMilli = (1 - ALPHA) * s.bytesPerMilli + ALPHA * throughput;
+        }
+        s.failures /= 2;
+    }
+
+    /**
+     * Record that a provider didn't deliver in time, or couldn't be reached.
+     */
+    public synchronized void recordFailure(PeerId peer) {
+        Stats s = stats.computeIfAbsent(peer, p -> new Stats());
+        s.failures = Math.min(s.failures + 1, 16);
+    }
+
+    public synchronized long timeoutMillis(PeerId peer) {
+        Stats s = stats.get(peer);
+        if (s == null || ! s.sampled)
+            return DEFAULT_TIMEOUT_MILLIS;
+        long timeout = (long) (s.latencyMillis + 4 * s.deviationMillis);
+        return Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, timeout));
+    }
+
+    /**
+     * Expected time to fetch a typical block from a peer, lower is better. Peers we know nothing about are ranked as
+     * if they take the default timeout, so they still get tried ahead of peers which have been failing.
+     */
+    private double cost(PeerId peer) {
+        Stats s = stats.get(peer);
+        double expected = s == null || ! s.sampled ?
+                DEFAULT_TIMEOUT_MILLIS / 2.0 :
+                s.latencyMillis + TYPICAL_BLOCK_SIZE / Math.max(s.bytesPerMilli, 1);
+        int failures = s == null ? 0 : s.failures;
+        return expected * (1 << Math.min(failures, 10));
+    }
+
+    /**
+     * @return the peers ordered from best to worst
+     */
+    public synchronized List<PeerId> rank(Collection<PeerId> peers) {
+        Map<PeerId, Double> costs = peers.stream()
+                .distinct()
+                .collect(Collectors.toMap(p -> p, this::cost));
+        return costs.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,255 @@
+package org.peergos.protocol.dht;
+
+import com.google.protobuf.*;
+import io.ipfs.multibase.binary.Base32;
+import io.ipfs.multihash.Multihash;
+import org.peergos.protocol.dht.pb.*;
+import org.peergos.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * A provider store in an H2 database, so provider records survive a restart.
+ *
+ * Each record expires a TTL after it was last announced. Expired records are never returned, and are deleted on
+ * startup and periodically in the background.
+ *
+ * Additions are buffered in memory and written in batches, one transaction each, by a background thread, so an
+ * ADD_PROVIDER doesn't wait for the database. Buffered records are included in lookups until they are committed. A
+ * batch which fails to commit is buffered again to be retried, and close flushes whatever is still buffered.
+ */
+public class DatabaseProviderStore implements ProviderStore, AutoCloseable {
+    private static final Logger LOG = Logging.LOG();
+
+    private final String connectionStringPrefix = "jdbc:h2:";
+    private final Connection connection;
+
+    private final String PROVIDER_TABLE = "providers";
+    private final int SIZE_OF_KEY = 100;
+    private static final long FLUSH_INTERVAL_MILLIS = 1_000, SWEEP_INTERVAL_MILLIS = 10 * 60_000;
+    private static final int BATCH_SIZE = 1_000;
+    // beyond this the caller writes the batch itself, rather than buffering without bound
+    private static final int MAX_PENDING = 100_000;
+
+    private static final class Record {
+        final Dht.Message.Peer peer;
+        final long expiry;
+
+        Record(Dht.Message.Peer peer, long expiry) {
+            this.peer = peer;
+            this.expiry = expiry;
+        }
+    }
+
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService writer;
+    // guards the database writes, so there is only one transaction at a time
+    private final Object writeLock = new Object();
+    // records not yet committed, keyed by block and then provider, guarded by this
+    private Map<Multihash, Map<ByteString, Record>> pending = new HashMap<>();
+    private Map<Multihash, Map<ByteString, Record>> flushing = Collections.emptyMap();
+    private int pendingCount = 0;
+    private boolean flushQueued = false;
+
+    /*
+     * Constructs a DatabaseProviderStore object
+     * @param location - location of the database on disk (See: https://h2database.com/html/cheatSheet.html for options)
+     */
+    public DatabaseProviderStore(String location, long ttlMillis, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        try {
+            this.connection = DriverManager.getConnection(connectionStringPrefix + location);
+            this.connection.setAutoCommit(true);
+            createTable();
+            removeExpired();
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Provider store writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(() -> logErrors(this::flush),
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        writer.scheduleWithFixedDelay(() -> logErrors(this::removeExpired),
+                SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public DatabaseProviderStore(String location) {
+        this(location, PROVIDER_TTL_MILLIS, System::currentTimeMillis);
+    }
+
+    private static void logErrors(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    public void close() throws Exception {
+        writer.shutdownNow();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+        connection.close();
+    }
+
+    private void createTable() {
+        String createSQL = "create table if not exists " + PROVIDER_TABLE
+                + " (block VARCHAR(" + SIZE_OF_KEY + ") not null, peerId VARCHAR(" + SIZE_OF_KEY + ") not null, "
+                + "raw BLOB not null, expiry BIGINT not null, primary key (block, peerId));";
+        String indexSQL = "create index if not exists providers_expiry on " + PROVIDER_TABLE + " (expiry);";
+        try (PreparedStatement create = connection.prepareStatement(createSQL);
+             PreparedStatement index = connection.prepareStatement(indexSQL)) {
+            create.execute();
+            index.execute();
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String toKey(byte[] hash) {
+        String padded = new Base32().encodeAsString(hash);
+        int padStart = padded.indexOf("=");
+        return padStart > 0 ? padded.substring(0, padStart) : padded;
+    }
+
+    @Override
+    public void addProvider(Multihash m, Dht.Message.Peer peer) {
+        Record record = new Record(peer, clock.getAsLong() + ttlMillis);
+        boolean flushNow = false;
+        synchronized (this) {
+            if (pending.computeIfAbsent(m, x -> new HashMap<>()).put(peer.getId(), record) == null)
+                pendingCount++;
+            if (pendingCount >= MAX_PENDING)
+                flushNow = true;
+            else if (pendingCount >= BATCH_SIZE && ! flushQueued) {
+                flushQueued = true;
+                writer.execute(() -> logErrors(this::flush));
+            }
+        }
+        if (flushNow)
+            flush();
+    }
+
+    /**
+     * Commit the buffered additions in one transaction.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            Map<Multihash, Map<ByteString, Record>> batch;
+            synchronized (this) {
+                flushQueued = false;
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                // still visible to lookups until it is committed
+                flushing = batch;
+                pending = new HashMap<>();
+                pendingCount = 0;
+            }
+            String updateSQL = "MERGE INTO " + PROVIDER_TABLE + " (block, peerId, raw, expiry) VALUES (?, ?, ?, ?);";
+            try (PreparedStatement pstmt = connection.prepareStatement(updateSQL)) {
+                connection.setAutoCommit(false);
+                for (Map.Entry<Multihash, Map<ByteString, Record>> block : batch.entrySet()) {
+                    String blockKey = toKey(block.getKey().toBytes());
+                    for (Record r : block.getValue().values()) {
+                        pstmt.setString(1, blockKey);
+                        pstmt.setString(2, toKey(r.peer.getId().toByteArray()));
+                        pstmt.setBytes(3, r.peer.toByteArray());
+                        pstmt.setLong(4, r.expiry);
+                        pstmt.addBatch();
+                    }
+                }
+                pstmt.executeBatch();
+                connection.commit();
+            } catch (SQLException ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException e) {}
+                int records = batch.values().stream().mapToInt(Map::size).sum();
+                int dropped = requeue(batch);
+                LOG.warning("Couldn't store " + records + " provider records, " +
+                        (dropped > 0 ? dropped + " dropped as the buffer is full" : "they will be retried"));
+                throw new IllegalStateException(ex);
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {}
+                synchronized (this) {
+                    flushing = Collections.emptyMap();
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a batch which failed to commit back in the buffer, unless a newer record has replaced it or the buffer is full.
+     * @return the number of records dropped because the buffer was full
+     */
+    private synchronized int requeue(Map<Multihash, Map<ByteString, Record>> batch) {
+        int dropped = 0;
+        for (Map.Entry<Multihash, Map<ByteString, Record>> block : batch.entrySet()) {
+            for (Map.Entry<ByteString, Record> e : block.getValue().entrySet()) {
+                if (pendingCount >= MAX_PENDING) {
+                    dropped++;
+                    continue;
+                }
+                if (pending.computeIfAbsent(block.getKey(), x -> new HashMap<>()).putIfAbsent(e.getKey(), e.getValue()) == null)
+                    pendingCount++;
+            }
+        }
+        return dropped;
+    }
+
+    @Override
+    public Set<Dht.Message.Peer> getProviders(Multihash m) {
+        long now = clock.getAsLong();
+        // taken before the query, so a record committed in between is still found
+        List<Record> buffered = new ArrayList<>();
+        synchronized (this) {
+            buffered.addAll(flushing.getOrDefault(m, Collections.emptyMap()).values());
+            buffered.addAll(pending.getOrDefault(m, Collections.emptyMap()).values());
+        }
+        // keyed by provider, so a buffered record replaces an older committed one
+        Map<ByteString, Dht.Message.Peer> res = new HashMap<>();
+        String selectSQL = "SELECT raw FROM " + PROVIDER_TABLE + " WHERE block=? AND expiry>?";
+        try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
+            pstmt.setString(1, toKey(m.toBytes()));
+            pstmt.setLong(2, now);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Dht.Message.Peer peer = Dht.Message.Peer.parseFrom(rs.getBytes("raw"));
+                    res.put(peer.getId(), peer);
+                }
+            } catch (InvalidProtocolBufferException parseEx) {
+                throw new IllegalStateException(parseEx);
+            }
+        } catch (SQLException sqlEx) {
+            throw new IllegalStateException(sqlEx);
+        }
+        for (Record r : buffered)
+            if (r.expiry > now)
+                res.put(r.peer.getId(), r.peer);
+        return new HashSet<>(res.values());
+    }
+
+    public void removeExpired() {
+        String deleteSQL = "DELETE FROM " + PROVIDER_TABLE + " WHERE expiry<=?";
+        synchronized (writeLock) {
+            try (PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
+                pstmt.setLong(1, clock.getAsLong());
+                pstmt.executeUpdate();
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
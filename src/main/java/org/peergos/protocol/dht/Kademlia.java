@@ -1,6 +1,5 @@
 package org.peergos.protocol.dht;
 
-import com.offbynull.kademlia.*;
 import io.ipfs.multiaddr.*;
 import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
@@ -14,6 +13,7 @@ import org.peergos.*;
 import org.peergos.protocol.dnsaddr.*;
 import org.peergos.protocol.ipns.*;
 import org.peergos.util.Logging;
+import org.peergos.util.TraceLogger;
 
 import java.time.*;
 import java.util.*;
@@ -30,8 +30,14 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     public static final int BOOTSTRAP_PERIOD_MILLIS = 300_000;
     public static final String WAN_DHT_ID = "/ipfs/kad/1.0.0";
     public static final String LAN_DHT_ID = "/ipfs/lan/kad/1.0.0";
+    // k, the number of closest peers a lookup converges on
+    public static final int LOOKUP_PEERS = 20;
+    // alpha, the number of queries a lookup keeps in flight
+    public static final int QUERY_PARALLELISM = 3;
+    public static final long QUERY_TIMEOUT_MILLIS = 2_000;
     private final KademliaEngine engine;
     private final boolean localDht;
+    public final ProviderCache providerCache = new ProviderCache();
     private AddressBook addressBook;
 
     public Kademlia(KademliaEngine dht, boolean localOnly) {
@@ -127,23 +133,25 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     }
 
     static class RoutingEntry {
-        public final Id key;
+        public final Key256 key;
         public final PeerAddresses addresses;
 
-        public RoutingEntry(Id key, PeerAddresses addresses) {
+        public RoutingEntry(Key256 key, PeerAddresses addresses) {
             this.key = key;
             this.addresses = addresses;
         }
+
+        public static RoutingEntry of(PeerAddresses addresses) {
+            return new RoutingEntry(Key256.hash(addresses.peerId.toBytes()), addresses);
+        }
     }
 
-    private int compareKeys(RoutingEntry a, RoutingEntry b, Id keyId) {
-        int prefixDiff = b.key.getSharedPrefixLength(keyId) - a.key.getSharedPrefixLength(keyId);
-        if (prefixDiff != 0)
-            return prefixDiff;
-        return a.addresses.peerId.toBase58().compareTo(b.addresses.peerId.toBase58());
+    private static int compareKeys(RoutingEntry a, RoutingEntry b, Key256 keyId) {
+        // only the same peer is at the same distance
+        return keyId.compareDistance(a.key, b.key);
     }
 
-    private final ExecutorService ioExec = Executors.newFixedThreadPool(16);
+    private final ExecutorService ioExec = TraceLogger.propagating(Executors.newFixedThreadPool(16));
 
     public List<PeerAddresses> findClosestPeers(Multihash peerIdkey, int maxCount, Host us) {
         if (maxCount == 1) {
@@ -156,140 +164,140 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     }
 
     public List<PeerAddresses> findClosestPeers(byte[] key, int maxCount, Host us) {
-        Id keyId = Id.create(Hash.sha256(key), 256);
-        SortedSet<RoutingEntry> closest = Collections
-                .synchronizedSortedSet(new TreeSet<>((a, b) -> compareKeys(a, b, keyId)));
-        SortedSet<RoutingEntry> toQuery = Collections
-                .synchronizedSortedSet(new TreeSet<>((a, b) -> compareKeys(a, b, keyId)));
-        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, Math.max(6, maxCount));
+        return findClosestPeersAsync(key, maxCount, us).join();
+    }
+
+    public CompletableFuture<List<PeerAddresses>> findClosestPeersAsync(byte[] key, int maxCount, Host us) {
+        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, Math.max(LOOKUP_PEERS, maxCount));
         if (maxCount == 1) {
             Optional<PeerAddresses> match = localClosest.stream().filter(p -> Arrays.equals(p.peerId.toBytes(), key))
                     .findFirst();
             if (match.isPresent())
-                return Collections.singletonList(match.get());
-        }
-        closest.addAll(localClosest.stream()
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-        toQuery.addAll(closest);
-        Set<Multihash> queried = Collections.synchronizedSet(new HashSet<>());
-        int queryParallelism = 3;
-        while (true) {
-            List<RoutingEntry> thisRound = toQuery.stream()
-                    .filter(r -> hasTransportOverlap(r.addresses)) // don't waste time trying to dial nodes we can't
-                    .limit(queryParallelism)
-                    .collect(Collectors.toList());
-            List<Future<List<PeerAddresses>>> futures = thisRound.stream()
-                    .map(r -> {
-                        toQuery.remove(r);
-                        queried.add(r.addresses.peerId);
-                        return ioExec.submit(() -> getCloserPeers(key, r.addresses, us).join());
-                    })
-                    .collect(Collectors.toList());
-            boolean foundCloser = false;
-            for (Future<List<PeerAddresses>> future : futures) {
-                try {
-                    List<PeerAddresses> result = future.get();
-                    for (PeerAddresses peer : result) {
-                        if (!queried.contains(peer.peerId)) {
-                            // exit early if we are looking for the specific node
-                            if (maxCount == 1 && Arrays.equals(peer.peerId.toBytes(), key))
-                                return Collections.singletonList(peer);
-                            queried.add(peer.peerId);
-                            Id peerKey = Id.create(Hash.sha256(peer.peerId.toBytes()), 256);
-                            RoutingEntry e = new RoutingEntry(peerKey, peer);
-                            toQuery.add(e);
-                            closest.add(e);
-                            foundCloser = true;
-                        }
-                    }
-                } catch (Exception e) {
-                    // couldn't contact peer
-                }
-            }
-            // if no new peers in top k were returned we are done
-            if (!foundCloser)
-                break;
+                return CompletableFuture.completedFuture(Collections.singletonList(match.get()));
         }
-        return closest.stream()
-                .limit(maxCount).map(r -> r.addresses)
-                .collect(Collectors.toList());
+        // exit early if we are looking for the specific node
+        AtomicReference<PeerAddresses> target = new AtomicReference<>();
+        Lookup lookup = new Lookup(Key256.hash(key), Math.max(LOOKUP_PEERS, maxCount), QUERY_PARALLELISM,
+                QUERY_TIMEOUT_MILLIS,
+                peer -> getCloserPeers(key, peer, us).thenApply(closer -> {
+                    if (maxCount == 1)
+                        closer.stream()
+                                .filter(p -> Arrays.equals(p.peerId.toBytes(), key))
+                                .findFirst()
+                                .ifPresent(target::set);
+                    // don't waste time trying to dial nodes we can't
+                    return closer.stream().filter(this::hasTransportOverlap).collect(Collectors.toList());
+                }),
+                () -> target.get() != null,
+                this::dropPeer,
+                ioExec);
+        return lookup.start(localClosest.stream().filter(this::hasTransportOverlap).collect(Collectors.toList()))
+                .thenApply(closest -> target.get() != null ?
+                        Collections.singletonList(target.get()) :
+                        closest.stream().limit(maxCount).collect(Collectors.toList()));
     }
 
     public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block, Host us, int desiredCount) {
-        byte[] key = block.bareMultihash().toBytes();
-        Id keyId = Id.create(key, 256);
-        List<PeerAddresses> providers = new ArrayList<>();
-        providers.addAll(engine.getProviders(block));
-
-        SortedSet<RoutingEntry> toQuery = new TreeSet<>(
-                (a, b) -> b.key.getSharedPrefixLength(keyId) - a.key.getSharedPrefixLength(keyId));
-        toQuery.addAll(engine.getKClosestPeers(key, 20).stream()
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
+        return findProviders(block, us, desiredCount, p -> {});
+    }
 
-        Set<Multihash> queried = new HashSet<>();
-        int queryParallelism = 3;
-        while (true) {
-            if (providers.size() >= desiredCount)
-                return CompletableFuture.completedFuture(providers);
-            List<RoutingEntry> queryThisRound = toQuery.stream().limit(queryParallelism).collect(Collectors.toList());
-            toQuery.removeAll(queryThisRound);
-            queryThisRound.forEach(r -> queried.add(r.addresses.peerId));
-            List<CompletableFuture<Providers>> futures = queryThisRound.stream()
-                    .parallel()
-                    .map(r -> {
-                        KademliaController res = null;
-                        try {
-                            res = dialPeer(r.addresses, us).join();
-                            return res.getProviders(block).orTimeout(2, TimeUnit.SECONDS);
-                        } catch (Exception e) {
-                            return null;
-                        }
-                    }).filter(prov -> prov != null)
-                    .collect(Collectors.toList());
-            boolean foundCloser = false;
-            for (CompletableFuture<Providers> future : futures) {
+    /**
+     * Look up providers of a block, passing each distinct provider to onProvider as soon as it is found, so a fetch
+     * can start on the first while the lookup continues. onProvider is called from network threads, and mustn't block.
+     *
+     * @return all the providers found, once the lookup has finished
+     */
+    public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block,
+                                                                Host us,
+                                                                int desiredCount,
+                                                                Consumer<PeerAddresses> onProvider) {
+        byte[] key = block.bareMultihash().toBytes();
+        Map<Multihash, PeerAddresses> providers = new LinkedHashMap<>();
+        Consumer<List<PeerAddresses>> found = batch -> {
+            List<PeerAddresses> fresh = new ArrayList<>();
+            synchronized (providers) {
+                for (PeerAddresses p : batch)
+                    if (providers.putIfAbsent(p.peerId, p) == null)
+                        fresh.add(p);
+            }
+            for (PeerAddresses p : fresh) {
                 try {
-                    Providers newProviders = future.join();
-                    providers.addAll(newProviders.providers);
-                    for (PeerAddresses peer : newProviders.closerPeers) {
-                        if (!queried.contains(peer.peerId)) {
-                            queried.add(peer.peerId);
-                            RoutingEntry e = new RoutingEntry(Id.create(Hash.sha256(peer.peerId.toBytes()), 256), peer);
-                            toQuery.add(e);
-                            foundCloser = true;
-                        }
-                    }
+                    onProvider.accept(p);
                 } catch (Exception e) {
-                    if (!(e.getCause() instanceof TimeoutException))
-                        e.printStackTrace();
+                    LOG.log(Level.WARNING, "Provider callback failed for " + block, e);
                 }
             }
-            // if no new peers in top k were returned we are done
-            if (!foundCloser)
-                break;
+        };
+        Supplier<List<PeerAddresses>> result = () -> {
+            synchronized (providers) {
+                return new ArrayList<>(providers.values());
+            }
+        };
+        BooleanSupplier enough = () -> {
+            synchronized (providers) {
+                return providers.size() >= desiredCount;
+            }
+        };
+        found.accept(new ArrayList<>(engine.getProviders(block)));
+        if (enough.getAsBoolean())
+            return CompletableFuture.completedFuture(result.get());
+        Optional<List<PeerAddresses>> cached = providerCache.get(block);
+        if (cached.isPresent()) {
+            found.accept(cached.get());
+            return CompletableFuture.completedFuture(result.get());
         }
 
-        return CompletableFuture.completedFuture(providers);
+        Lookup lookup = new Lookup(Key256.hash(key), LOOKUP_PEERS, QUERY_PARALLELISM, QUERY_TIMEOUT_MILLIS,
+                peer -> dialPeer(peer, us)
+                        .thenCompose(c -> c.getProviders(block))
+                        // replies complete on network threads, so restore the trace context for the callback
+                        .thenApply(TraceLogger.wrapFunction((Providers res) -> {
+                            found.accept(res.providers);
+                            return res.closerPeers;
+                        }))
+                        .whenComplete((res, e) -> {
+                            if (e != null)
+                                logQueryFailure(peer, e);
+                        }),
+                enough,
+                this::dropPeer,
+                ioExec);
+        return lookup.start(engine.getKClosestPeers(key, LOOKUP_PEERS))
+                .thenApply(closest -> {
+                    List<PeerAddresses> all = result.get();
+                    providerCache.put(block, all);
+                    return all;
+                });
     }
 
     private CompletableFuture<List<PeerAddresses>> getCloserPeers(byte[] key, PeerAddresses target, Host us) {
-        try {
-            return dialPeer(target, us).orTimeout(2, TimeUnit.SECONDS).join().closerPeers(key);
-        } catch (Exception e) {
-            // we can't dial quic only nodes until it's implemented
-            if (target.addresses.stream().allMatch(a -> a.toString().contains("quic")))
-                return CompletableFuture.completedFuture(Collections.emptyList());
-            if (e.getCause() instanceof NothingToCompleteException || e.getCause() instanceof NonCompleteException) {
-                LOG.fine("Couldn't dial " + target.peerId + " addrs: " + target.addresses);
-            } else if (e.getCause() instanceof TimeoutException)
-                LOG.fine("Timeout dialing " + target.peerId + " addrs: " + target.addresses);
-            else if (e.getCause() instanceof ConnectionClosedException) {
-            } else
-                e.printStackTrace();
-        }
-        return CompletableFuture.completedFuture(Collections.emptyList());
+        return dialPeer(target, us)
+                .thenCompose(c -> c.closerPeers(key))
+                .whenComplete((res, e) -> {
+                    if (e != null)
+                        logQueryFailure(target, e);
+                });
+    }
+
+    /**
+     * Drop a peer which failed a query from the routing table, so a replacement can take its place.
+     */
+    private void dropPeer(PeerAddresses peer) {
+        engine.routingTable.remove(PeerId.fromBase58(peer.peerId.toBase58()));
+    }
+
+    private void logQueryFailure(PeerAddresses target, Throwable t) {
+        Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+        // we can't dial quic only nodes until it's implemented
+        if (target.addresses.stream().allMatch(a -> a.toString().contains("quic")))
+            return;
+        if (cause instanceof NothingToCompleteException || cause instanceof NonCompleteException) {
+            LOG.fine("Couldn't dial " + target.peerId + " addrs: " + target.addresses);
+        } else if (cause instanceof TimeoutException)
+            LOG.fine("Timeout dialing " + target.peerId + " addrs: " + target.addresses);
+        else if (cause instanceof ConnectionClosedException) {
+        } else
+            LOG.log(Level.FINE, "Query to " + target.peerId + " failed", cause);
     }
 
     private Multiaddr[] getPublic(PeerAddresses target) {
@@ -316,6 +324,21 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         return CompletableFuture.allOf(provides.toArray(new CompletableFuture[0]));
     }
 
+    /**
+     * Announce us as a provider of several blocks to one peer, over a single stream.
+     */
+    public CompletableFuture<Boolean> provideBlocks(PeerAddresses peer,
+                                                    List<Multihash> blocks,
+                                                    Host us,
+                                                    PeerAddresses ourAddrs) {
+        return dialPeer(peer, us)
+                .thenCompose(c -> c.provide(blocks, ourAddrs))
+                .exceptionally(t -> {
+                    logQueryFailure(peer, t);
+                    return false;
+                });
+    }
+
     public CompletableFuture<Integer> publishIpnsValue(PrivKey priv,
             Multihash publisher,
             Multihash value,
@@ -362,13 +385,13 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         Set<Multihash> publishes = Collections.synchronizedSet(new HashSet<>());
         int minPublishes = 30;
 
-        Id keyId = Id.create(Hash.sha256(key), 256);
+        Key256 keyId = Key256.hash(key);
         SortedSet<RoutingEntry> toQuery = new TreeSet<>((a, b) -> compareKeys(a, b, keyId));
         List<PeerAddresses> localClosest = engine.getKClosestPeers(key, minPublishes);
         int queryParallelism = 3;
         toQuery.addAll(localClosest.stream()
                 .limit(queryParallelism)
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
+                .map(RoutingEntry::of)
                 .collect(Collectors.toList()));
         Set<Multihash> queried = Collections.synchronizedSet(new HashSet<>());
         while (!toQuery.isEmpty()) {
@@ -386,8 +409,7 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
                                     List<RoutingEntry> more = new ArrayList<>();
                                     for (PeerAddresses peer : res) {
                                         if (!queried.contains(peer.peerId)) {
-                                            Id peerKey = Id.create(Hash.sha256(IPNS.getKey(peer.peerId)), 256);
-                                            RoutingEntry e = new RoutingEntry(peerKey, peer);
+                                            RoutingEntry e = RoutingEntry.of(peer);
                                             more.add(e);
                                         }
                                     }
@@ -444,84 +466,46 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     }
 
     public CompletableFuture<String> resolveIpnsValue(Multihash publisher, Host us, int minResults) {
-        List<IpnsRecord> candidates = resolveValue(publisher, minResults, us);
-        List<IpnsRecord> records = candidates.stream().sorted().collect(Collectors.toList());
-        if (records.isEmpty())
-            return CompletableFuture
-                    .failedFuture(new IllegalStateException("Couldn't find IPNS value for " + publisher));
-        return CompletableFuture.completedFuture(new String(records.get(records.size() - 1).value));
+        return resolveValueAsync(publisher, minResults, us).thenCompose(candidates -> {
+            List<IpnsRecord> records = candidates.stream().sorted().collect(Collectors.toList());
+            if (records.isEmpty())
+                return CompletableFuture
+                        .failedFuture(new IllegalStateException("Couldn't find IPNS value for " + publisher));
+            return CompletableFuture.completedFuture(new String(records.get(records.size() - 1).value));
+        });
     }
 
-    private CompletableFuture<Optional<GetResult>> getValueFromPeer(PeerAddresses peer, Multihash publisher, Host us) {
-        try {
-            return dialPeer(peer, us)
-                    .orTimeout(1, TimeUnit.SECONDS)
-                    .join()
-                    .getValue(publisher)
-                    .orTimeout(1, TimeUnit.SECONDS)
-                    .thenApply(Optional::of);
-        } catch (Exception e) {
-            return CompletableFuture.completedFuture(Optional.empty());
-        }
+    public List<IpnsRecord> resolveValue(Multihash publisher, int minResults, Host us) {
+        return resolveValueAsync(publisher, minResults, us).join();
     }
 
-    public List<IpnsRecord> resolveValue(Multihash publisher, int minResults, Host us) {
+    public CompletableFuture<List<IpnsRecord>> resolveValueAsync(Multihash publisher, int minResults, Host us) {
         byte[] key = IPNS.getKey(publisher);
         List<IpnsRecord> candidates = Collections.synchronizedList(new ArrayList<>());
         Optional<IpnsRecord> local = engine.getRecord(publisher);
         local.ifPresent(candidates::add);
 
-        Id keyId = Id.create(Hash.sha256(key), 256);
-        SortedSet<RoutingEntry> toQuery = Collections
-                .synchronizedSortedSet(new TreeSet<>((a, b) -> compareKeys(a, b, keyId)));
-        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, 20);
-        int queryParallelism = 3;
-        toQuery.addAll(localClosest.stream()
-                .filter(p -> hasTransportOverlap(p)) // don't waste time trying to dial nodes we can't
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-        Set<Multihash> queried = Collections.synchronizedSet(new HashSet<>());
-        int countdown = 20;
-        while (!toQuery.isEmpty()) {
-            int remaining = toQuery.size() - 3;
-            List<RoutingEntry> thisRound = toQuery.stream()
-                    .limit(queryParallelism)
-                    .collect(Collectors.toList());
-            List<CompletableFuture<CompletableFuture<Void>>> futures = thisRound.stream()
-                    .map(r -> {
-                        toQuery.remove(r);
-                        queried.add(r.addresses.peerId);
-                        return CompletableFuture.supplyAsync(() -> getValueFromPeer(r.addresses, publisher, us)
-                                .thenAccept(get -> get.ifPresent(g -> {
-                                    if (g.record.isPresent() && g.record.get().publisher.equals(publisher))
-                                        candidates.add(g.record.get().value);
-                                    for (PeerAddresses peer : g.closerPeers) {
-                                        if (!queried.contains(peer.peerId) && hasTransportOverlap(peer)) {
-                                            Id peerKey = Id.create(Hash.sha256(IPNS.getKey(peer.peerId)), 256);
-                                            RoutingEntry e = new RoutingEntry(peerKey, peer);
-                                            toQuery.add(e);
-                                        }
-                                    }
-                                })), ioExec);
-                    })
-                    .collect(Collectors.toList());
-            futures.forEach(f -> {
-                try {
-                    if (candidates.size() >= minResults)
-                        return;
-                    f.orTimeout(5, TimeUnit.SECONDS).join()
-                            .orTimeout(5, TimeUnit.SECONDS).join();
-                } catch (Exception e) {
-                }
-            });
-            // exit early if we have enough results
-            if (candidates.size() >= minResults)
-                break;
-            if (toQuery.size() == remaining)
-                countdown--;
-            if (countdown <= 0)
-                break;
-        }
-        return candidates;
+        Lookup lookup = new Lookup(Key256.hash(key), LOOKUP_PEERS, QUERY_PARALLELISM, QUERY_TIMEOUT_MILLIS,
+                peer -> dialPeer(peer, us)
+                        .thenCompose(c -> c.getValue(publisher))
+                        .thenApply(g -> {
+                            if (g.record.isPresent() && g.record.get().publisher.equals(publisher))
+                                candidates.add(g.record.get().value);
+                            return g.closerPeers.stream()
+                                    .filter(this::hasTransportOverlap)
+                                    .collect(Collectors.toList());
+                        }),
+                () -> candidates.size() >= minResults,
+                this::dropPeer,
+                ioExec);
+        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, LOOKUP_PEERS).stream()
+                .filter(this::hasTransportOverlap) // don't waste time trying to dial nodes we can't
+                .collect(Collectors.toList());
+        return lookup.start(localClosest)
+                .thenApply(closest -> {
+                    synchronized (candidates) {
+                        return new ArrayList<>(candidates);
+                    }
+                });
     }
 }
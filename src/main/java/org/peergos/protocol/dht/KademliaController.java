@@ -16,6 +16,13 @@ public interface KademliaController {
 
     CompletableFuture<Boolean> send(Dht.Message msg);
 
+    /**
+     * Tell the remote we have nothing more to send on this stream.
+     *
+     * @return completes once everything sent before has been flushed, and the stream half closed
+     */
+    CompletableFuture<?> closeWrite();
+
     default CompletableFuture<List<PeerAddresses>> closerPeers(byte[] key) {
         return rpc(Dht.Message.newBuilder()
                 .setType(Dht.Message.MessageType.FIND_NODE)
@@ -35,6 +42,22 @@ public interface KademliaController {
                 .build());
     }
 
+    /**
+     * Announce us as a provider of several blocks, one message each, on this stream, and then close it.
+     *
+     * @return completes once the messages have been flushed and the stream closed
+     */
+    default CompletableFuture<Boolean> provide(List<Multihash> blocks, PeerAddresses us) {
+        Dht.Message.Peer ourPeer = us.toProtobuf();
+        for (Multihash block : blocks)
+            send(Dht.Message.newBuilder()
+                    .setType(Dht.Message.MessageType.ADD_PROVIDER)
+                    .setKey(ByteString.copyFrom(block.bareMultihash().toBytes()))
+                    .addProviderPeers(ourPeer)
+                    .build());
+        return closeWrite().thenApply(x -> true);
+    }
+
     default CompletableFuture<Providers> getProviders(Multihash block) {
         return rpc(Dht.Message.newBuilder()
                 .setType(Dht.Message.MessageType.GET_PROVIDERS)
@@ -1,9 +1,6 @@
 package org.peergos.protocol.dht;
 
 import com.google.protobuf.*;
-import com.offbynull.kademlia.*;
-import com.offbynull.kademlia.Node;
-
 import io.ipfs.cid.*;
 import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
@@ -18,7 +15,6 @@ import org.peergos.util.Logging;
 
 import java.io.*;
 import java.net.*;
-import java.time.*;
 import java.util.*;
 import java.util.logging.Logger;
 import java.util.stream.*;
@@ -47,12 +43,13 @@ public class KademliaEngine {
             .register();
 
     private static final int BUCKET_SIZE = 20;
+    private static final int REPLACEMENT_CACHE_SIZE = 10;
 
     private static final Logger LOG = Logging.LOG();
 
     private final ProviderStore providersStore;
     private final RecordStore ipnsStore;
-    public final Router router;
+    public final RoutingTable routingTable;
     private AddressBook addressBook;
     private final Multihash ourPeerId;
     private final byte[] ourPeerIdBytes;
@@ -63,7 +60,7 @@ public class KademliaEngine {
         this.ipnsStore = ipnsStore;
         this.ourPeerId = ourPeerId;
         this.ourPeerIdBytes = ourPeerId.toBytes();
-        this.router = new Router(Id.create(ourPeerId.bareMultihash().toBytes(), 256), 2, 2, 2);
+        this.routingTable = new RoutingTable(Key256.hash(ourPeerIdBytes), BUCKET_SIZE, REPLACEMENT_CACHE_SIZE);
         this.blocks = blocks;
     }
 
@@ -71,18 +68,14 @@ public class KademliaEngine {
         this.addressBook = addrs;
     }
 
-    public synchronized void addOutgoingConnection(PeerId peer) {
-        addToRoutingTable(peer);
+    public void addOutgoingConnection(PeerId peer) {
+        routingTable.touch(peer, System.currentTimeMillis());
     }
 
-    public synchronized void addIncomingConnection(PeerId peer) {
+    public void addIncomingConnection(PeerId peer) {
         // don't auto add incoming kademlia connections to routing table
     }
 
-    private void addToRoutingTable(PeerId peer) {
-        router.touch(Instant.now(), new Node(Id.create(Hash.sha256(peer.getBytes()), 256), peer.toString()));
-    }
-
     public Set<PeerAddresses> getProviders(Multihash h) {
         return providersStore.getProviders(h)
                 .stream()
@@ -91,16 +84,8 @@ public class KademliaEngine {
     }
 
     public List<PeerAddresses> getKClosestPeers(byte[] key, int k) {
-        List<Node> nodes;
-        synchronized (this) {
-            nodes = router.find(Id.create(Hash.sha256(key), 256), k, false);
-        }
-        return nodes.stream()
-                .map(n -> {
-                    List<Multiaddr> addrs = new ArrayList<>(
-                            addressBook.getAddrs(PeerId.fromBase58(n.getLink())).join());
-                    return new PeerAddresses(Multihash.fromBase58(n.getLink()), addrs);
-                })
+        return routingTable.find(Key256.hash(key), k).stream()
+                .map(n -> new PeerAddresses(n.id, new ArrayList<>(addressBook.getAddrs(n.peer).join())))
                 .filter(p -> !p.addresses.isEmpty())
                 .collect(Collectors.toList());
     }
@@ -60,12 +60,12 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
 
         @Override
         public CompletableFuture<Dht.Message> rpc(Dht.Message msg) {
-            msg = TraceLogger.getInstance().HandleKademliaClientStart(msg, stream.remotePeerId());
-            stream.writeAndFlush(msg);
-            sentBytes.inc(msg.getSerializedSize());
-            Dht.Message response = resp.join();
-            TraceLogger.getInstance().HandleKademliaClientEnd(msg, stream.remotePeerId());
-            return CompletableFuture.completedFuture(response);
+            Dht.Message sent = TraceLogger.getInstance().HandleKademliaClientStart(msg, stream.remotePeerId());
+            stream.writeAndFlush(sent);
+            sentBytes.inc(sent.getSerializedSize());
+            // the reply completes on the network thread, don't block the caller waiting for it
+            return resp.whenComplete(TraceLogger.wrapConsumer((r, e) ->
+                    TraceLogger.getInstance().HandleKademliaClientEnd(sent, stream.remotePeerId())));
         }
 
         @Override
@@ -75,6 +75,11 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
             return CompletableFuture.completedFuture(true);
         }
 
+        @Override
+        public CompletableFuture<?> closeWrite() {
+            return stream.closeWrite();
+        }
+
         @Override
         public void onMessage(@NotNull Stream stream, Dht.Message msg) {
             receivedBytes.inc(msg.getSerializedSize());
@@ -116,5 +121,10 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
         public CompletableFuture<Boolean> send(Dht.Message msg) {
             throw new IllegalStateException("Responder only!");
         }
+
+        @Override
+        public CompletableFuture<?> closeWrite() {
+            throw new IllegalStateException("Responder only!");
+        }
     }
 }
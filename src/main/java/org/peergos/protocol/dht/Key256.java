@@ -0,0 +1,91 @@
+package org.peergos.protocol.dht;
+
+import org.peergos.*;
+
+import java.nio.*;
+
+/**
+ * A 256 bit position in the Kademlia keyspace, as four longs, most significant first, so XOR distances are compared
+ * a word at a time without allocating.
+ */
+public final class Key256 {
+    private final long w0, w1, w2, w3;
+
+    public Key256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public static Key256 of(byte[] key) {
+        if (key.length != 32)
+            throw new IllegalArgumentException("Keys must be 32 bytes, got " + key.length);
+        ByteBuffer buf = ByteBuffer.wrap(key);
+        return new Key256(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+    }
+
+    /**
+     * The key of some raw bytes, e.g. a peer id or the multihash of a block
+     */
+    public static Key256 hash(byte[] raw) {
+        return of(Hash.sha256(raw));
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(32).putLong(w0).putLong(w1).putLong(w2).putLong(w3).array();
+    }
+
+    /**
+     * @return the number of leading bits this has in common with other, 256 if they are equal
+     */
+    public int sharedPrefixLength(Key256 other) {
+        long x = w0 ^ other.w0;
+        if (x != 0)
+            return Long.numberOfLeadingZeros(x);
+        x = w1 ^ other.w1;
+        if (x != 0)
+            return 64 + Long.numberOfLeadingZeros(x);
+        x = w2 ^ other.w2;
+        if (x != 0)
+            return 128 + Long.numberOfLeadingZeros(x);
+        x = w3 ^ other.w3;
+        if (x != 0)
+            return 192 + Long.numberOfLeadingZeros(x);
+        return 256;
+    }
+
+    /**
+     * Compare the XOR distances of a and b from this key.
+     *
+     * @return negative if a is closer, positive if b is closer, 0 if they are the same key
+     */
+    public int compareDistance(Key256 a, Key256 b) {
+        int c = Long.compareUnsigned(a.w0 ^ w0, b.w0 ^ w0);
+        if (c != 0)
+            return c;
+        c = Long.compareUnsigned(a.w1 ^ w1, b.w1 ^ w1);
+        if (c != 0)
+            return c;
+        c = Long.compareUnsigned(a.w2 ^ w2, b.w2 ^ w2);
+        if (c != 0)
+            return c;
+        return Long.compareUnsigned(a.w3 ^ w3, b.w3 ^ w3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Key256))
+            return false;
+        Key256 k = (Key256) o;
+        return w0 == k.w0 && w1 == k.w1 && w2 == k.w2 && w3 == k.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // keys are hashes already
+        return (int) w3;
+    }
+}
@@ -0,0 +1,153 @@
+package org.peergos.protocol.dht;
+
+import org.peergos.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * An iterative Kademlia lookup of a key.
+ *
+ * Up to alpha peers are queried at a time, and a new query starts as soon as any reply, failure or timeout arrives,
+ * so a slow peer only holds up its own slot. Only the k closest peers which haven't failed are queried, and the lookup
+ * finishes when all of those have replied, or as soon as the done condition holds. Nothing blocks a thread while
+ * waiting for a peer. Peers which fail or time out are reported, so they can be dropped from the routing table.
+ */
+public class Lookup {
+
+    private enum State {
+        HEARD,
+        WAITING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private static final class Candidate {
+        final PeerAddresses peer;
+        State state = State.HEARD;
+
+        Candidate(PeerAddresses peer) {
+            this.peer = peer;
+        }
+    }
+
+    private final int k, alpha;
+    private final long queryTimeoutMillis;
+    private final Function<PeerAddresses, CompletableFuture<List<PeerAddresses>>> query;
+    private final BooleanSupplier done;
+    private final Consumer<PeerAddresses> onFailure;
+    private final Executor exec;
+    // closest first
+    private final TreeMap<Key256, Candidate> candidates;
+    private final CompletableFuture<List<PeerAddresses>> result = new CompletableFuture<>();
+    private int inFlight = 0;
+
+    /**
+     * @param query asks a peer about the key, returning any closer peers it knows
+     * @param done whether the lookup has found what it wanted, checked after every reply
+     * @param onFailure called with each peer whose query failed or timed out
+     * @param exec where queries are started
+     */
+    public Lookup(Key256 target,
+                  int k,
+                  int alpha,
+                  long queryTimeoutMillis,
+                  Function<PeerAddresses, CompletableFuture<List<PeerAddresses>>> query,
+                  BooleanSupplier done,
+                  Consumer<PeerAddresses> onFailure,
+                  Executor exec) {
+        this.k = k;
+        this.alpha = alpha;
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        this.query = query;
+        this.done = done;
+        this.onFailure = onFailure;
+        this.exec = exec;
+        this.candidates = new TreeMap<>(target::compareDistance);
+    }
+
+    public Lookup(Key256 target,
+                  int k,
+                  int alpha,
+                  long queryTimeoutMillis,
+                  Function<PeerAddresses, CompletableFuture<List<PeerAddresses>>> query,
+                  BooleanSupplier done,
+                  Executor exec) {
+        this(target, k, alpha, queryTimeoutMillis, query, done, p -> {}, exec);
+    }
+
+    /**
+     * @return the k closest peers which replied, closest first
+     */
+    public CompletableFuture<List<PeerAddresses>> start(List<PeerAddresses> seeds) {
+        synchronized (this) {
+            seeds.forEach(this::addCandidate);
+        }
+        step();
+        return result;
+    }
+
+    private void addCandidate(PeerAddresses peer) {
+        candidates.putIfAbsent(Key256.hash(peer.peerId.toBytes()), new Candidate(peer));
+    }
+
+    private void step() {
+        List<Candidate> toQuery = new ArrayList<>();
+        List<PeerAddresses> finished = null;
+        synchronized (this) {
+            if (result.isDone())
+                return;
+            if (done.getAsBoolean())
+                finished = closestReplied();
+            else {
+                int closest = 0;
+                for (Candidate c : candidates.values()) {
+                    if (c.state == State.FAILED)
+                        continue;
+                    if (closest++ == k || inFlight == alpha)
+                        break;
+                    if (c.state == State.HEARD) {
+                        c.state = State.WAITING;
+                        inFlight++;
+                        toQuery.add(c);
+                    }
+                }
+                // the k closest we know of have all replied
+                if (inFlight == 0)
+                    finished = closestReplied();
+            }
+        }
+        if (finished != null)
+            result.complete(finished);
+        toQuery.forEach(this::query);
+    }
+
+    private List<PeerAddresses> closestReplied() {
+        return candidates.values().stream()
+                .filter(c -> c.state == State.SUCCEEDED)
+                .limit(k)
+                .map(c -> c.peer)
+                .collect(Collectors.toList());
+    }
+
+    private void query(Candidate c) {
+        // the reply arrives on a network thread, so carry the lookup's trace context to the next queries
+        CompletableFuture.supplyAsync(() -> query.apply(c.peer), exec)
+                .thenCompose(f -> f)
+                .orTimeout(queryTimeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete(TraceLogger.wrapConsumer((closer, err) -> {
+                    synchronized (this) {
+                        inFlight--;
+                        c.state = err == null ? State.SUCCEEDED : State.FAILED;
+                        if (err == null)
+                            closer.forEach(this::addCandidate);
+                    }
+                    if (err != null)
+                        onFailure.accept(c.peer);
+                    step();
+                }));
+    }
+}
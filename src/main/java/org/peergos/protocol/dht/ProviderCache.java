@@ -0,0 +1,131 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.multiformats.*;
+import io.prometheus.client.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Providers found by our own DHT lookups, so repeated requests for a block don't walk the DHT again.
+ *
+ * Results expire after a TTL, and a lookup which found nothing is remembered for a much shorter negative TTL, so we
+ * soon look again for content which has just been published. Entries are evicted least recently used first once
+ * their estimated size exceeds a byte limit.
+ */
+public class ProviderCache {
+    private static final Counter hits = Counter.build()
+            .name("provider_cache_hits_total")
+            .help("Provider lookups answered from the cache")
+            .register();
+    private static final Counter negativeHits = Counter.build()
+            .name("provider_cache_negative_hits_total")
+            .help("Provider lookups answered from the cache with no providers")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("provider_cache_misses_total")
+            .help("Provider lookups which weren't in the cache")
+            .register();
+    private static final Gauge cacheBytes = Gauge.build()
+            .name("provider_cache_bytes")
+            .help("Estimated size of the provider cache")
+            .register();
+
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60_000;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 30_000;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    // rough per object overhead of the map entry, lists and peer ids
+    private static final int ENTRY_OVERHEAD = 128, PROVIDER_OVERHEAD = 64;
+
+    private static final class Entry {
+        final List<PeerAddresses> providers;
+        final long expiry;
+        final long size;
+
+        Entry(List<PeerAddresses> providers, long expiry, long size) {
+            this.providers = providers;
+            this.expiry = expiry;
+            this.size = size;
+        }
+    }
+
+    private final long ttlMillis, negativeTtlMillis, maxBytes;
+    private final LongSupplier clock;
+    private final LinkedHashMap<Multihash, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    public ProviderCache(long ttlMillis, long negativeTtlMillis, long maxBytes, LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+    }
+
+    public ProviderCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, DEFAULT_MAX_BYTES, System::currentTimeMillis);
+    }
+
+    /**
+     * @return the providers of a block, which may be none, or nothing if we don't know
+     */
+    public synchronized Optional<List<PeerAddresses>> get(Multihash block) {
+        Multihash key = block.bareMultihash();
+        Entry e = entries.get(key);
+        if (e != null && e.expiry <= clock.getAsLong()) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses.inc();
+            return Optional.empty();
+        }
+        if (e.providers.isEmpty())
+            negativeHits.inc();
+        else
+            hits.inc();
+        return Optional.of(e.providers);
+    }
+
+    public synchronized void put(Multihash block, List<PeerAddresses> providers) {
+        Multihash key = block.bareMultihash();
+        long size = ENTRY_OVERHEAD + key.toBytes().length;
+        for (PeerAddresses p : providers) {
+            size += PROVIDER_OVERHEAD + p.peerId.toBytes().length;
+            for (Multiaddr a : p.addresses)
+                size += a.serialize().length;
+        }
+        if (size > maxBytes)
+            return;
+        long ttl = providers.isEmpty() ? negativeTtlMillis : ttlMillis;
+        remove(key);
+        entries.put(key, new Entry(List.copyOf(providers), clock.getAsLong() + ttl, size));
+        bytes += size;
+        Iterator<Entry> lru = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= lru.next().size;
+            lru.remove();
+        }
+        cacheBytes.set(bytes);
+    }
+
+    /**
+     * Forget the providers of a block, e.g. because none of them sent it.
+     */
+    public synchronized void invalidate(Multihash block) {
+        remove(block.bareMultihash());
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    private void remove(Multihash key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            bytes -= e.size;
+            cacheBytes.set(bytes);
+        }
+    }
+}
@@ -7,7 +7,13 @@ import java.util.*;
 
 public interface ProviderStore {
 
+    // how long a provider record is kept unless the provider announces it again
+    long PROVIDER_TTL_MILLIS = 48 * 3600_000L;
+
     void addProvider(Multihash m, Dht.Message.Peer peer);
 
+    /**
+     * @return a snapshot of the unexpired providers of m, which later additions won't change
+     */
     Set<Dht.Message.Peer> getProviders(Multihash m);
 }
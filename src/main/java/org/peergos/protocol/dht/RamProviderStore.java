@@ -22,6 +22,6 @@ public class RamProviderStore implements ProviderStore {
 
     @Override
     public synchronized Set<Dht.Message.Peer> getProviders(Multihash m) {
-        return store.getOrDefault(m, Collections.emptySet());
+        return new HashSet<>(store.getOrDefault(m, Collections.emptySet()));
     }
 }
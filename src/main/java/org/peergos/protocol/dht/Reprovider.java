@@ -0,0 +1,224 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.*;
+import org.peergos.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Announces provider records for many blocks with far fewer lookups than one per block.
+ *
+ * Blocks are sorted by their position in the keyspace. One lookup finds the closest peers to the first block's key,
+ * and every following block in the same subtree as the lookup's closest peers is assigned its own closest peers from
+ * that result without another lookup. All the blocks assigned to a peer are then sent to it over a single stream, a
+ * limited number of peers at a time, and no faster than a maximum rate of messages.
+ *
+ * If a lookup finds no peers, or no peer accepts a region's blocks, e.g. because we are offline, the region is retried
+ * with exponential backoff rather than skipped, so progress is never recorded past blocks which weren't provided.
+ */
+public class Reprovider {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Counter blocksProvided = Counter.build()
+            .name("reprovide_blocks_total")
+            .help("Blocks announced to their closest peers by the reprovider")
+            .register();
+    private static final Counter lookups = Counter.build()
+            .name("reprovide_lookups_total")
+            .help("Closest peer lookups made by the reprovider")
+            .register();
+    private static final Counter messages = Counter.build()
+            .name("reprovide_messages_total")
+            .help("ADD_PROVIDER messages sent by the reprovider")
+            .register();
+
+    public static final int REPLICATION = 20;
+    // peers asked of each lookup, more than we provide to, so the closest peers of other blocks in the region are known
+    public static final int LOOKUP_PEERS = 2 * REPLICATION;
+    public static final int DEFAULT_PARALLEL_PEERS = 16;
+    public static final int DEFAULT_MAX_MESSAGES_PER_SECOND = 1000;
+    public static final long DEFAULT_MIN_RETRY_MILLIS = 1_000, DEFAULT_MAX_RETRY_MILLIS = 300_000;
+    // a peer which stops reading mustn't hold one of the parallel slots forever
+    private static final long PROVIDE_TIMEOUT_MILLIS = 60_000;
+    private static final Key256 ZERO = new Key256(0, 0, 0, 0);
+
+    private static final class Keyed {
+        final Multihash block;
+        final Key256 key;
+
+        Keyed(Multihash block) {
+            this.block = block;
+            this.key = Key256.hash(block.bareMultihash().toBytes());
+        }
+    }
+
+    private final Function<Multihash, CompletableFuture<List<PeerAddresses>>> closestPeers;
+    private final BiFunction<PeerAddresses, List<Multihash>, CompletableFuture<Boolean>> provide;
+    private final int parallelPeers, maxMessagesPerSecond;
+    private final long minRetryMillis, maxRetryMillis;
+
+    /**
+     * @param closestPeers looks up at least LOOKUP_PEERS peers closest to a block
+     * @param provide sends ADD_PROVIDER messages for some blocks to a peer, completing once they have been sent
+     */
+    public Reprovider(Function<Multihash, CompletableFuture<List<PeerAddresses>>> closestPeers,
+                      BiFunction<PeerAddresses, List<Multihash>, CompletableFuture<Boolean>> provide,
+                      int parallelPeers,
+                      int maxMessagesPerSecond,
+                      long minRetryMillis,
+                      long maxRetryMillis) {
+        this.closestPeers = closestPeers;
+        this.provide = provide;
+        this.parallelPeers = parallelPeers;
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+        this.minRetryMillis = minRetryMillis;
+        this.maxRetryMillis = maxRetryMillis;
+    }
+
+    public Reprovider(Function<Multihash, CompletableFuture<List<PeerAddresses>>> closestPeers,
+                      BiFunction<PeerAddresses, List<Multihash>, CompletableFuture<Boolean>> provide,
+                      int parallelPeers,
+                      int maxMessagesPerSecond) {
+        this(closestPeers, provide, parallelPeers, maxMessagesPerSecond, DEFAULT_MIN_RETRY_MILLIS, DEFAULT_MAX_RETRY_MILLIS);
+    }
+
+    public long reprovide(Collection<? extends Multihash> blocks,
+                          Optional<Key256> after,
+                          Consumer<Key256> regionDone) throws InterruptedException {
+        return reprovide(blocks, after, regionDone, () -> true);
+    }
+
+    /**
+     * Provide every block whose key is after a position in the keyspace, in key order. This blocks until done, or until
+     * running returns false, which is checked before each lookup, each provide and during each backoff.
+     *
+     * @param after only blocks with keys greater than this are provided, so an interrupted run can resume
+     * @param regionDone called with the last key provided, each time a region has been accepted by at least one peer
+     * @return the number of blocks provided
+     */
+    public long reprovide(Collection<? extends Multihash> blocks,
+                          Optional<Key256> after,
+                          Consumer<Key256> regionDone,
+                          BooleanSupplier running) throws InterruptedException {
+        List<Keyed> sorted = new ArrayList<>(blocks.size());
+        for (Multihash block : blocks) {
+            Keyed k = new Keyed(block);
+            if (after.isEmpty() || ZERO.compareDistance(k.key, after.get()) > 0)
+                sorted.add(k);
+        }
+        sorted.sort((a, b) -> ZERO.compareDistance(a.key, b.key));
+
+        long start = System.nanoTime(), sent = 0;
+        long retryMillis = minRetryMillis;
+        int i = 0;
+        while (i < sorted.size() && running.getAsBoolean()) {
+            Keyed first = sorted.get(i);
+            List<PeerAddresses> closest;
+            try {
+                lookups.inc();
+                closest = closestPeers.apply(first.block).join();
+            } catch (Exception e) {
+                LOG.log(Level.FINE, "Couldn't find closest peers to " + first.block, e);
+                closest = Collections.emptyList();
+            }
+            if (closest.isEmpty()) {
+                LOG.info("Reprovide lookup found no peers, retrying in " + retryMillis + "ms");
+                backoff(retryMillis, running);
+                retryMillis = Math.min(retryMillis * 2, maxRetryMillis);
+                continue;
+            }
+            int end = regionEnd(sorted, i, closest);
+            Map<Multihash, PeerAddresses> peers = new HashMap<>();
+            Map<Multihash, List<Multihash>> byPeer = assign(sorted.subList(i, end), closest, peers);
+
+            Semaphore slots = new Semaphore(parallelPeers);
+            List<CompletableFuture<Boolean>> provides = new ArrayList<>();
+            for (Map.Entry<Multihash, List<Multihash>> e : byPeer.entrySet()) {
+                if (! running.getAsBoolean())
+                    break;
+                sent += e.getValue().size();
+                // stay under the message rate over the whole run
+                long aheadMillis = sent * 1000 / maxMessagesPerSecond - (System.nanoTime() - start) / 1_000_000;
+                if (aheadMillis > 0)
+                    Thread.sleep(aheadMillis);
+                slots.acquire();
+                messages.inc(e.getValue().size());
+                CompletableFuture<Boolean> provided;
+                try {
+                    provided = provide.apply(peers.get(e.getKey()), e.getValue());
+                } catch (Exception ex) {
+                    provided = CompletableFuture.failedFuture(ex);
+                }
+                provides.add(provided
+                        .orTimeout(PROVIDE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .exceptionally(t -> false)
+                        .whenComplete((r, t) -> slots.release()));
+            }
+            int accepted = 0;
+            for (CompletableFuture<Boolean> f : provides)
+                if (f.join())
+                    accepted++;
+            if (accepted == 0) {
+                LOG.info("No peer accepted reprovided blocks, retrying in " + retryMillis + "ms");
+                backoff(retryMillis, running);
+                retryMillis = Math.min(retryMillis * 2, maxRetryMillis);
+                continue;
+            }
+            retryMillis = minRetryMillis;
+            blocksProvided.inc(end - i);
+            regionDone.accept(sorted.get(end - 1).key);
+            i = end;
+        }
+        return i;
+    }
+
+    private static void backoff(long millis, BooleanSupplier running) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        for (long now = System.currentTimeMillis(); now < end && running.getAsBoolean(); now = System.currentTimeMillis())
+            Thread.sleep(Math.min(end - now, 1_000));
+    }
+
+    /**
+     * The blocks after start which share more leading bits with it than its furthest looked up peer does are in the
+     * same subtree as most of those peers, so we already know their closest peers. These are contiguous in key order.
+     *
+     * @return the index after the last block in the region
+     */
+    private static int regionEnd(List<Keyed> sorted, int start, List<PeerAddresses> closest) {
+        Key256 first = sorted.get(start).key;
+        int cpl = 256;
+        for (PeerAddresses p : closest)
+            cpl = Math.min(cpl, first.sharedPrefixLength(Key256.hash(p.peerId.toBytes())));
+        int end = start + 1;
+        while (end < sorted.size() && first.sharedPrefixLength(sorted.get(end).key) > cpl)
+            end++;
+        return end;
+    }
+
+    /**
+     * @return the blocks each peer should be sent, keyed by peer id, with the peers' addresses put in peers
+     */
+    private static Map<Multihash, List<Multihash>> assign(List<Keyed> region,
+                                                          List<PeerAddresses> candidates,
+                                                          Map<Multihash, PeerAddresses> peers) {
+        Map<Key256, PeerAddresses> byKey = new HashMap<>();
+        for (PeerAddresses p : candidates)
+            byKey.put(Key256.hash(p.peerId.toBytes()), p);
+        List<Key256> keys = new ArrayList<>(byKey.keySet());
+        Map<Multihash, List<Multihash>> res = new HashMap<>();
+        for (Keyed k : region) {
+            keys.sort(k.key::compareDistance);
+            for (Key256 peerKey : keys.subList(0, Math.min(REPLICATION, keys.size()))) {
+                PeerAddresses peer = byKey.get(peerKey);
+                peers.putIfAbsent(peer.peerId, peer);
+                res.computeIfAbsent(peer.peerId, x -> new ArrayList<>()).add(k.block);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,230 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.*;
+import io.libp2p.core.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A Kademlia routing table which lookups can read without ever blocking.
+ *
+ * Each bucket, indexed by the length of the prefix a peer's key shares with ours, is an immutable snapshot which is
+ * replaced wholesale on change (copy on write). Updates are queued, coalescing repeated touches of the same peer, and
+ * applied in batches by whichever thread finds no batch in progress, so there is a single writer at a time and
+ * callers never wait for it.
+ *
+ * Full buckets keep their longest lived peers, and newer ones wait in a small replacement cache until a peer is
+ * removed.
+ *
+ * Entries hold the peer's key and multihash, computed once when the peer is added. Finding the closest peers visits
+ * buckets in order of their distance from the target and keeps the best k in a small array, so there is no sorting,
+ * comparator or string conversion per lookup.
+ */
+public class RoutingTable {
+    public static final int KEY_BITS = 256;
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    public static final class Entry {
+        public final PeerId peer;
+        public final Multihash id;
+        // sha256 of the peer id, the peer's position in the keyspace
+        public final Key256 key;
+        public final long lastSeen;
+
+        public Entry(PeerId peer, Multihash id, Key256 key, long lastSeen) {
+            this.peer = peer;
+            this.id = id;
+            this.key = key;
+            this.lastSeen = lastSeen;
+        }
+
+        Entry seen(long when) {
+            return new Entry(peer, id, key, Math.max(lastSeen, when));
+        }
+    }
+
+    private static final class Bucket {
+        static final Bucket EMPTY = new Bucket(new Entry[0], new Entry[0]);
+
+        // least recently seen first
+        final Entry[] live;
+        // replacements, most recently seen last
+        final Entry[] cache;
+
+        Bucket(Entry[] live, Entry[] cache) {
+            this.live = live;
+            this.cache = cache;
+        }
+    }
+
+    private final Key256 ourKey;
+    private final int bucketSize, cacheSize;
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(KEY_BITS);
+    // peer -> time last seen, or REMOVED
+    private final ConcurrentHashMap<PeerId, Long> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean applying = new AtomicBoolean(false);
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    public RoutingTable(Key256 ourKey, int bucketSize, int cacheSize) {
+        this.ourKey = ourKey;
+        this.bucketSize = bucketSize;
+        this.cacheSize = cacheSize;
+        for (int i = 0; i < KEY_BITS; i++)
+            buckets.set(i, Bucket.EMPTY);
+    }
+
+    public static Key256 keyOf(PeerId peer) {
+        return Key256.hash(peer.getBytes());
+    }
+
+    /**
+     * Record that we have just communicated with a peer.
+     */
+    public void touch(PeerId peer, long nowMillis) {
+        pending.put(peer, nowMillis);
+        applyPending();
+    }
+
+    /**
+     * Drop an unresponsive peer, letting a replacement take its place.
+     */
+    public void remove(PeerId peer) {
+        pending.put(peer, REMOVED);
+        applyPending();
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return up to k peers, closest to the target key first
+     */
+    public List<Entry> find(Key256 target, int k) {
+        Entry[] best = new Entry[Math.max(0, Math.min(k, size()))];
+        if (best.length == 0)
+            return Collections.emptyList();
+        int p = Math.min(target.sharedPrefixLength(ourKey), KEY_BITS - 1);
+        // Peers in bucket p share more than p bits with the target. Peers in any bucket above p share exactly p bits,
+        // and those in a bucket i below p share exactly i, so the buckets can be taken in groups of decreasing
+        // closeness, and we can stop at the end of a group once we have k.
+        int found = offer(best, 0, buckets.get(p).live, target);
+        if (found < best.length)
+            for (int i = p + 1; i < KEY_BITS; i++)
+                found = offer(best, found, buckets.get(i).live, target);
+        for (int i = p - 1; i >= 0 && found < best.length; i--)
+            found = offer(best, found, buckets.get(i).live, target);
+        return Arrays.asList(found == best.length ? best : Arrays.copyOf(best, found));
+    }
+
+    /**
+     * Insert any candidates which are among the closest into best, which is sorted and has count entries.
+     *
+     * @return the new count
+     */
+    private static int offer(Entry[] best, int count, Entry[] candidates, Key256 target) {
+        for (Entry e : candidates) {
+            if (count == best.length && target.compareDistance(e.key, best[count - 1].key) >= 0)
+                continue;
+            int i = count < best.length ? count++ : count - 1;
+            while (i > 0 && target.compareDistance(e.key, best[i - 1].key) < 0) {
+                best[i] = best[i - 1];
+                i--;
+            }
+            best[i] = e;
+        }
+        return count;
+    }
+
+    private int bucketIndex(Key256 key) {
+        int shared = key.sharedPrefixLength(ourKey);
+        return shared == KEY_BITS ? -1 : shared; // -1 is our own key
+    }
+
+    private void applyPending() {
+        // updates queued while another thread is applying a batch are picked up by that thread before it stops
+        while (! pending.isEmpty() && applying.compareAndSet(false, true)) {
+            try {
+                for (Map.Entry<PeerId, Long> update : pending.entrySet()) {
+                    PeerId peer = update.getKey();
+                    long when = update.getValue();
+                    // if the peer was updated again meanwhile, leave that for the next pass
+                    if (pending.remove(peer, when))
+                        apply(peer, when);
+                }
+            } finally {
+                applying.set(false);
+            }
+        }
+    }
+
+    private void apply(PeerId peer, long when) {
+        Key256 key = keyOf(peer);
+        int index = bucketIndex(key);
+        if (index < 0)
+            return;
+        Bucket current = buckets.get(index);
+        Bucket updated = when == REMOVED ? removed(current, peer) : touched(current, peer, key, when);
+        if (updated != current) {
+            size.addAndGet(updated.live.length - current.live.length);
+            buckets.set(index, updated);
+        }
+    }
+
+    private static int indexOf(Entry[] entries, PeerId peer) {
+        for (int i = 0; i < entries.length; i++)
+            if (entries[i].peer.equals(peer))
+                return i;
+        return -1;
+    }
+
+    private static Entry[] without(Entry[] entries, int index) {
+        Entry[] res = new Entry[entries.length - 1];
+        System.arraycopy(entries, 0, res, 0, index);
+        System.arraycopy(entries, index + 1, res, index, res.length - index);
+        return res;
+    }
+
+    private static Entry[] append(Entry[] entries, Entry e, int max) {
+        if (entries.length < max) {
+            Entry[] res = Arrays.copyOf(entries, entries.length + 1);
+            res[entries.length] = e;
+            return res;
+        }
+        // drop the oldest
+        Entry[] res = new Entry[max];
+        System.arraycopy(entries, entries.length - max + 1, res, 0, max - 1);
+        res[max - 1] = e;
+        return res;
+    }
+
+    private Bucket touched(Bucket b, PeerId peer, Key256 key, long when) {
+        int live = indexOf(b.live, peer);
+        if (live >= 0)
+            return new Bucket(append(without(b.live, live), b.live[live].seen(when), bucketSize), b.cache);
+        int cached = indexOf(b.cache, peer);
+        Entry e = cached >= 0 ? b.cache[cached].seen(when) : new Entry(peer, Multihash.deserialize(peer.getBytes()), key, when);
+        Entry[] cache = cached >= 0 ? without(b.cache, cached) : b.cache;
+        if (b.live.length < bucketSize)
+            return new Bucket(append(b.live, e, bucketSize), cache);
+        return new Bucket(b.live, append(cache, e, cacheSize));
+    }
+
+    private static Bucket removed(Bucket b, PeerId peer) {
+        int live = indexOf(b.live, peer);
+        if (live >= 0) {
+            Entry[] remaining = without(b.live, live);
+            if (b.cache.length == 0)
+                return new Bucket(remaining, b.cache);
+            // promote the most recently seen replacement
+            Entry promoted = b.cache[b.cache.length - 1];
+            return new Bucket(append(remaining, promoted, remaining.length + 1), without(b.cache, b.cache.length - 1));
+        }
+        int cached = indexOf(b.cache, peer);
+        if (cached >= 0)
+            return new Bucket(b.live, without(b.cache, cached));
+        return b;
+    }
+}
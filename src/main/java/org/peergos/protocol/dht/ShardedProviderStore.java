@@ -0,0 +1,165 @@
+package org.peergos.protocol.dht;
+
+import com.google.protobuf.*;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.*;
+import org.peergos.protocol.dht.pb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * An in memory provider store for nodes which receive a lot of provider records.
+ *
+ * Blocks are spread over independently locked shards, so concurrent ADD_PROVIDER and GET_PROVIDERS requests rarely
+ * contend. Each record expires a TTL after it was last announced, and each shard evicts its least recently used blocks
+ * once their estimated size exceeds its share of a byte limit.
+ */
+public class ShardedProviderStore implements ProviderStore {
+    private static final Gauge storeBytes = Gauge.build()
+            .name("provider_store_bytes")
+            .help("Estimated size of the in memory provider store")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("provider_store_evictions_total")
+            .help("Blocks dropped from the provider store to stay under its size limit")
+            .register();
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int SHARDS = 64;
+    // rough per object overhead of the map entries and record
+    private static final int BLOCK_OVERHEAD = 128, RECORD_OVERHEAD = 96;
+
+    private static final class Record {
+        final Dht.Message.Peer peer;
+        final long expiry;
+        final int size;
+
+        Record(Dht.Message.Peer peer, long expiry) {
+            this.peer = peer;
+            this.expiry = expiry;
+            this.size = RECORD_OVERHEAD + peer.getSerializedSize();
+        }
+    }
+
+    private static final class Block {
+        // keyed by peer id, so a provider announcing new addresses replaces its old record
+        final Map<ByteString, Record> providers = new HashMap<>();
+        long size;
+
+        Block(long size) {
+            this.size = size;
+        }
+    }
+
+    private static final class Shard {
+        final LinkedHashMap<Multihash, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes = 0;
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long ttlMillis, maxShardBytes;
+    private final LongSupplier clock;
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    public ShardedProviderStore(long maxBytes, long ttlMillis, LongSupplier clock) {
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new Shard();
+        this.maxShardBytes = maxBytes / SHARDS;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    public ShardedProviderStore(long maxBytes) {
+        this(maxBytes, PROVIDER_TTL_MILLIS, System::currentTimeMillis);
+    }
+
+    public ShardedProviderStore() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    private Shard shardOf(Multihash m) {
+        return shards[Math.floorMod(m.hashCode(), SHARDS)];
+    }
+
+    @Override
+    public void addProvider(Multihash m, Dht.Message.Peer peer) {
+        Shard shard = shardOf(m);
+        long now = clock.getAsLong();
+        Record record = new Record(peer, now + ttlMillis);
+        synchronized (shard) {
+            long before = shard.bytes;
+            Block block = shard.blocks.get(m);
+            if (block == null) {
+                block = new Block(BLOCK_OVERHEAD + m.toBytes().length);
+                shard.blocks.put(m, block);
+                shard.bytes += block.size;
+            }
+            Record old = block.providers.put(peer.getId(), record);
+            long delta = record.size - (old == null ? 0 : old.size);
+            block.size += delta;
+            shard.bytes += delta;
+
+            // the least recently used block is the most likely to have expired
+            Iterator<Block> lru = shard.blocks.values().iterator();
+            Block eldest = lru.next();
+            if (eldest != block && removeExpired(shard, eldest, now))
+                lru.remove();
+            lru = shard.blocks.values().iterator();
+            while (shard.bytes > maxShardBytes && lru.hasNext()) {
+                shard.bytes -= lru.next().size;
+                lru.remove();
+                evictions.inc();
+            }
+            updateSize(shard.bytes - before);
+        }
+    }
+
+    @Override
+    public Set<Dht.Message.Peer> getProviders(Multihash m) {
+        Shard shard = shardOf(m);
+        Set<Dht.Message.Peer> res = new HashSet<>();
+        synchronized (shard) {
+            Block block = shard.blocks.get(m);
+            if (block == null)
+                return res;
+            long before = shard.bytes;
+            if (removeExpired(shard, block, clock.getAsLong()))
+                shard.blocks.remove(m);
+            else
+                block.providers.values().forEach(r -> res.add(r.peer));
+            updateSize(shard.bytes - before);
+        }
+        return res;
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Drop the expired records of a block.
+     * @return whether the block is now empty, and its size has been removed from the shard
+     */
+    private static boolean removeExpired(Shard shard, Block block, long now) {
+        Iterator<Record> records = block.providers.values().iterator();
+        while (records.hasNext()) {
+            Record r = records.next();
+            if (r.expiry <= now) {
+                records.remove();
+                block.size -= r.size;
+                shard.bytes -= r.size;
+            }
+        }
+        if (! block.providers.isEmpty())
+            return false;
+        shard.bytes -= block.size;
+        return true;
+    }
+
+    private void updateSize(long delta) {
+        if (delta != 0)
+            storeBytes.set(bytes.addAndGet(delta));
+    }
+}
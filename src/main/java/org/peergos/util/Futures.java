@@ -2,6 +2,7 @@ package org.peergos.util;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.*;
 
 public class Futures {
 
@@ -9,6 +10,16 @@ public class Futures {
         return CompletableFuture.completedFuture(val);
     }
 
+    /**
+     * @return a future of the results of all the given futures, in the same order
+     */
+    public static <T> CompletableFuture<List<T>> combineAllInOrder(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(x -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+    }
+
     public static <T> T logAndThrow(Throwable t) {
         return logAndThrow(t, Optional.empty());
     }
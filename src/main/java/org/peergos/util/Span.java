@@ -0,0 +1,187 @@
+package org.peergos.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A timed operation within a trace, with a link to the span which caused it, as in OpenTelemetry.
+ *
+ * Spans cross the network as a W3C traceparent string ("00-{trace id}-{span id}-{flags}") in the existing trace_id
+ * fields of the dht and bitswap messages, where the flags say whether the trace was sampled at its root. A bare 32 hex
+ * char trace id from an older node is accepted as a sampled trace with no parent.
+ */
+public class Span {
+    public enum Kind {
+        INTERNAL(1),
+        SERVER(2),
+        CLIENT(3);
+
+        public final int otlpValue;
+
+        Kind(int otlpValue) {
+            this.otlpValue = otlpValue;
+        }
+    }
+
+    // anchors the monotonic clock to the wall clock, so durations are precise and start times comparable across nodes
+    private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+
+    public final String traceId;
+    public final String spanId;
+    public final Optional<String> parentSpanId;
+    public final String name;
+    public final Kind kind;
+    public final long startNanos;
+    public final boolean sampled;
+    // the span which was current on this thread when this one started, to restore when it ends
+    final Span localParent;
+    private volatile long endNanos = 0;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    public Span(String traceId,
+                String spanId,
+                Optional<String> parentSpanId,
+                String name,
+                Kind kind,
+                long startNanos,
+                boolean sampled) {
+        this(traceId, spanId, parentSpanId, name, kind, startNanos, sampled, null);
+    }
+
+    private Span(String traceId,
+                 String spanId,
+                 Optional<String> parentSpanId,
+                 String name,
+                 Kind kind,
+                 long startNanos,
+                 boolean sampled,
+                 Span localParent) {
+        this.localParent = localParent;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.kind = kind;
+        this.startNanos = startNanos;
+        this.sampled = sampled;
+    }
+
+    public static long nowNanos() {
+        return EPOCH_OFFSET_NANOS + System.nanoTime();
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // spans are created for every request, sampled or not, so avoid String.format here
+    private static String randomHex(int longs) {
+        char[] res = new char[longs * 16];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < longs; i++) {
+            long r = random.nextLong();
+            for (int j = 0; j < 16; j++)
+                res[i * 16 + j] = HEX[(int) (r >>> (60 - 4 * j)) & 0xf];
+        }
+        return new String(res);
+    }
+
+    public static Span root(String name, Kind kind, boolean sampled) {
+        return new Span(randomHex(2), randomHex(1), Optional.empty(), name, kind, nowNanos(), sampled);
+    }
+
+    public static Span remoteChild(Traceparent parent, String name, Kind kind) {
+        return new Span(parent.traceId, randomHex(1), parent.spanId, name, kind, nowNanos(), parent.sampled);
+    }
+
+    public Span child(String name, Kind kind) {
+        return new Span(traceId, randomHex(1), Optional.of(spanId), name, kind, nowNanos(), sampled, this);
+    }
+
+    public Span setAttribute(String key, Object value) {
+        attributes.put(key, value);
+        return this;
+    }
+
+    public void end() {
+        if (endNanos == 0)
+            endNanos = nowNanos();
+    }
+
+    public boolean isEnded() {
+        return endNanos != 0;
+    }
+
+    public long durationNanos() {
+        return endNanos - startNanos;
+    }
+
+    public String traceparent() {
+        return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    public static class Traceparent {
+        public final String traceId;
+        public final Optional<String> spanId;
+        public final boolean sampled;
+
+        public Traceparent(String traceId, Optional<String> spanId, boolean sampled) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.sampled = sampled;
+        }
+    }
+
+    /**
+     * Parse a traceparent, or a bare trace id
+     */
+    public static Optional<Traceparent> parseTraceparent(String header) {
+        if (header == null || header.isEmpty())
+            return Optional.empty();
+        if (header.length() == 32)
+            return Optional.of(new Traceparent(header, Optional.empty(), true));
+        String[] parts = header.split("-");
+        if (parts.length != 4 || parts[1].length() != 32 || parts[2].length() != 16 || parts[3].length() != 2)
+            return Optional.empty();
+        try {
+            boolean sampled = (Integer.parseInt(parts[3], 16) & 1) != 0;
+            return Optional.of(new Traceparent(parts[1], Optional.of(parts[2]), sampled));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Map<String, Object> attributeJson(String key, Object value) {
+        Map<String, Object> typed = new LinkedHashMap<>();
+        if (value instanceof Integer || value instanceof Long)
+            typed.put("intValue", value.toString());
+        else if (value instanceof Boolean)
+            typed.put("boolValue", value);
+        else
+            typed.put("stringValue", value.toString());
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("key", key);
+        res.put("value", typed);
+        return res;
+    }
+
+    static List<Object> attributesJson(Map<String, Object> attributes) {
+        List<Object> res = new ArrayList<>();
+        attributes.forEach((k, v) -> res.add(attributeJson(k, v)));
+        return res;
+    }
+
+    /**
+     * The OTLP/JSON encoding, where ids are hex and 64 bit integers are strings.
+     */
+    public Map<String, Object> toOtlpJson() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("traceId", traceId);
+        res.put("spanId", spanId);
+        parentSpanId.ifPresent(p -> res.put("parentSpanId", p));
+        res.put("name", name);
+        res.put("kind", kind.otlpValue);
+        res.put("startTimeUnixNano", Long.toString(startNanos));
+        res.put("endTimeUnixNano", Long.toString(endNanos));
+        res.put("attributes", attributesJson(new TreeMap<>(attributes)));
+        return res;
+    }
+}
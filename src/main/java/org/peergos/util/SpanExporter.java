@@ -0,0 +1,152 @@
+package org.peergos.util;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Batches finished spans and exports them as OTLP/JSON ExportTraceServiceRequests, either appended one per line to
+ * local files (the format of the OpenTelemetry collector's file exporter) or posted to a collector's /v1/traces.
+ *
+ * Spans are queued without blocking, and dropped if the exporter falls behind.
+ */
+public class SpanExporter {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_QUEUE = 16 * 1024;
+    public static final int DEFAULT_MAX_BATCH = 512;
+    public static final long DEFAULT_FLUSH_MILLIS = 5_000;
+
+    public interface Sink {
+        void export(String otlpJson) throws IOException;
+    }
+
+    public static final String FILE_SUFFIX = ".otlp.json";
+
+    /**
+     * Append each batch as a line to files in dir, starting a new file when the current one reaches maxFileSize, and
+     * keeping only the newest maxFiles.
+     */
+    public static Sink fileSink(Path dir, long maxFileSize, int maxFiles) {
+        return new Sink() {
+            private Path current;
+
+            @Override
+            public synchronized void export(String otlpJson) throws IOException {
+                if (current == null || Files.size(current) > maxFileSize) {
+                    Files.createDirectories(dir);
+                    current = dir.resolve(System.currentTimeMillis() + FILE_SUFFIX);
+                    TraceWriter.deleteOldest(dir, FILE_SUFFIX, maxFiles - 1);
+                }
+                Files.write(current, (otlpJson + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        };
+    }
+
+    /**
+     * Post each batch to an OTLP/HTTP collector endpoint, e.g. http://localhost:4318/v1/traces
+     */
+    public static Sink httpSink(URI endpoint) {
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        return otlpJson -> {
+            HttpRequest req = HttpRequest.newBuilder(endpoint)
+                    .timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(otlpJson))
+                    .build();
+            try {
+                HttpResponse<Void> res = client.send(req, HttpResponse.BodyHandlers.discarding());
+                if (res.statusCode() >= 300)
+                    throw new IOException("Collector returned " + res.statusCode());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        };
+    }
+
+    private final Sink sink;
+    private final Map<String, Object> resourceAttributes;
+    private final BlockingQueue<Span> queue;
+    private final int maxBatch;
+    private final long flushMillis;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public SpanExporter(Sink sink, Map<String, Object> resourceAttributes, int maxQueue, int maxBatch, long flushMillis) {
+        this.sink = sink;
+        this.resourceAttributes = resourceAttributes;
+        this.queue = new ArrayBlockingQueue<>(maxQueue);
+        this.maxBatch = maxBatch;
+        this.flushMillis = flushMillis;
+        Thread t = new Thread(this::run, "Span exporter");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public SpanExporter(Sink sink, Map<String, Object> resourceAttributes) {
+        this(sink, resourceAttributes, DEFAULT_MAX_QUEUE, DEFAULT_MAX_BATCH, DEFAULT_FLUSH_MILLIS);
+    }
+
+    public void export(Span span) {
+        if (! queue.offer(span))
+            dropped.incrementAndGet();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        List<Span> batch = new ArrayList<>();
+        while (true) {
+            try {
+                long deadline = System.currentTimeMillis() + flushMillis;
+                while (batch.size() < maxBatch) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        break;
+                    Span next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                if (! batch.isEmpty())
+                    sink.export(toOtlpJson(batch));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Couldn't export " + batch.size() + " spans: " + e.getMessage(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    public String toOtlpJson(List<Span> spans) {
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("attributes", Span.attributesJson(resourceAttributes));
+        Map<String, Object> scope = new LinkedHashMap<>();
+        scope.put("name", "org.peergos");
+        List<Object> spansJson = new ArrayList<>();
+        for (Span s : spans)
+            spansJson.add(s.toOtlpJson());
+        Map<String, Object> scopeSpans = new LinkedHashMap<>();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", spansJson);
+        Map<String, Object> resourceSpans = new LinkedHashMap<>();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", List.of(scopeSpans));
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("resourceSpans", List.of(resourceSpans));
+        return JSONParser.toString(request);
+    }
+}
@@ -0,0 +1,108 @@
+package org.peergos.util;
+
+import io.ipfs.cid.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Offline tool to turn binary trace segments into the tab separated trace log format.
+ *
+ * Usage: TraceDecoder [segment files or directories...]
+ */
+public class TraceDecoder {
+    private static final ZoneId ZONE = ZoneId.of("America/Los_Angeles");
+
+    public static void main(String[] args) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        for (String arg : args) {
+            Path p = Paths.get(arg);
+            if (Files.isDirectory(p)) {
+                try (Stream<Path> files = Files.list(p)) {
+                    files.filter(f -> f.getFileName().toString().endsWith(TraceWriter.SEGMENT_SUFFIX))
+                            .forEach(segments::add);
+                }
+            } else
+                segments.add(p);
+        }
+        Collections.sort(segments);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false);
+        for (Path segment : segments)
+            decode(segment, out);
+        out.flush();
+    }
+
+    public static void decode(Path segment, PrintStream out) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        if (data.remaining() < TraceWriter.HEADER_SIZE || data.getInt() != TraceWriter.MAGIC)
+            throw new IllegalStateException("Not a trace segment: " + segment);
+        int version = data.getInt();
+        if (version != TraceWriter.VERSION)
+            throw new IllegalStateException("Unsupported trace segment version " + version + " in " + segment);
+        int eventSize = data.getInt();
+        data.getInt(); // node id
+        data.getLong(); // creation time
+        byte[] event = new byte[eventSize];
+        while (data.remaining() >= eventSize) {
+            data.get(event);
+            out.println(format(ByteBuffer.wrap(event)));
+        }
+    }
+
+    public static String format(ByteBuffer event) {
+        long traceHi = event.getLong(), traceLo = event.getLong();
+        long timeMillis = event.getLong();
+        long threadId = event.getLong();
+        int typeOrdinal = event.getInt();
+        int nodeId = event.getInt();
+        int remoteNodeId = event.getInt();
+        int count = event.getInt();
+        byte[] detail = new byte[event.getShort()];
+        event.get(detail);
+
+        TraceLogger.TraceType[] types = TraceLogger.TraceType.values();
+        TraceLogger.TraceType type = typeOrdinal >= 0 && typeOrdinal < types.length ?
+                types[typeOrdinal] :
+                TraceLogger.TraceType.UNKNOWN;
+        String remote = remoteNodeId == TraceLogger.UNKNOWN_PEER ? "null" : Integer.toString(remoteNodeId);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%016x%016x", traceHi, traceLo)).append('\t');
+        builder.append(nodeId).append('\t');
+        if (remoteNodeId != TraceLogger.NO_PEER)
+            builder.append(remote).append('\t');
+        builder.append(threadId).append('\t');
+        builder.append(timeMillis).append('\t');
+        builder.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZONE)).append('\t');
+        builder.append(type.name()).append('\t');
+        switch (type) {
+            case BITSWAP_CLIENT_START:
+            case BITSWAP_SERVER_START:
+                builder.append("Want ").append(count).append(" hashes. Peer nodeId: ").append(remote);
+                break;
+            case BITSWAP_SERVER_END:
+            case BITSWAP_CLIENT_END:
+                builder.append(count).append(" blocks. Peer nodeId: ").append(remote);
+                break;
+            case READ_FROM_FILE_STORE_START:
+            case READ_FROM_FILE_STORE_END:
+                builder.append("Cid: ").append(formatCid(detail));
+                break;
+            default:
+                builder.append("Peer nodeId: ").append(remote);
+        }
+        return builder.toString();
+    }
+
+    private static String formatCid(byte[] raw) {
+        try {
+            return Cid.cast(raw).toString();
+        } catch (Exception e) {
+            return ArrayOps.bytesToHex(raw);
+        }
+    }
+}
@@ -1,17 +1,13 @@
 package org.peergos.util;
 
-import java.io.BufferedOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Random;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 import org.peergos.Client;
+import org.peergos.config.TracingSection;
 import org.peergos.protocol.bitswap.pb.MessageOuterClass;
 import org.peergos.protocol.dht.pb.Dht;
 
@@ -19,7 +15,18 @@ import io.ipfs.cid.Cid;
 import io.libp2p.core.PeerId;
 
 /**
- * Logs thread traces to the trace file. This is a singleton class.
+ * Logs thread traces to binary trace segments, and records the traced operations as OpenTelemetry style spans. This is
+ * a singleton class.
+ *
+ * Events are fixed size binary records put on a lock-free ring buffer, and written out by a single background thread,
+ * so tracing adds little to the latency it measures. Use TraceDecoder to turn the segments into tab separated text.
+ *
+ * The trace context is a plain thread local, so it doesn't leak into pooled threads. Work which moves to another
+ * thread carries it explicitly, with the wrap helpers and propagating executors below.
+ *
+ * A fraction of requests are sampled when they start, and the decision travels with the trace to every node it
+ * reaches. Those are recorded in full. The spans of other requests are held in memory until the request (or the part
+ * of it served by this node) ends, and are only exported if it was slow.
  */
 public class TraceLogger {
     /**
@@ -38,30 +45,158 @@ public class TraceLogger {
      * @param peerId Identity of the current node.
      */
     public void setIdentity(PeerId peerId) {
-        currentNodeId = nodeIdMap.get(peerId.toString());
+        currentNodeId = nodeId(peerId);
+    }
+
+    /**
+     * Applies the tracing config: sampling, the slow request threshold, where spans go and the node id map.
+     *
+     * @param ipfsDir trace segments and span files are written under this, call this before tracing starts
+     */
+    public void configure(TracingSection config, Path ipfsDir) {
+        this.dir = ipfsDir.toAbsolutePath();
+        this.maxTraceFiles = config.maxTraceFiles;
+        this.enabled = config.enabled;
+        this.sampleRate = config.sampleRate;
+        this.slowRequestNanos = config.slowRequestMillis * 1_000_000;
+        this.nodeIds = new HashMap<>(config.nodeIds);
+        remoteNodeIds.clear();
+        config.collector.ifPresent(c -> setSpanExporter(new SpanExporter(SpanExporter.httpSink(URI.create(c)),
+                resourceAttributes())));
+    }
+
+    /**
+     * Starts a trace for the current thread, and work it hands on, if it is sampled, or if slow requests are
+     * being kept. Also propagates the trace context to servers.
+     *
+     * @param force Always record this trace, e.g. when the request asked for it.
+     */
+    public void startTrace(boolean force) {
+        if (!enabled && !force) {
+            return;
+        }
+        boolean sampled = force || ThreadLocalRandom.current().nextDouble() < sampleRate;
+        if (!sampled && slowRequestNanos == 0) {
+            return;
+        }
+        Span root = Span.root("api.block_get", Span.Kind.SERVER, sampled);
+        localRoots.add(root.spanId);
+        TraceContext.set(root);
     }
 
     /**
      * Starts recording the traces for all subsequent trace points on the current
-     * thread and child threads.
+     * thread, and work it hands on, under a new root span.
      * Also propagates the trace context to servers.
      */
     public void startTrace() {
-        TraceContext.setTraceId(generateTraceId());
+        startTrace(true);
     }
 
     /**
-     * Ends recording the traces for the current thread.
+     * Ends recording the traces for the current thread, and ends the root span if this thread started it.
      */
     public void endTrace() {
-        TraceContext.clearTraceId();
+        Span current = TraceContext.get();
+        TraceContext.clear();
+        if (current != null && localRoots.remove(current.spanId))
+            finish(current);
     }
 
     /**
      * Returns the current trace id.
      */
     public String getTraceId() {
-        return TraceContext.getTraceId();
+        Span current = TraceContext.get();
+        return current == null ? "" : current.traceId;
+    }
+
+    /**
+     * Whether the current trace will be recorded regardless of how long it takes.
+     */
+    public boolean isSampled() {
+        Span current = TraceContext.get();
+        return current != null && current.sampled;
+    }
+
+    /**
+     * The span which is current on this thread, to carry the trace into later callbacks.
+     */
+    public Optional<Span> currentSpan() {
+        return Optional.ofNullable(TraceContext.get());
+    }
+
+    /**
+     * Captures the current trace context, so r runs in it on whichever thread runs r. The thread's own context is
+     * restored afterwards.
+     */
+    public static Runnable wrap(Runnable r) {
+        Span captured = TraceContext.get();
+        return () -> {
+            Span previous = TraceContext.swap(captured);
+            try {
+                r.run();
+            } finally {
+                TraceContext.swap(previous);
+            }
+        };
+    }
+
+    public static <T> Supplier<T> wrapSupplier(Supplier<T> s) {
+        Span captured = TraceContext.get();
+        return () -> {
+            Span previous = TraceContext.swap(captured);
+            try {
+                return s.get();
+            } finally {
+                TraceContext.swap(previous);
+            }
+        };
+    }
+
+    public static <T, R> Function<T, R> wrapFunction(Function<T, R> f) {
+        Span captured = TraceContext.get();
+        return t -> {
+            Span previous = TraceContext.swap(captured);
+            try {
+                return f.apply(t);
+            } finally {
+                TraceContext.swap(previous);
+            }
+        };
+    }
+
+    public static <T, U> BiConsumer<T, U> wrapConsumer(BiConsumer<T, U> c) {
+        Span captured = TraceContext.get();
+        return (t, u) -> {
+            Span previous = TraceContext.swap(captured);
+            try {
+                c.accept(t, u);
+            } finally {
+                TraceContext.swap(previous);
+            }
+        };
+    }
+
+    /**
+     * Like CompletableFuture.supplyAsync, but running s in the caller's trace context.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> s, Executor exec) {
+        return CompletableFuture.supplyAsync(wrapSupplier(s), exec);
+    }
+
+    /**
+     * An executor which runs each task in the trace context of its submitter.
+     */
+    public static ExecutorService propagating(ExecutorService exec) {
+        return new TracingExecutorService(exec);
+    }
+
+    /**
+     * Set where finished spans are sent. By default they are written as OTLP/JSON files in the ipfs dir.
+     */
+    public void setSpanExporter(SpanExporter exporter) {
+        this.exporter = exporter;
     }
 
     /**
@@ -71,21 +206,25 @@ public class TraceLogger {
         if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || !TraceContext.isSet()) {
             return msg;
         }
-        writeLog(TraceType.GET_PROVIDERS_CLIENT_START, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        return msg.toBuilder().setTraceId(TraceContext.getTraceId()).build();
+        writeLog(TraceType.GET_PROVIDERS_CLIENT_START, remotePeerId, NO_COUNT);
+        Span span = open(TraceContext.get().child("dht.get_providers", Span.Kind.CLIENT), remotePeerId);
+        return msg.toBuilder().setTraceId(span.traceparent()).build();
     }
 
     /**
      * Logs (if trace context is available) the server start of a kademlia lookup.
      */
     public void HandleKademliaServerStart(Dht.Message msg, PeerId remotePeerId) {
-        if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || msg.getTraceId().isEmpty()) {
+        if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS) {
+            return;
+        }
+        Optional<Span.Traceparent> remote = Span.parseTraceparent(msg.getTraceId());
+        if (remote.isEmpty() || !isTraced(remote.get())) {
             return;
         }
-        TraceContext.setTraceId(msg.getTraceId());
-        writeLog(TraceType.GET_PROVIDERS_SERVER_START, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
+        TraceContext.set(Span.remoteChild(remote.get(), "dht.get_providers", Span.Kind.SERVER)
+                .setAttribute("peer.node_id", remoteNodeId(remotePeerId)));
+        writeLog(TraceType.GET_PROVIDERS_SERVER_START, remotePeerId, NO_COUNT);
     }
 
     /**
@@ -95,20 +234,21 @@ public class TraceLogger {
         if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || !TraceContext.isSet()) {
             return;
         }
-        writeLog(TraceType.GET_PROVIDERS_SERVER_END, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        TraceContext.clearTraceId();
+        writeLog(TraceType.GET_PROVIDERS_SERVER_END, remotePeerId, NO_COUNT);
+        finish(TraceContext.get());
+        TraceContext.clear();
     }
 
     /**
      * Logs (if trace context is available) the client end of a kademlia lookup.
      */
     public void HandleKademliaClientEnd(Dht.Message msg, PeerId remotePeerId) {
-        if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || !TraceContext.isSet()) {
+        if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS) {
             return;
         }
-        writeLog(TraceType.GET_PROVIDERS_CLIENT_END, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
+        if (TraceContext.isSet())
+            writeLog(TraceType.GET_PROVIDERS_CLIENT_END, remotePeerId, NO_COUNT);
+        close(msg.getTraceId()).ifPresent(this::finish);
     }
 
     /**
@@ -118,30 +258,49 @@ public class TraceLogger {
         if (!TraceContext.isSet()) {
             return msg;
         }
-        writeLog(TraceType.BITSWAP_CLIENT_START, remotePeerId,
-                "Want " + msg.getWantlist().getEntriesCount() + " hashes. Peer nodeId: "
-                        + nodeIdMap.get(remotePeerId.toString()));
-        return msg.toBuilder().setTraceId(TraceContext.getTraceId()).build();
+        writeLog(TraceType.BITSWAP_CLIENT_START, remotePeerId, msg.getWantlist().getEntriesCount());
+        Span requester = TraceContext.get();
+        Span span = requester.child("bitswap.want", Span.Kind.CLIENT)
+                .setAttribute("peer.node_id", remoteNodeId(remotePeerId))
+                .setAttribute("bitswap.wants", msg.getWantlist().getEntriesCount());
+        // replies don't carry the trace, the blocks are matched to the wants of the requester
+        trackOpen(openSpans, bitswapKey(requester, remotePeerId), span);
+        return msg.toBuilder().setTraceId(span.traceparent()).build();
     }
 
     /**
-     * Logs (if trace context is available) the server start or client end of a
-     * bitswap protocol.
+     * Logs (if the message carries a trace) the server start of a bitswap protocol. The server span is the current
+     * context until endTrace, so callbacks wrapped in the meantime carry it to the server end.
      */
     public void HandleBitswapReceive(MessageOuterClass.Message msg, PeerId remotePeerId) {
-        if (msg.getTraceId().isEmpty()) {
+        if (!msg.hasWantlist()) {
             return;
         }
-        TraceContext.setTraceId(msg.getTraceId());
-        boolean isServer = msg.hasWantlist();
-        writeLog(
-                isServer ? TraceType.BITSWAP_SERVER_START : TraceType.BITSWAP_CLIENT_END,
-                remotePeerId,
-                isServer ? "Want " + msg.getWantlist().getEntriesCount() + " hashes. Peer nodeId: "
-                        + nodeIdMap.get(remotePeerId.toString())
-                        : msg.getPayloadCount() + " blocks. Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        if (!isServer) {
-            TraceContext.clearTraceId();
+        Optional<Span.Traceparent> remote = Span.parseTraceparent(msg.getTraceId());
+        if (remote.isEmpty() || !isTraced(remote.get())) {
+            return;
+        }
+        TraceContext.set(Span.remoteChild(remote.get(), "bitswap.serve", Span.Kind.SERVER)
+                .setAttribute("peer.node_id", remoteNodeId(remotePeerId))
+                .setAttribute("bitswap.wants", msg.getWantlist().getEntriesCount()));
+        writeLog(TraceType.BITSWAP_SERVER_START, remotePeerId, msg.getWantlist().getEntriesCount());
+    }
+
+    /**
+     * Logs the client end of a bitswap protocol, when blocks arrive for wants made in a trace.
+     *
+     * @param requester The span which was current when the blocks were wanted.
+     * @param blocks The number of wanted blocks received.
+     */
+    public void HandleBitswapClientEnd(Span requester, PeerId remotePeerId, int blocks) {
+        Span previous = TraceContext.swap(requester);
+        try {
+            writeLog(TraceType.BITSWAP_CLIENT_END, remotePeerId, blocks);
+            Span span = openSpans.remove(bitswapKey(requester, remotePeerId));
+            if (span != null)
+                finish(span.setAttribute("bitswap.blocks", blocks));
+        } finally {
+            TraceContext.swap(previous);
         }
     }
 
@@ -152,9 +311,8 @@ public class TraceLogger {
         if (!TraceContext.isSet()) {
             return;
         }
-        writeLog(TraceType.BITSWAP_SERVER_END, remotePeerId,
-                msg.getPayloadCount() + " blocks. Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        TraceContext.clearTraceId();
+        writeLog(TraceType.BITSWAP_SERVER_END, remotePeerId, msg.getPayloadCount());
+        finish(TraceContext.get().setAttribute("bitswap.blocks", msg.getPayloadCount()));
     }
 
     /**
@@ -164,7 +322,9 @@ public class TraceLogger {
      */
     public void HandleFileReadStart(Cid cid) {
         if (TraceContext.isSet()) {
-            writeLog(TraceType.READ_FROM_FILE_STORE_START, "Cid: " + cid.toString());
+            writeLog(TraceType.READ_FROM_FILE_STORE_START, cid);
+            TraceContext.set(TraceContext.get().child("blockstore.read", Span.Kind.INTERNAL)
+                    .setAttribute("cid", cid.toString()));
         }
     }
 
@@ -175,65 +335,138 @@ public class TraceLogger {
      */
     public void HandleFileReadEnd(Cid cid) {
         if (TraceContext.isSet()) {
-            writeLog(TraceType.READ_FROM_FILE_STORE_END, "Cid: " + cid.toString());
+            writeLog(TraceType.READ_FROM_FILE_STORE_END, cid);
+            Span read = TraceContext.get();
+            finish(read);
+            TraceContext.set(read.localParent);
         }
     }
 
     // -------------- PRIVATE MEMBERS -------------
 
+    private static String bitswapKey(Span requester, PeerId remotePeerId) {
+        return requester.spanId + "/" + remotePeerId;
+    }
+
+    private Span open(Span span, PeerId remotePeerId) {
+        span.setAttribute("peer.node_id", remoteNodeId(remotePeerId));
+        trackOpen(openSpans, span.spanId, span);
+        return span;
+    }
+
+    private static void trackOpen(Map<String, Span> spans, String key, Span span) {
+        // spans whose end never arrives (e.g. the peer didn't reply) shouldn't accumulate
+        if (spans.size() > MAX_OPEN_SPANS)
+            spans.clear();
+        spans.put(key, span);
+    }
+
     /**
-     * Generates a random 32 character hex string.
-     * 
-     * @return traceId The randomly generated traceId.
+     * @return the open client span named by the span id in a traceparent
+     */
+    private Optional<Span> close(String traceparent) {
+        return Span.parseTraceparent(traceparent)
+                .flatMap(r -> r.spanId)
+                .map(openSpans::remove);
+    }
+
+    /**
+     * Whether to record the part of a remote trace served here. Unsampled traces are only worth holding on to when
+     * slow requests are kept.
      */
-    private String generateTraceId() {
-        Random random = new Random();
-        StringBuilder builder = new StringBuilder();
+    private boolean isTraced(Span.Traceparent remote) {
+        return remote.sampled || (enabled && slowRequestNanos > 0);
+    }
 
-        byte[] bytes = new byte[16]; // length will be length 32 hex chars
-        random.nextBytes(bytes);
+    private void finish(Span span) {
+        if (span.isEnded())
+            return;
+        span.end();
+        if (span.sampled) {
+            export(span);
+            return;
+        }
+        Span root = span;
+        while (root.localParent != null)
+            root = root.localParent;
+        if (root != span) {
+            // wait for the local root to end, to see if the request was slow
+            if (unsampled.size() > MAX_OPEN_SPANS)
+                unsampled.clear();
+            unsampled.computeIfAbsent(root.spanId, r -> new ConcurrentLinkedQueue<>()).add(span);
+            return;
+        }
+        Queue<Span> children = unsampled.remove(root.spanId);
+        if (root.durationNanos() < slowRequestNanos)
+            return;
+        if (children != null)
+            children.forEach(this::export);
+        export(root.setAttribute("sampling.slow", true));
+    }
 
-        for (byte b : bytes) {
-            builder.append(String.format("%02x", b));
+    private void export(Span span) {
+        SpanExporter target = exporter;
+        if (target == null) {
+            synchronized (this) {
+                if (exporter == null) {
+                    exporter = new SpanExporter(SpanExporter.fileSink(dir.resolve("traces"), MAX_LOG_FILE_SIZE_MB,
+                            maxTraceFiles), resourceAttributes());
+                }
+                target = exporter;
+            }
         }
+        target.export(span);
+    }
 
-        return builder.toString();
+    private Map<String, Object> resourceAttributes() {
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("service.name", "nabu");
+        resource.put("node.id", currentNodeId);
+        return resource;
     }
 
     /**
-     * Holds the context for the current thread trace. The context contains the
-     * trace Id.
+     * Holds the context for the current thread trace. The context is the current span, which carries the trace id.
      */
     private static class TraceContext {
-        private static final ThreadLocal<String> traceId = new InheritableThreadLocal<String>() {
-            @Override
-            protected String initialValue() {
-                return "";
-            }
-        };
+        private static final ThreadLocal<Span> current = new ThreadLocal<>();
 
         public static boolean isSet() {
-            return !traceId.get().isEmpty();
+            return current.get() != null;
+        }
+
+        public static Span get() {
+            return current.get();
         }
 
-        public static String getTraceId() {
-            return traceId.get();
+        public static void set(Span span) {
+            current.set(span);
         }
 
-        public static void setTraceId(String newTraceId) {
-            traceId.set(newTraceId);
+        public static void clear() {
+            current.remove();
         }
 
-        public static void clearTraceId() {
-            traceId.set("");
+        /**
+         * Make span (or no span, if null) the current context.
+         *
+         * @return the previous context
+         */
+        public static Span swap(Span span) {
+            Span previous = current.get();
+            if (span == null)
+                current.remove();
+            else
+                current.set(span);
+            return previous;
         }
     }
 
     /**
      * Represents different types of log points that are captured by the trace
-     * logger.
+     * logger. The ordinal is written to trace segments, so only ever append.
      */
-    private enum TraceType {
+    enum TraceType {
         // Catch all.
         UNKNOWN,
 
@@ -254,157 +487,100 @@ public class TraceLogger {
         READ_FROM_FILE_STORE_END,
     };
 
+    // Remote node id for events which don't involve a peer.
+    static final int NO_PEER = Integer.MIN_VALUE;
+    // Remote node id in trace segments from before node ids were derived from peer ids.
+    static final int UNKNOWN_PEER = -1;
+    static final int NO_COUNT = -1;
+
     private static TraceLogger traceLogger = null;
 
-    // Maps peer Id (as string) to node Id.
-    private HashMap<String, Integer> nodeIdMap;
+    // Maps peer Id (as string) to node Id, from config.
+    private volatile Map<String, Integer> nodeIds = Collections.emptyMap();
+    // Avoids encoding the peer id of every traced message.
+    private final ConcurrentHashMap<PeerId, Integer> remoteNodeIds = new ConcurrentHashMap<>();
     private int currentNodeId;
     private final int MAX_LOG_FILE_SIZE_MB = 16 * 1024 * 1024; // 16MB log file size. Inspired by typical PSQL WAL size.
-
-    FileOutputStream outFile = null;
-    BufferedOutputStream output = null;
-    Thread flusher = null;
+    private static final int RING_CAPACITY = 64 * 1024;
+    private static final int MAX_OPEN_SPANS = 10_000;
+
+    private final TraceRing ring = new TraceRing(RING_CAPACITY);
+    // client spans waiting for their reply, by span id
+    private final ConcurrentHashMap<String, Span> openSpans = new ConcurrentHashMap<>();
+    // root spans started on this node by startTrace
+    private final Set<String> localRoots = ConcurrentHashMap.newKeySet();
+    // spans of unsampled traces, by the span id of their local root, until it ends
+    private final ConcurrentHashMap<String, Queue<Span>> unsampled = new ConcurrentHashMap<>();
+    private volatile SpanExporter exporter = null;
+    private volatile Path dir = Client.DEFAULT_IPFS_DIR_PATH.toAbsolutePath();
+    private volatile int maxTraceFiles = TracingSection.defaultConfig().maxTraceFiles;
+    private volatile boolean enabled = true;
+    private volatile double sampleRate = TracingSection.defaultConfig().sampleRate;
+    private volatile long slowRequestNanos = TracingSection.defaultConfig().slowRequestMillis * 1_000_000;
+    private volatile Thread writer = null;
 
     private TraceLogger() {
-        // TODO(sonudoo): Remove a hardcoded mapping of peer Id to node Id.
-        nodeIdMap = new HashMap<>();
-        nodeIdMap.put("12D3KooWMDHFtZjTZ6Hdi5WEQPBxJp7gT4yqtQkne6DCqiQCBP73", 0);
-        nodeIdMap.put("12D3KooWNdeb2dTYZ9X4T1PREUoFgR8f3yrGbMjMsd8PSZgcBZ3s", 1);
-        nodeIdMap.put("12D3KooWNvMgnv9iHJDcEKRriGc7zT5NcTwffaKE1XgZRUZ1BDPe", 2);
-        nodeIdMap.put("12D3KooWHA6vxTu6F2grKnErGsZMMJiBXVJvAoCQzhKM5KcFgrDR", 3);
-        nodeIdMap.put("12D3KooWDbhwoVhREeDsZ8HHj6LfsykRJnG7TA8wEfXGQfnhiSBf", 4);
-        nodeIdMap.put("12D3KooWT1gBjWRTJuyqGa4dRuHyexGUBAR2Psoh6hqqAGej6Bc5", 5);
-        nodeIdMap.put("12D3KooWH8vCRRoH73tV7KaXf6o1dzJms7FxH7hd3M3eYSjF9zC7", 6);
-        nodeIdMap.put("12D3KooWHyor6CQ21vMhtSJ2qb1YEBfv9vgpe1VgA5iMYT4DTd9T", 7);
-        nodeIdMap.put("12D3KooWJWcBwDHBo7ecoBCsT8FJWvQax4Wmn2iKTCvG6uhLKZN6", 8);
-        nodeIdMap.put("12D3KooWCfWmdJYdAUwm1pTxFKsRDRzGmsbeUMpriNNocMDVMmum", 9);
         currentNodeId = -1;
     }
 
-    private void createAndSetupOutput() throws InterruptedException, IOException {
-        if (flusher != null) {
-            flusher.interrupt();
-            flusher.join();
-            flusher = null;
-        }
-        if (output != null) {
-            output.flush();
-            output.close();
-            output = null;
-        }
-        if (outFile != null) {
-            outFile.flush();
-            outFile.close();
-        }
-        try {
-            // Prepend each log file with the creation timestamp
-            long logFileCreationTimestampNanos = System.nanoTime();
-
-            outFile = new FileOutputStream(
-                    Client.DEFAULT_IPFS_DIR_PATH.toAbsolutePath().toString() + "/" + logFileCreationTimestampNanos
-                            + ".trace.log",
-                    /* append= */ true);
-
-            // An output stream with 100 MB buffer.
-            output = new BufferedOutputStream(outFile, 100 * 1024 * 1024);
-
-            flusher = new Thread(new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        flushLogs();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        return;
-                    }
-                }
-            }));
-            flusher.start();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+    /**
+     * Starts the background writer on the first traced event.
+     */
+    private void ensureWriterStarted() {
+        if (writer != null)
             return;
+        synchronized (this) {
+            if (writer == null)
+                writer = TraceWriter.start(new TraceWriter(ring, dir, MAX_LOG_FILE_SIZE_MB, maxTraceFiles,
+                        currentNodeId));
         }
     }
 
-    @SuppressWarnings("deprecation")
-    private void writeLog(TraceType type, String debugDetails) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(TraceContext.getTraceId() + "\t");
-        builder.append(currentNodeId + "\t");
-        builder.append(Thread.currentThread().getId() + "\t");
-        long currentTimeMillis = System.currentTimeMillis();
-        builder.append(currentTimeMillis + "\t");
-        Instant instance = Instant.ofEpochMilli(currentTimeMillis);
-        var localDateTime = java.time.LocalDateTime
-                .ofInstant(instance, java.time.ZoneId.of("America/Los_Angeles"));
-        builder.append(localDateTime + "\t");
-        builder.append(type.name() + "\t");
-        builder.append(debugDetails);
-        builder.append("\n");
-        String log = builder.toString();
-        // TODO(sonudoo): Turn off logging to stdout.
-        System.out.print(log);
-
-        _writeLog(log);
-    }
-
-    @SuppressWarnings("deprecation")
-    private void writeLog(TraceType type, PeerId remotePeerId, String debugDetails) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(TraceContext.getTraceId() + "\t");
-        builder.append(currentNodeId + "\t");
-        builder.append(nodeIdMap.get(remotePeerId.toString()) + "\t");
-        builder.append(Thread.currentThread().getId() + "\t");
-        long currentTimeMillis = System.currentTimeMillis();
-        builder.append(currentTimeMillis + "\t");
-        Instant instance = Instant.ofEpochMilli(currentTimeMillis);
-        var localDateTime = java.time.LocalDateTime
-                .ofInstant(instance, java.time.ZoneId.of("America/Los_Angeles"));
-        builder.append(localDateTime + "\t");
-        builder.append(type.name() + "\t");
-        builder.append(debugDetails);
-        builder.append("\n");
-        String log = builder.toString();
-        // TODO(sonudoo): Turn off logging to stdout.
-        System.out.print(log);
-
-        _writeLog(log);
-    }
-
-    private void _writeLog(String log) {
-        synchronized (this) {
-            try {
-                synchronized (this) {
-                    // Rollover to a new log file after log file limit is exceeded.
-                    if (outFile == null || outFile.getChannel().size() > MAX_LOG_FILE_SIZE_MB) {
-                        createAndSetupOutput();
-                    }
-                    output.write(log.getBytes(Charset.forName("UTF-8")));
-                }
-            } catch (InterruptedException ie) {
-                ie.printStackTrace();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+    private int remoteNodeId(PeerId remotePeerId) {
+        if (remoteNodeIds.size() > 10_000)
+            remoteNodeIds.clear();
+        return remoteNodeIds.computeIfAbsent(remotePeerId, this::nodeId);
     }
 
-    private void flushLogs() throws IOException, InterruptedException {
-        while (true) {
+    /**
+     * The configured id of a peer, or a non negative id derived from its peer id.
+     */
+    private int nodeId(PeerId peerId) {
+        Integer configured = nodeIds.get(peerId.toString());
+        if (configured != null)
+            return configured;
+        return Arrays.hashCode(peerId.getBytes()) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Trace ids are 32 hex chars, which are packed into two longs. Anything else is hashed into the low half.
+     */
+    private static long[] packTraceId(String traceId) {
+        if (traceId.length() == 32) {
             try {
-                // Flush every 100 seconds.
-                Thread.sleep(1000);
-                synchronized (this) {
-                    output.flush();
-                }
-            } catch (InterruptedException ie) {
-                throw ie;
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
-            }
+                return new long[] {
+                        Long.parseUnsignedLong(traceId.substring(0, 16), 16),
+                        Long.parseUnsignedLong(traceId.substring(16), 16)};
+            } catch (NumberFormatException e) {}
         }
+        return new long[] {0, traceId.hashCode()};
+    }
+
+    private void writeLog(TraceType type, int remoteNodeId, int count, byte[] detail) {
+        // unsampled traces only have spans, which are dropped unless the request turns out to be slow
+        if (!isSampled())
+            return;
+        ensureWriterStarted();
+        long[] traceId = packTraceId(getTraceId());
+        ring.offer(traceId[0], traceId[1], System.currentTimeMillis(), Thread.currentThread().getId(),
+                type.ordinal(), currentNodeId, remoteNodeId, count, detail);
+    }
+
+    private void writeLog(TraceType type, Cid cid) {
+        writeLog(type, NO_PEER, NO_COUNT, cid.toBytes());
+    }
 
+    private void writeLog(TraceType type, PeerId remotePeerId, int count) {
+        writeLog(type, remoteNodeId(remotePeerId), count, null);
     }
 }
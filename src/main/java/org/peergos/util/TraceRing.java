@@ -0,0 +1,114 @@
+package org.peergos.util;
+
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded lock-free ring of fixed size binary trace events, with many producers and a single consumer.
+ *
+ * Each slot has a sequence number (as in Vyukov's bounded MPMC queue), so producers claim a slot with a single CAS and
+ * never block. When the ring is full new events are dropped and counted rather than slowing down the traced code.
+ *
+ * Event layout (big endian):
+ *   0  trace id, high 64 bits
+ *   8  trace id, low 64 bits
+ *   16 wall clock time in millis
+ *   24 thread id
+ *   32 event type ordinal
+ *   36 local node id
+ *   40 remote node id, or -1
+ *   44 count (wants or blocks in a message), or -1
+ *   48 detail length (short)
+ *   50 detail bytes, e.g. a cid, truncated to MAX_DETAIL_SIZE
+ */
+public class TraceRing {
+    public static final int EVENT_SIZE = 96;
+    public static final int MAX_DETAIL_SIZE = EVENT_SIZE - 50;
+
+    private final int mask;
+    private final ByteBuffer slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    // only touched by the consumer
+    private long head = 0;
+    private final ByteBuffer consumerView;
+
+    public TraceRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        this.mask = capacity - 1;
+        this.slots = ByteBuffer.allocate(capacity * EVENT_SIZE);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+        this.consumerView = slots.duplicate();
+    }
+
+    /**
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean offer(long traceHi,
+                         long traceLo,
+                         long timeMillis,
+                         long threadId,
+                         int type,
+                         int nodeId,
+                         int remoteNodeId,
+                         int count,
+                         byte[] detail) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            long seq = sequences.get((int) (pos & mask));
+            long diff = seq - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int index = (int) (pos & mask);
+        int base = index * EVENT_SIZE;
+        // absolute puts into a disjoint region of the buffer are safe without locking
+        slots.putLong(base, traceHi);
+        slots.putLong(base + 8, traceLo);
+        slots.putLong(base + 16, timeMillis);
+        slots.putLong(base + 24, threadId);
+        slots.putInt(base + 32, type);
+        slots.putInt(base + 36, nodeId);
+        slots.putInt(base + 40, remoteNodeId);
+        slots.putInt(base + 44, count);
+        int detailLength = detail == null ? 0 : Math.min(detail.length, MAX_DETAIL_SIZE);
+        slots.putShort(base + 48, (short) detailLength);
+        for (int i = 0; i < detailLength; i++)
+            slots.put(base + 50 + i, detail[i]);
+        // publish the slot to the consumer
+        sequences.lazySet(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Copy the oldest event into out, which must have EVENT_SIZE bytes remaining. Only call from one thread.
+     *
+     * @return false if there are no events
+     */
+    public boolean poll(ByteBuffer out) {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1)
+            return false;
+        int base = index * EVENT_SIZE;
+        consumerView.limit(base + EVENT_SIZE).position(base);
+        out.put(consumerView);
+        // free the slot for the producer one lap ahead
+        sequences.lazySet(index, head + mask + 1);
+        head++;
+        return true;
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+}
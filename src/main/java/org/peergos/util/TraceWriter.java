@@ -0,0 +1,134 @@
+package org.peergos.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/**
+ * Drains a TraceRing on a single background thread into binary trace segments, rolling over to a new segment when
+ * the current one reaches its maximum size. Only the newest segments are kept, older ones are deleted on rollover.
+ *
+ * Segment layout: a header of magic (int), version (int), event size (int), node id (int) and creation time in millis
+ * (long), followed by fixed size events as laid out in TraceRing. Use TraceDecoder to turn segments into text.
+ */
+public class TraceWriter implements Runnable {
+    private static final Logger LOG = Logging.LOG();
+    public static final int MAGIC = 0x4e545243; // "NTRC"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+    public static final String SEGMENT_SUFFIX = ".trace.bin";
+    private static final long FLUSH_INTERVAL_MILLIS = 1_000;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final TraceRing ring;
+    private final Path dir;
+    private final long maxSegmentSize;
+    private final int maxSegments;
+    private final int nodeId;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+    private FileChannel segment;
+    private long segmentSize;
+
+    public TraceWriter(TraceRing ring, Path dir, long maxSegmentSize, int maxSegments, int nodeId) {
+        this.ring = ring;
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegments = maxSegments;
+        this.nodeId = nodeId;
+    }
+
+    public static Thread start(TraceWriter writer) {
+        Thread t = new Thread(writer, "Trace writer");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    @Override
+    public void run() {
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+                boolean drained = false;
+                while (buffer.remaining() >= TraceRing.EVENT_SIZE && ring.poll(buffer))
+                    drained = true;
+                long now = System.currentTimeMillis();
+                if (buffer.remaining() < TraceRing.EVENT_SIZE || (buffer.position() > 0 && now - lastFlush > FLUSH_INTERVAL_MILLIS)) {
+                    flush();
+                    lastFlush = now;
+                }
+                if (! drained)
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            flush();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Trace writer stopped: " + e.getMessage(), e);
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (buffer.position() == 0)
+            return;
+        if (segment == null || segmentSize + buffer.position() > maxSegmentSize)
+            rollover();
+        buffer.flip();
+        while (buffer.hasRemaining())
+            segmentSize += segment.write(buffer);
+        buffer.clear();
+    }
+
+    private void rollover() throws IOException {
+        closeSegment();
+        Files.createDirectories(dir);
+        long created = System.currentTimeMillis();
+        Path file = dir.resolve(created + "-" + System.nanoTime() + SEGMENT_SUFFIX);
+        segment = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(TraceRing.EVENT_SIZE).putInt(nodeId).putLong(created);
+        header.flip();
+        while (header.hasRemaining())
+            segment.write(header);
+        segmentSize = HEADER_SIZE;
+        deleteOldest(dir, SEGMENT_SUFFIX, maxSegments);
+    }
+
+    /**
+     * Delete all but the newest files in dir with a suffix. Their names start with their creation time in millis.
+     */
+    static void deleteOldest(Path dir, String suffix, int keep) {
+        List<Path> files;
+        try (Stream<Path> all = Files.list(dir)) {
+            files = all.filter(f -> f.getFileName().toString().endsWith(suffix))
+                    .sorted(Comparator.comparing(f -> f.getFileName().toString()))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't list " + dir + ": " + e.getMessage(), e);
+            return;
+        }
+        for (Path old : files.subList(0, Math.max(0, files.size() - keep))) {
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't delete " + old + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (segment == null)
+            return;
+        try {
+            segment.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+        segment = null;
+    }
+}
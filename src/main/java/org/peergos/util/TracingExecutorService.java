@@ -0,0 +1,45 @@
+package org.peergos.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An ExecutorService which runs each task in the trace context of the thread which submitted it.
+ */
+public class TracingExecutorService extends AbstractExecutorService {
+    private final ExecutorService target;
+
+    public TracingExecutorService(ExecutorService target) {
+        this.target = target;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        target.execute(TraceLogger.wrap(command));
+    }
+
+    @Override
+    public void shutdown() {
+        target.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return target.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return target.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return target.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return target.awaitTermination(timeout, unit);
+    }
+}
@@ -11,6 +11,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.stream.*;
 
 public class APIServiceTest {
 
@@ -55,6 +56,20 @@ public class APIServiceTest {
         Assert.assertTrue("blocks retrieved", blocks.size() == 2);
     }
 
+    @Test
+    public void streamBlocksTest() {
+        EmbeddedIpfs ipfs = new EmbeddedIpfs(null, new ProvidingBlockstore(new RamBlockstore()), null,
+                null, null, Optional.empty(), Collections.emptyList(), Optional.empty());
+        List<Want> wants = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            wants.add(new Want(ipfs.blockstore.put(("block " + i).getBytes(), Cid.Codec.Raw).join()));
+        List<HashedBlock> received = new ArrayList<>();
+        int count = ipfs.streamBlocks(wants, Collections.emptySet(), received::add);
+        Assert.assertEquals(wants.size(), count);
+        Assert.assertEquals(wants.stream().map(w -> w.cid).collect(Collectors.toList()),
+                received.stream().map(b -> b.hash).collect(Collectors.toList()));
+    }
+
     public static void runAPIServiceTest(Blockstore blocks) {
         EmbeddedIpfs ipfs = new EmbeddedIpfs(null, new ProvidingBlockstore(blocks), null,
                 null, null, Optional.empty(), Collections.emptyList(), Optional.empty());
@@ -0,0 +1,84 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class BitswapBlockServiceTest {
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        BitswapEngine engine = new BitswapEngine(new RamBlockstore(), (c, p, a) -> CompletableFuture.completedFuture(true),
+                Bitswap.MAX_MESSAGE_SIZE);
+        AtomicInteger wantsSent = new AtomicInteger(0);
+        Bitswap bitswap = new Bitswap(engine) {
+            @Override
+            public void sendWantsTo(Host us, Set<Want> wants, PeerId peer) {
+                wantsSent.incrementAndGet();
+            }
+        };
+        AtomicInteger lookups = new AtomicInteger(0);
+        CompletableFuture<List<PeerAddresses>> lookup = new CompletableFuture<>();
+        List<Consumer<PeerAddresses>> onProvider = new CopyOnWriteArrayList<>();
+        Multihash us = Multihash.deserialize(PeerId.random().getBytes());
+        Kademlia dht = new Kademlia(new KademliaEngine(us, new RamProviderStore(1000), new RamRecordStore(),
+                new RamBlockstore()), false) {
+            @Override
+            public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block,
+                                                                        Host us,
+                                                                        int desiredCount,
+                                                                        Consumer<PeerAddresses> found) {
+                lookups.incrementAndGet();
+                onProvider.add(found);
+                return lookup;
+            }
+        };
+        BitswapBlockService service = new BitswapBlockService(null, bitswap, dht);
+
+        byte[] block = "coalesced".getBytes();
+        Cid cid = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(block));
+        Want want = new Want(cid);
+        int requests = 20;
+        ExecutorService threads = Executors.newFixedThreadPool(requests);
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Future<CompletableFuture<HashedBlock>>> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++)
+            results.add(threads.submit(() -> {
+                ready.await();
+                return service.getAsync(List.of(want), Collections.emptySet()).get(0);
+            }));
+        ready.countDown();
+        List<CompletableFuture<HashedBlock>> fetches = new ArrayList<>();
+        for (Future<CompletableFuture<HashedBlock>> f : results)
+            fetches.add(f.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, lookups.get());
+
+        // the lookup finds a provider, which is asked for the block once
+        PeerId provider = PeerId.random();
+        onProvider.get(0).accept(new PeerAddresses(Multihash.deserialize(provider.getBytes()), Collections.emptyList()));
+        // the session is started off the calling (network) thread
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (wantsSent.get() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(1, wantsSent.get());
+
+        engine.getWant(want).complete(new HashedBlock(cid, block));
+        for (CompletableFuture<HashedBlock> f : fetches)
+            Assert.assertArrayEquals(block, f.get(10, TimeUnit.SECONDS).block);
+        lookup.complete(Collections.emptyList());
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(1, wantsSent.get());
+
+        threads.shutdown();
+        bitswap.shutdown();
+    }
+}
@@ -0,0 +1,53 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BitswapEngineTest {
+
+    @Test
+    public void expiryLeavesRecreatedWantIntact() throws Exception {
+        BitswapEngine engine = new BitswapEngine(new RamBlockstore(), (c, p, a) -> CompletableFuture.completedFuture(true),
+                Bitswap.MAX_MESSAGE_SIZE);
+        byte[] hash = new byte[32];
+        new Random(1).nextBytes(hash);
+        Want w = new Want(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+        PeerId peer = PeerId.random();
+
+        CompletableFuture<HashedBlock> old = engine.getWant(w);
+        engine.sentWants().update(peer, Set.of(w), x -> MessageOuterClass.Message.Wantlist.WantType.Block,
+                System.currentTimeMillis());
+        Thread.sleep(20);
+        // a new request for the block arrives while the expired want is being cancelled
+        List<CompletableFuture<HashedBlock>> recreated = new ArrayList<>();
+        List<PeerId> cancelled = new ArrayList<>();
+        engine.setCancelSender((p, wants) -> {
+            cancelled.add(p);
+            recreated.add(engine.getWant(w));
+        });
+        engine.expireWants(10);
+
+        Assert.assertEquals(List.of(peer), cancelled);
+        Assert.assertTrue(old.isCompletedExceptionally());
+        Assert.assertEquals(1, recreated.size());
+        CompletableFuture<HashedBlock> fresh = recreated.get(0);
+        Assert.assertNotSame(old, fresh);
+        Assert.assertFalse(fresh.isDone());
+        Assert.assertTrue(engine.isWanted(w));
+        Assert.assertSame(fresh, engine.getWant(w));
+
+        // the new want is only expired once it is old enough itself
+        engine.expireWants(60_000);
+        Assert.assertFalse(fresh.isDone());
+        Assert.assertTrue(engine.isWanted(w));
+        engine.shutdown();
+    }
+}
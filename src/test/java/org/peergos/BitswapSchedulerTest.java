@@ -0,0 +1,116 @@
+package org.peergos;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.bitswap.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BitswapSchedulerTest {
+
+    @Test
+    public void weightedRoundRobin() {
+        BitswapScheduler scheduler = new BitswapScheduler(1, BitswapScheduler.DEFAULT_MAX_BYTES_IN_FLIGHT_PER_PEER);
+        PeerId a = PeerId.random(), b = PeerId.random(), blocker = PeerId.random();
+        scheduler.setWeight(a, 2);
+        List<PeerId> started = new ArrayList<>();
+        // hold the only slot until both peers have queued all their work
+        CompletableFuture<Void> held = new CompletableFuture<>();
+        scheduler.submit(blocker, () -> held);
+        for (int i = 0; i < 6; i++) {
+            scheduler.submit(a, () -> {
+                started.add(a);
+                return CompletableFuture.completedFuture(null);
+            });
+            scheduler.submit(b, () -> {
+                started.add(b);
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        Assert.assertEquals(6, scheduler.queueDepth(a));
+        held.complete(null);
+
+        Assert.assertEquals(List.of(a, a, b, a, a, b, a, a, b, b, b, b), started);
+        Assert.assertEquals(0, scheduler.queueDepth(a));
+        Assert.assertEquals(0, scheduler.queueDepth(b));
+    }
+
+    @Test
+    public void skipsPeersOverTheirByteLimit() {
+        long limit = 100;
+        BitswapScheduler scheduler = new BitswapScheduler(10, limit);
+        PeerId a = PeerId.random(), b = PeerId.random();
+        List<String> started = new ArrayList<>();
+        scheduler.submit(a, () -> {
+            started.add("a1");
+            // read a block for a which hasn't been sent yet
+            scheduler.charge(a, limit);
+            return CompletableFuture.completedFuture(null);
+        });
+        CompletableFuture<Void> a2 = scheduler.submit(a, () -> {
+            started.add("a2");
+            return CompletableFuture.completedFuture(null);
+        });
+        scheduler.submit(b, () -> {
+            started.add("b1");
+            return CompletableFuture.completedFuture(null);
+        });
+        Assert.assertEquals(List.of("a1", "b1"), started);
+        Assert.assertFalse(a2.isDone());
+        Assert.assertEquals(1, scheduler.queueDepth(a));
+
+        // sending the block frees a to be served again
+        scheduler.release(a, limit);
+        Assert.assertEquals(List.of("a1", "b1", "a2"), started);
+        Assert.assertTrue(a2.isDone());
+    }
+
+    @Test
+    public void servedBytesOutliveIdlePeriods() {
+        BitswapScheduler scheduler = new BitswapScheduler(10, BitswapScheduler.DEFAULT_MAX_BYTES_IN_FLIGHT_PER_PEER);
+        PeerId a = PeerId.random(), b = PeerId.random();
+        serve(scheduler, a, 100);
+        serve(scheduler, b, 300);
+        // both ledgers are now idle and dropped
+        Assert.assertEquals(0, scheduler.queueDepth(a));
+        Assert.assertEquals(100, scheduler.servedBytes(a));
+
+        serve(scheduler, a, 50);
+        Assert.assertEquals(150, scheduler.servedBytes(a));
+        Assert.assertEquals(List.of(b, a), new ArrayList<>(scheduler.mostServed(2).keySet()));
+        Assert.assertEquals(List.of(b), new ArrayList<>(scheduler.mostServed(1).keySet()));
+    }
+
+    @Test
+    public void deepestQueuesFirst() {
+        BitswapScheduler scheduler = new BitswapScheduler(1, BitswapScheduler.DEFAULT_MAX_BYTES_IN_FLIGHT_PER_PEER);
+        PeerId blocker = PeerId.random(), a = PeerId.random(), b = PeerId.random();
+        CompletableFuture<Void> held = new CompletableFuture<>();
+        scheduler.submit(blocker, () -> held);
+        for (int i = 0; i < 3; i++)
+            scheduler.submit(a, () -> CompletableFuture.completedFuture(null));
+        scheduler.submit(b, () -> CompletableFuture.completedFuture(null));
+
+        Assert.assertEquals(Map.of(a, 3), scheduler.deepestQueues(1));
+        Assert.assertEquals(List.of(a, b), new ArrayList<>(scheduler.deepestQueues(10).keySet()));
+        held.complete(null);
+        Assert.assertTrue(scheduler.deepestQueues(10).isEmpty());
+    }
+
+    private static void serve(BitswapScheduler scheduler, PeerId peer, long bytes) {
+        scheduler.submit(peer, () -> {
+            scheduler.charge(peer, bytes);
+            return CompletableFuture.completedFuture(null);
+        });
+        scheduler.release(peer, bytes);
+    }
+
+    @Test
+    public void byteLimitFitsTwoMessages() {
+        int maxMessageSize = 16 * 1024 * 1024;
+        Assert.assertTrue(BitswapScheduler.maxBytesInFlightPerPeer(maxMessageSize) >= 2L * maxMessageSize);
+        Assert.assertEquals(BitswapScheduler.DEFAULT_MAX_BYTES_IN_FLIGHT_PER_PEER,
+                BitswapScheduler.maxBytesInFlightPerPeer(1024 * 1024));
+    }
+}
@@ -9,10 +9,12 @@ import org.junit.Test;
 import org.peergos.blockstore.FileBlockstore;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.Optional;
+import java.util.Random;
 
 public class BlockStoreTest {
 
@@ -69,4 +71,24 @@ public class BlockStoreTest {
         Assert.assertTrue("data match", str.equals(msg));
     }
 
+    @Test
+    public void fileStoreBuffers() {
+        FileBlockstore bs = new FileBlockstore(TMP_DATA_FOLDER.toPath());
+        Random r = new Random(42);
+        for (int size : new int[]{0, 10, 256 * 1024, 1024 * 1024}) {
+            byte[] block = new byte[size];
+            r.nextBytes(block);
+            Cid cid = bs.put(block, Cid.Codec.Raw).join();
+
+            ByteBuffer buf = bs.getBuffer(cid).join().get();
+            Assert.assertEquals("buffer size", size, buf.remaining());
+            byte[] read = new byte[buf.remaining()];
+            buf.get(read);
+            Assert.assertArrayEquals("buffer contents", block, read);
+            Assert.assertArrayEquals("array contents", block, bs.get(cid).join().get());
+        }
+        Cid missing = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256("missing".getBytes()));
+        Assert.assertTrue("missing block", bs.getBuffer(missing).join().isEmpty());
+    }
+
 }
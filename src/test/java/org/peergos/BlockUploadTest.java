@@ -0,0 +1,62 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.net.*;
+
+import java.io.*;
+import java.util.*;
+
+public class BlockUploadTest {
+    private static final Random r = new Random(7);
+
+    @Test
+    public void multipartBinaryBlocks() throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        for (int size : new int[] {1, 1000, 200 * 1024}) {
+            byte[] block = new byte[size];
+            r.nextBytes(block);
+            blocks.add(block);
+        }
+        String boundary = "----boundary" + System.currentTimeMillis();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] block : blocks) {
+            body.write(("--" + boundary + "\r\n").getBytes());
+            body.write("Content-Disposition: file; filename=\"\"\r\n".getBytes());
+            body.write("Content-Type: application/octet-stream\r\n\r\n".getBytes());
+            body.write(block);
+            body.write("\r\n".getBytes());
+        }
+        body.write(("--" + boundary + "--\r\n").getBytes());
+
+        List<BlockBuffer> received = new ArrayList<>();
+        MultipartReceiver.streamFiles(new ByteArrayInputStream(body.toByteArray()), boundary,
+                () -> new BlockBuffer(1024 * 1024), received::add);
+        Assert.assertEquals(blocks.size(), received.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            Assert.assertArrayEquals(blocks.get(i), received.get(i).toByteArray());
+            Assert.assertArrayEquals(Hash.sha256(blocks.get(i)), received.get(i).sha256());
+        }
+    }
+
+    @Test
+    public void truncatedPartRejected() {
+        String boundary = "----boundary";
+        byte[] body = ("--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\npartial block").getBytes();
+        List<BlockBuffer> received = new ArrayList<>();
+        try {
+            MultipartReceiver.streamFiles(new ByteArrayInputStream(body), boundary,
+                    () -> new BlockBuffer(1024 * 1024), received::add);
+            Assert.fail("Truncated part accepted");
+        } catch (IOException expected) {}
+        Assert.assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void sizeLimitAppliedWhileReading() {
+        byte[] block = new byte[2048];
+        try {
+            new BlockBuffer(1024).readFrom(new ByteArrayInputStream(block));
+            Assert.fail("Oversized block accepted");
+        } catch (IOException expected) {}
+    }
+}
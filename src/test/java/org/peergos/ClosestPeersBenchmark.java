@@ -0,0 +1,119 @@
+package org.peergos;
+
+import com.offbynull.kademlia.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+import org.peergos.protocol.dht.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Single threaded cost of finding the 20 closest peers to a key, and their multihashes, on a full routing table.
+ * Compares the primitive key index with sorting every peer by byte-wise XOR distance and decoding each result, as the
+ * table did before, and with the Router lookups before that, which also parsed each result from base58.
+ *
+ * Run with: java -cp <test classpath> org.peergos.ClosestPeersBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClosestPeersBenchmark {
+    private static final int PEERS = 2000;
+    private static final int K = 20;
+
+    private static final class Sorted {
+        final PeerId peer;
+        final byte[] key;
+
+        Sorted(PeerId peer, byte[] key) {
+            this.peer = peer;
+            this.key = key;
+        }
+    }
+
+    private List<byte[]> targets;
+    private RoutingTable table;
+    private List<Sorted> sorted;
+    private Router router;
+
+    @Setup
+    public void setup() {
+        Key256 ourKey = RoutingTable.keyOf(PeerId.random());
+        table = new RoutingTable(ourKey, K, 10);
+        router = new Router(Id.create(ourKey.toBytes(), 256), 2, 2, 2);
+        for (int i = 0; i < PEERS; i++) {
+            PeerId peer = PeerId.random();
+            table.touch(peer, i);
+            router.touch(Instant.now(), new Node(Id.create(RoutingTable.keyOf(peer).toBytes(), 256), peer.toString()));
+        }
+        // compare on the same peers, the ones which fit in the table's buckets
+        sorted = table.find(ourKey, Integer.MAX_VALUE).stream()
+                .map(e -> new Sorted(e.peer, e.key.toBytes()))
+                .collect(Collectors.toList());
+        Random r = new Random(1);
+        targets = Stream.generate(() -> {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            return key;
+        }).limit(1024).collect(Collectors.toList());
+    }
+
+    private byte[] nextTarget() {
+        return targets.get(ThreadLocalRandom.current().nextInt(targets.size()));
+    }
+
+    @Benchmark
+    public List<Multihash> table() {
+        List<RoutingTable.Entry> closest = table.find(Key256.of(nextTarget()), K);
+        List<Multihash> res = new ArrayList<>(closest.size());
+        for (RoutingTable.Entry e : closest)
+            res.add(e.id);
+        return res;
+    }
+
+    @Benchmark
+    public List<Multihash> sortAll() {
+        byte[] target = nextTarget();
+        List<Sorted> all = new ArrayList<>(sorted);
+        all.sort((a, b) -> compareDistance(a.key, b.key, target));
+        return all.stream()
+                .limit(K)
+                .map(s -> Multihash.deserialize(s.peer.getBytes()))
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public List<Multihash> router() {
+        return router.find(Id.create(nextTarget(), 256), K, false).stream()
+                .map(n -> {
+                    PeerId.fromBase58(n.getLink());
+                    return Multihash.fromBase58(n.getLink());
+                })
+                .collect(Collectors.toList());
+    }
+
+    private static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            int da = (a[i] ^ target[i]) & 0xff;
+            int db = (b[i] ^ target[i]) & 0xff;
+            if (da != db)
+                return da - db;
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ClosestPeersBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
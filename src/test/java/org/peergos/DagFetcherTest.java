@@ -0,0 +1,78 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class DagFetcherTest {
+
+    @Test
+    public void fetchTree() {
+        RamBlockstore source = new RamBlockstore();
+        Cid root = buildTree(source, 4, 3);
+        Set<Cid> all = new HashSet<>(source.refs(false).join());
+
+        RamBlockstore local = new RamBlockstore();
+        BlockService remote = (wants, peers) -> wants.stream()
+                .map(w -> new HashedBlock(w.cid, source.get(w.cid).join().get()))
+                .collect(Collectors.toList());
+        Set<Cid> received = ConcurrentHashMap.newKeySet();
+        long count = new DagFetcher(local, remote).fetch(new Want(root), -1, 4, Collections.emptySet(),
+                b -> received.add(b.hash));
+        Assert.assertEquals(all.size(), count);
+        Assert.assertEquals(all, received);
+
+        // only the root and its children
+        Set<Cid> shallow = ConcurrentHashMap.newKeySet();
+        new DagFetcher(local, remote).fetch(new Want(root), 1, 4, Collections.emptySet(), b -> shallow.add(b.hash));
+        Assert.assertEquals(4, shallow.size());
+    }
+
+    @Test
+    public void looksUpProvidersOfDeeperBlocks() {
+        RamBlockstore source = new RamBlockstore();
+        Cid root = buildTree(source, 3, 3);
+        Set<Cid> all = new HashSet<>(source.refs(false).join());
+        // one peer only has the root, and another has the whole dag
+        PeerId rootOnly = PeerId.random(), everything = PeerId.random();
+        BlockService remote = new BlockService() {
+            @Override
+            public List<HashedBlock> get(List<Want> wants, Set<PeerId> peers) {
+                return wants.stream()
+                        .filter(w -> peers.contains(everything) || (peers.contains(rootOnly) && w.cid.equals(root)))
+                        .map(w -> new HashedBlock(w.cid, source.get(w.cid).join().get()))
+                        .collect(Collectors.toList());
+            }
+
+            @Override
+            public Set<PeerId> findProviders(Want w) {
+                return w.cid.equals(root) ? Set.of(rootOnly) : Set.of(rootOnly, everything);
+            }
+        };
+        Set<Cid> received = ConcurrentHashMap.newKeySet();
+        long count = new DagFetcher(new RamBlockstore(), remote).fetch(new Want(root), -1, 4, Collections.emptySet(),
+                b -> received.add(b.hash));
+        Assert.assertEquals(all.size(), count);
+        Assert.assertEquals(all, received);
+    }
+
+    private static Cid buildTree(Blockstore store, int depth, int fanout) {
+        if (depth == 0) {
+            byte[] leaf = new byte[32];
+            new Random().nextBytes(leaf);
+            return store.put(leaf, Cid.Codec.Raw).join();
+        }
+        List<Cid> children = IntStream.range(0, fanout)
+                .mapToObj(i -> buildTree(store, depth - 1, fanout))
+                .collect(Collectors.toList());
+        byte[] node = CborObject.CborMap.build(Map.of(
+                "links", CborObject.CborList.build(children, CborObject.CborMerkleLink::new))).toByteArray();
+        return store.put(node, Cid.Codec.DagCbor).join();
+    }
+}
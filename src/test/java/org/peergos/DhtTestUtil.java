@@ -0,0 +1,47 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Random keys and peers, and a brute force closest peer search, for tests of the dht.
+ */
+public class DhtTestUtil {
+
+    public static Multihash randomHash(Random r) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Multihash(Multihash.Type.sha2_256, hash);
+    }
+
+    public static PeerAddresses randomPeer(Random r) {
+        return new PeerAddresses(randomHash(r), Collections.emptyList());
+    }
+
+    public static Key256 keyOf(Multihash h) {
+        return Key256.hash(h.bareMultihash().toBytes());
+    }
+
+    /**
+     * @return the peers keyed by their position in the keyspace, so repeated searches don't hash them again
+     */
+    public static Map<Key256, PeerAddresses> byKey(Collection<PeerAddresses> peers) {
+        return peers.stream()
+                .collect(Collectors.toMap(p -> keyOf(p.peerId), p -> p));
+    }
+
+    public static List<PeerAddresses> closest(Map<Key256, PeerAddresses> peers, Key256 target, int k) {
+        return peers.keySet().stream()
+                .sorted(target::compareDistance)
+                .limit(k)
+                .map(peers::get)
+                .collect(Collectors.toList());
+    }
+
+    public static List<PeerAddresses> closest(Collection<PeerAddresses> peers, Key256 target, int k) {
+        return closest(byKey(peers), target, k);
+    }
+}
@@ -52,9 +52,18 @@ public class FindProviderTest {
             dht.bootstrap(node1);
 
             Multihash block = Cid.decode("bafybeigdyrzt5sfp7udm7hu76uh7y26nf3efuylqabf3oclgtqy55fbzdi");
-            List<PeerAddresses> providers = dht.findProviders(block, node1, 10).join();
+            CompletableFuture<PeerAddresses> first = new CompletableFuture<>();
+            List<PeerAddresses> streamed = Collections.synchronizedList(new ArrayList<>());
+            CompletableFuture<List<PeerAddresses>> lookup = dht.findProviders(block, node1, 10, p -> {
+                streamed.add(p);
+                first.complete(p);
+            });
+            PeerAddresses firstProvider = first.orTimeout(30, TimeUnit.SECONDS).join();
+            List<PeerAddresses> providers = lookup.join();
             if (providers.isEmpty())
                 throw new IllegalStateException("Couldn't find provider of block!");
+            Assert.assertTrue(providers.stream().anyMatch(p -> p.peerId.equals(firstProvider.peerId)));
+            Assert.assertEquals(providers.size(), streamed.size());
         } finally {
             node1.stop();
         }
@@ -0,0 +1,102 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+import static org.peergos.DhtTestUtil.*;
+
+public class LookupTest {
+
+    @Test
+    public void convergesOnClosestResponsivePeers() throws Exception {
+        Random r = new Random(1);
+        List<PeerAddresses> network = Stream.generate(() -> randomPeer(r)).limit(500).collect(Collectors.toList());
+        Set<Multihash> unresponsive = network.stream()
+                .filter(p -> r.nextInt(10) == 0)
+                .map(p -> p.peerId)
+                .collect(Collectors.toSet());
+        byte[] targetBytes = new byte[32];
+        r.nextBytes(targetBytes);
+        Key256 target = Key256.of(targetBytes);
+
+        // every peer knows the 40 peers closest to the target, enough to replace any which fail
+        List<PeerAddresses> known = closest(network, target, 40);
+        ScheduledExecutorService latency = Executors.newSingleThreadScheduledExecutor();
+        // a single thread, so the lookup would deadlock if it ever blocked waiting for a reply
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        AtomicInteger inFlight = new AtomicInteger(0), maxInFlight = new AtomicInteger(0);
+        Lookup lookup = new Lookup(target, 20, 3, 200, peer -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            CompletableFuture<List<PeerAddresses>> reply = new CompletableFuture<>();
+            latency.schedule(() -> unresponsive.contains(peer.peerId) ?
+                    reply.completeExceptionally(new ConnectException()) :
+                    reply.complete(known), 5, TimeUnit.MILLISECONDS);
+            return reply.whenComplete((res, e) -> inFlight.decrementAndGet());
+        }, () -> false, exec);
+
+        List<PeerAddresses> result = lookup.start(network.subList(0, 5)).get(30, TimeUnit.SECONDS);
+        List<PeerAddresses> responsive = network.stream()
+                .filter(p -> !unresponsive.contains(p.peerId))
+                .collect(Collectors.toList());
+        Assert.assertEquals(closest(responsive, target, 20), result);
+        Assert.assertTrue(maxInFlight.get() <= 3);
+        latency.shutdown();
+        exec.shutdown();
+    }
+
+    @Test
+    public void silentPeersTimeOut() throws Exception {
+        Random r = new Random(3);
+        List<PeerAddresses> network = Stream.generate(() -> randomPeer(r)).limit(30).collect(Collectors.toList());
+        Key256 target = Key256.of(new byte[32]);
+        List<PeerAddresses> silent = closest(network, target, 5);
+        Lookup lookup = new Lookup(target, 20, 3, 100, peer -> silent.contains(peer) ?
+                new CompletableFuture<>() :
+                CompletableFuture.completedFuture(network), () -> false, ForkJoinPool.commonPool());
+        List<PeerAddresses> result = lookup.start(network.subList(0, 3)).get(30, TimeUnit.SECONDS);
+        List<PeerAddresses> responsive = new ArrayList<>(network);
+        responsive.removeAll(silent);
+        Assert.assertEquals(closest(responsive, target, 20), result);
+    }
+
+    @Test
+    public void stopsWhenDone() throws Exception {
+        Random r = new Random(2);
+        List<PeerAddresses> network = Stream.generate(() -> randomPeer(r)).limit(100).collect(Collectors.toList());
+        AtomicInteger queries = new AtomicInteger(0);
+        Lookup lookup = new Lookup(Key256.of(new byte[32]), 20, 3, 200, peer -> {
+            queries.incrementAndGet();
+            return CompletableFuture.completedFuture(network);
+        }, () -> queries.get() >= 2, ForkJoinPool.commonPool());
+        lookup.start(network.subList(0, 1)).get(30, TimeUnit.SECONDS);
+        Assert.assertTrue(queries.get() < 20);
+    }
+
+    @Test
+    public void reportsFailedPeers() throws Exception {
+        Random r = new Random(4);
+        List<PeerAddresses> network = Stream.generate(() -> randomPeer(r)).limit(30).collect(Collectors.toList());
+        Key256 target = Key256.of(new byte[32]);
+        List<PeerAddresses> closest = closest(network, target, 6);
+        Set<PeerAddresses> silent = Set.of(closest.get(0), closest.get(2)), refusing = Set.of(closest.get(1));
+        Set<PeerAddresses> failed = ConcurrentHashMap.newKeySet();
+        Lookup lookup = new Lookup(target, 20, 3, 100, peer -> silent.contains(peer) ?
+                new CompletableFuture<>() :
+                refusing.contains(peer) ?
+                        CompletableFuture.failedFuture(new ConnectException()) :
+                        CompletableFuture.completedFuture(network),
+                () -> false, failed::add, ForkJoinPool.commonPool());
+        List<PeerAddresses> result = lookup.start(network.subList(0, 3)).get(30, TimeUnit.SECONDS);
+        Set<PeerAddresses> expected = new HashSet<>(silent);
+        expected.addAll(refusing);
+        Assert.assertEquals(expected, failed);
+        Assert.assertTrue(Collections.disjoint(failed, result));
+    }
+}
@@ -0,0 +1,84 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+
+public class PeerWantlistsTest {
+    private static final MessageOuterClass.Message.Wantlist.WantType HAVE =
+            MessageOuterClass.Message.Wantlist.WantType.Have;
+    private static final MessageOuterClass.Message.Wantlist.WantType BLOCK =
+            MessageOuterClass.Message.Wantlist.WantType.Block;
+
+    private static Want randomWant(Random r) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return new Want(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash));
+    }
+
+    @Test
+    public void sendsOnlyChanges() {
+        Random r = new Random(1);
+        PeerWantlists sent = new PeerWantlists(1000);
+        PeerId peer = PeerId.random();
+        Want a = randomWant(r), b = randomWant(r), c = randomWant(r);
+
+        PeerWantlists.Delta first = sent.update(peer, Set.of(a, b), w -> BLOCK, 0);
+        Assert.assertTrue(first.full);
+        Assert.assertEquals(Set.of(a, b), first.wants.keySet());
+
+        // nothing has changed
+        Assert.assertTrue(sent.update(peer, Set.of(a, b), w -> BLOCK, 10).isEmpty());
+
+        PeerWantlists.Delta added = sent.update(peer, Set.of(a, b, c), w -> w.equals(c) ? HAVE : BLOCK, 20);
+        Assert.assertFalse(added.full);
+        Assert.assertEquals(Map.of(c, HAVE), added.wants);
+        Assert.assertTrue(added.cancels.isEmpty());
+
+        // an upgrade from want-have to want-block is sent, and a dropped want is cancelled
+        PeerWantlists.Delta changed = sent.update(peer, Set.of(b, c), w -> BLOCK, 30);
+        Assert.assertEquals(Map.of(c, BLOCK), changed.wants);
+        Assert.assertEquals(Set.of(a), changed.cancels);
+        Assert.assertEquals(Set.of(b, c), sent.wantsFor(peer));
+    }
+
+    @Test
+    public void resendsAfterInterval() {
+        Random r = new Random(2);
+        PeerWantlists sent = new PeerWantlists(1000);
+        PeerId peer = PeerId.random();
+        Want a = randomWant(r), b = randomWant(r);
+        sent.update(peer, Set.of(a), w -> BLOCK, 0);
+        sent.update(peer, Set.of(a, b), w -> BLOCK, 600);
+
+        Assert.assertTrue(sent.update(peer, Set.of(a, b), w -> BLOCK, 1000).isEmpty());
+        // only the want sent more than an interval ago is sent again
+        Assert.assertEquals(Set.of(a), sent.update(peer, Set.of(a, b), w -> BLOCK, 1001).wants.keySet());
+        Assert.assertEquals(Set.of(b), sent.update(peer, Set.of(a, b), w -> BLOCK, 1601).wants.keySet());
+
+        // a reset peer, e.g. after reconnecting, gets the full wantlist again
+        sent.reset(peer);
+        PeerWantlists.Delta full = sent.update(peer, Set.of(a, b), w -> BLOCK, 1602);
+        Assert.assertTrue(full.full);
+        Assert.assertEquals(Set.of(a, b), full.wants.keySet());
+    }
+
+    @Test
+    public void cancelReportsPeersTold() {
+        Random r = new Random(3);
+        PeerWantlists sent = new PeerWantlists(1000);
+        PeerId told = PeerId.random(), other = PeerId.random();
+        Want a = randomWant(r), b = randomWant(r);
+        sent.update(told, Set.of(a), w -> BLOCK, 5);
+        sent.update(other, Set.of(b), w -> BLOCK, 7);
+
+        Assert.assertEquals(Map.of(told, 5L), sent.cancel(a));
+        Assert.assertTrue(sent.wantsFor(told).isEmpty());
+        Assert.assertEquals(Set.of(b), sent.wantsFor(other));
+    }
+}
@@ -0,0 +1,56 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static org.peergos.DhtTestUtil.*;
+
+public class ProviderCacheTest {
+
+    @Test
+    public void positiveAndNegativeTtls() {
+        Random r = new Random(1);
+        AtomicLong now = new AtomicLong(0);
+        ProviderCache cache = new ProviderCache(1000, 100, 1024 * 1024, now::get);
+        Multihash found = randomHash(r), missing = randomHash(r);
+        List<PeerAddresses> providers = List.of(randomPeer(r), randomPeer(r));
+        Assert.assertTrue(cache.get(found).isEmpty());
+        cache.put(found, providers);
+        cache.put(missing, Collections.emptyList());
+
+        Assert.assertEquals(providers, cache.get(found).get());
+        Assert.assertTrue("negative result is cached", cache.get(missing).get().isEmpty());
+
+        now.set(100);
+        Assert.assertTrue(cache.get(found).isPresent());
+        Assert.assertTrue("negative result expires sooner", cache.get(missing).isEmpty());
+
+        now.set(1000);
+        Assert.assertTrue(cache.get(found).isEmpty());
+        Assert.assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        Random r = new Random(2);
+        ProviderCache cache = new ProviderCache(60_000, 1000, 4096, System::currentTimeMillis);
+        List<Multihash> blocks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Multihash block = randomHash(r);
+            blocks.add(block);
+            cache.put(block, List.of(randomPeer(r)));
+            // keep the first one in use
+            Assert.assertTrue(cache.get(blocks.get(0)).isPresent());
+            Assert.assertTrue(cache.bytes() <= 4096);
+        }
+        Assert.assertTrue(cache.get(blocks.get(1)).isEmpty());
+        Assert.assertTrue(cache.get(blocks.get(99)).isPresent());
+
+        cache.invalidate(blocks.get(0));
+        Assert.assertTrue(cache.get(blocks.get(0)).isEmpty());
+    }
+}
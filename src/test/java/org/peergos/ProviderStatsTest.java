@@ -0,0 +1,38 @@
+package org.peergos;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.bitswap.*;
+
+import java.util.*;
+
+public class ProviderStatsTest {
+
+    @Test
+    public void rankByLatencyAndFailures() {
+        ProviderStats stats = new ProviderStats();
+        PeerId fast = PeerId.random(), slow = PeerId.random(), unknown = PeerId.random(), failing = PeerId.random();
+        for (int i = 0; i < 10; i++) {
+            stats.recordBlock(fast, 20, 256 * 1024);
+            stats.recordBlock(slow, 2_000, 256 * 1024);
+        }
+        for (int i = 0; i < 5; i++)
+            stats.recordFailure(failing);
+
+        List<PeerId> ranked = stats.rank(List.of(failing, slow, unknown, fast));
+        Assert.assertEquals(List.of(fast, unknown, slow, failing), ranked);
+    }
+
+    @Test
+    public void adaptiveTimeout() {
+        ProviderStats stats = new ProviderStats();
+        PeerId fast = PeerId.random(), slow = PeerId.random();
+        Assert.assertEquals(ProviderStats.DEFAULT_TIMEOUT_MILLIS, stats.timeoutMillis(fast));
+        for (int i = 0; i < 20; i++) {
+            stats.recordBlock(fast, 10, 1024);
+            stats.recordBlock(slow, 20_000, 1024);
+        }
+        Assert.assertEquals(ProviderStats.MIN_TIMEOUT_MILLIS, stats.timeoutMillis(fast));
+        Assert.assertEquals(ProviderStats.MAX_TIMEOUT_MILLIS, stats.timeoutMillis(slow));
+    }
+}
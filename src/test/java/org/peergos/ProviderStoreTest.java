@@ -0,0 +1,91 @@
+package org.peergos;
+
+import com.google.protobuf.*;
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+import org.peergos.protocol.dht.pb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static org.peergos.DhtTestUtil.*;
+
+public class ProviderStoreTest {
+
+    private static Dht.Message.Peer peer(Multihash id, int port) {
+        return Dht.Message.Peer.newBuilder()
+                .setId(ByteString.copyFrom(id.toBytes()))
+                .addAddrs(ByteString.copyFrom(new byte[]{4, 127, 0, 0, 1, 6, (byte) (port >> 8), (byte) port}))
+                .build();
+    }
+
+    private static void checkExpiry(ProviderStore store, AtomicLong now) {
+        Random r = new Random(1);
+        Multihash block = randomHash(r), peerA = randomHash(r), peerB = randomHash(r);
+        store.addProvider(block, peer(peerA, 4001));
+        now.set(500);
+        store.addProvider(block, peer(peerB, 4001));
+        // a provider announcing new addresses replaces its old record
+        store.addProvider(block, peer(peerB, 4002));
+
+        Set<Dht.Message.Peer> providers = store.getProviders(block);
+        Assert.assertEquals(Set.of(peer(peerA, 4001), peer(peerB, 4002)), providers);
+        store.addProvider(block, peer(randomHash(r), 4001));
+        Assert.assertEquals("result is a snapshot", 2, providers.size());
+
+        now.set(1000);
+        Assert.assertEquals(2, store.getProviders(block).size());
+        now.set(1500);
+        Assert.assertTrue(store.getProviders(block).isEmpty());
+        Assert.assertTrue(store.getProviders(randomHash(r)).isEmpty());
+    }
+
+    @Test
+    public void shardedStoreExpiresRecords() {
+        AtomicLong now = new AtomicLong(0);
+        ShardedProviderStore store = new ShardedProviderStore(1024 * 1024, 1000, now::get);
+        checkExpiry(store, now);
+        Assert.assertEquals(0, store.bytes());
+    }
+
+    @Test
+    public void shardedStoreIsBoundedByBytes() {
+        Random r = new Random(2);
+        long maxBytes = 64 * 1024;
+        ShardedProviderStore store = new ShardedProviderStore(maxBytes);
+        List<Multihash> blocks = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            Multihash block = randomHash(r);
+            blocks.add(block);
+            store.addProvider(block, peer(randomHash(r), 4001));
+            Assert.assertTrue(store.bytes() <= maxBytes);
+        }
+        Assert.assertTrue(store.getProviders(blocks.get(0)).isEmpty());
+        Assert.assertEquals(1, store.getProviders(blocks.get(blocks.size() - 1)).size());
+    }
+
+    @Test
+    public void databaseStoreExpiresRecords() throws Exception {
+        AtomicLong now = new AtomicLong(0);
+        try (DatabaseProviderStore store = new DatabaseProviderStore("mem:", 1000, now::get)) {
+            checkExpiry(store, now);
+        }
+    }
+
+    @Test
+    public void databaseStoreReturnsBufferedAndCommittedRecords() throws Exception {
+        Random r = new Random(3);
+        Multihash block = randomHash(r), peerA = randomHash(r), peerB = randomHash(r);
+        try (DatabaseProviderStore store = new DatabaseProviderStore("mem:", 1000, () -> 0)) {
+            store.addProvider(block, peer(peerA, 4001));
+            store.addProvider(block, peer(peerB, 4001));
+            store.flush();
+            // a buffered record replaces the committed record of the same provider
+            store.addProvider(block, peer(peerB, 4002));
+            Assert.assertEquals(Set.of(peer(peerA, 4001), peer(peerB, 4002)), store.getProviders(block));
+            store.flush();
+            Assert.assertEquals(Set.of(peer(peerA, 4001), peer(peerB, 4002)), store.getProviders(block));
+        }
+    }
+}
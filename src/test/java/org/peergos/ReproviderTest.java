@@ -0,0 +1,118 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+import static org.peergos.DhtTestUtil.*;
+
+public class ReproviderTest {
+
+    @Test
+    public void batchesLookupsAndMessages() throws Exception {
+        Random r = new Random(1);
+        Map<Key256, PeerAddresses> network = byKey(Stream.generate(() -> randomPeer(r))
+                .limit(1000)
+                .collect(Collectors.toList()));
+        List<Multihash> blocks = Stream.generate(() -> randomHash(r)).limit(5000).collect(Collectors.toList());
+
+        AtomicInteger lookups = new AtomicInteger(0), streams = new AtomicInteger(0);
+        Map<Multihash, Set<Multihash>> received = new ConcurrentHashMap<>();
+        Reprovider reprovider = new Reprovider(b -> {
+            lookups.incrementAndGet();
+            return CompletableFuture.completedFuture(closest(network, keyOf(b), Reprovider.LOOKUP_PEERS));
+        }, (peer, batch) -> {
+            streams.incrementAndGet();
+            for (Multihash b : batch)
+                received.computeIfAbsent(b, x -> ConcurrentHashMap.newKeySet()).add(peer.peerId);
+            return CompletableFuture.completedFuture(true);
+        }, 4, 1_000_000);
+        List<Key256> regions = new ArrayList<>();
+        Assert.assertEquals(blocks.size(), reprovider.reprovide(blocks, Optional.empty(), regions::add));
+
+        Assert.assertTrue("lookups: " + lookups.get(), lookups.get() < blocks.size() / 10);
+        Assert.assertTrue("streams: " + streams.get(), streams.get() < blocks.size() * Reprovider.REPLICATION / 10);
+        Assert.assertEquals(lookups.get(), regions.size());
+        int exact = 0;
+        for (Multihash b : blocks) {
+            Set<Multihash> expected = closest(network, keyOf(b), Reprovider.REPLICATION).stream()
+                    .map(p -> p.peerId)
+                    .collect(Collectors.toSet());
+            Assert.assertEquals(Reprovider.REPLICATION, received.get(b).size());
+            if (received.get(b).equals(expected))
+                exact++;
+        }
+        Assert.assertTrue("exact: " + exact, exact > blocks.size() * 9 / 10);
+
+        // resuming after the last region provides nothing
+        received.clear();
+        Assert.assertEquals(0, reprovider.reprovide(blocks, Optional.of(regions.get(regions.size() - 1)), k -> {}));
+        Assert.assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void retriesRegionsWhichWerentProvided() throws Exception {
+        Random r = new Random(2);
+        Map<Key256, PeerAddresses> network = byKey(Stream.generate(() -> randomPeer(r))
+                .limit(100)
+                .collect(Collectors.toList()));
+        List<Multihash> blocks = Stream.generate(() -> randomHash(r)).limit(100).collect(Collectors.toList());
+
+        // offline for the first lookups, and then every peer rejects the first region
+        AtomicInteger failedLookups = new AtomicInteger(3), rejectedRegions = new AtomicInteger(1);
+        AtomicBoolean rejecting = new AtomicBoolean(false);
+        Set<Multihash> received = ConcurrentHashMap.newKeySet();
+        Reprovider reprovider = new Reprovider(b -> {
+            if (failedLookups.getAndDecrement() > 0)
+                return failedLookups.get() % 2 == 0 ?
+                        CompletableFuture.completedFuture(Collections.emptyList()) :
+                        CompletableFuture.failedFuture(new IllegalStateException("offline"));
+            rejecting.set(rejectedRegions.getAndDecrement() > 0);
+            return CompletableFuture.completedFuture(closest(network, keyOf(b), Reprovider.LOOKUP_PEERS));
+        }, (peer, batch) -> {
+            if (rejecting.get())
+                return CompletableFuture.failedFuture(new IllegalStateException("rejected"));
+            received.addAll(batch);
+            return CompletableFuture.completedFuture(true);
+        }, 4, 1_000_000, 1, 10);
+
+        List<Key256> regions = new ArrayList<>();
+        Assert.assertEquals(blocks.size(), reprovider.reprovide(blocks, Optional.empty(), k -> {
+            Assert.assertTrue(failedLookups.get() < 0 && rejectedRegions.get() < 0);
+            regions.add(k);
+        }));
+        Assert.assertEquals(new HashSet<>(blocks), received);
+        Assert.assertEquals(blocks.stream().map(DhtTestUtil::keyOf).max(new Key256(0, 0, 0, 0)::compareDistance).get(),
+                regions.get(regions.size() - 1));
+    }
+
+    @Test
+    public void stopsDuringBackoff() throws Exception {
+        Random r = new Random(3);
+        List<Multihash> blocks = Stream.generate(() -> randomHash(r)).limit(100).collect(Collectors.toList());
+        AtomicInteger lookups = new AtomicInteger(0);
+        // offline, with a backoff far longer than the test
+        Reprovider reprovider = new Reprovider(b -> {
+            lookups.incrementAndGet();
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }, (peer, batch) -> CompletableFuture.completedFuture(true), 4, 1_000_000, 60_000, 60_000);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        CompletableFuture<Long> provided = CompletableFuture.supplyAsync(() -> {
+            try {
+                return reprovider.reprovide(blocks, Optional.empty(), k -> Assert.fail("Nothing was provided"), running::get);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        running.set(false);
+        Assert.assertEquals(0L, (long) provided.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, lookups.get());
+    }
+}
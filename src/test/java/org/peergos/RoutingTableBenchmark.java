@@ -0,0 +1,92 @@
+package org.peergos;
+
+import com.offbynull.kademlia.*;
+import io.libp2p.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+import org.peergos.protocol.dht.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Compares lookups and touches on the routing table with the synchronized Router it replaced, with 7 threads finding
+ * peers for every one touching them.
+ *
+ * Run with: java -cp <test classpath> org.peergos.RoutingTableBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingTableBenchmark {
+    private static final int PEERS = 2000;
+
+    private List<PeerId> peers;
+    private List<Key256> keys;
+    private List<byte[]> keyBytes;
+    private RoutingTable table;
+    private Router router;
+
+    @Setup
+    public void setup() {
+        peers = Stream.generate(PeerId::random).limit(PEERS).collect(Collectors.toList());
+        keys = peers.stream().map(RoutingTable::keyOf).collect(Collectors.toList());
+        keyBytes = keys.stream().map(Key256::toBytes).collect(Collectors.toList());
+        Key256 ourKey = RoutingTable.keyOf(PeerId.random());
+        table = new RoutingTable(ourKey, 20, 10);
+        router = new Router(Id.create(ourKey.toBytes(), 256), 2, 2, 2);
+        for (int i = 0; i < PEERS; i++) {
+            table.touch(peers.get(i), i);
+            router.touch(Instant.now(), new Node(Id.create(keyBytes.get(i), 256), peers.get(i).toString()));
+        }
+    }
+
+    private int next() {
+        return ThreadLocalRandom.current().nextInt(PEERS);
+    }
+
+    @Benchmark
+    @Group("table")
+    @GroupThreads(7)
+    public List<RoutingTable.Entry> tableFind() {
+        return table.find(keys.get(next()), 20);
+    }
+
+    @Benchmark
+    @Group("table")
+    @GroupThreads(1)
+    public void tableTouch() {
+        table.touch(peers.get(next()), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Group("router")
+    @GroupThreads(7)
+    public List<Node> routerFind() {
+        synchronized (router) {
+            return router.find(Id.create(keyBytes.get(next()), 256), 20, false);
+        }
+    }
+
+    @Benchmark
+    @Group("router")
+    @GroupThreads(1)
+    public void routerTouch() {
+        int i = next();
+        synchronized (router) {
+            router.touch(Instant.now(), new Node(Id.create(keyBytes.get(i), 256), peers.get(i).toString()));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RoutingTableBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+package org.peergos;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class RoutingTableTest {
+    private static final Key256 ZERO = Key256.of(new byte[32]);
+
+    @Test
+    public void closestFirst() {
+        RoutingTable table = new RoutingTable(ZERO, 20, 10);
+        for (int i = 0; i < 1000; i++)
+            table.touch(PeerId.random(), i);
+        Assert.assertTrue(table.size() > 20);
+        Assert.assertTrue("buckets are bounded", table.size() < 1000);
+
+        byte[] target = new byte[32];
+        new Random(1).nextBytes(target);
+        List<RoutingTable.Entry> closest = table.find(Key256.of(target), 20);
+        Assert.assertEquals(20, closest.size());
+        List<RoutingTable.Entry> all = table.find(Key256.of(target), Integer.MAX_VALUE);
+        Assert.assertEquals(table.size(), all.size());
+        for (int i = 0; i < closest.size(); i++)
+            Assert.assertEquals(all.get(i).peer, closest.get(i).peer);
+        for (int i = 1; i < all.size(); i++)
+            Assert.assertTrue(distance(all.get(i - 1).key.toBytes(), target)
+                    .compareTo(distance(all.get(i).key.toBytes(), target)) <= 0);
+    }
+
+    @Test
+    public void replacementTakesRemovedPeersPlace() {
+        RoutingTable table = new RoutingTable(ZERO, 1, 1);
+        // keys with the top bit set share no prefix with the zero key, so these all go in the first bucket
+        List<PeerId> firstBucket = Stream.generate(PeerId::random)
+                .filter(p -> (RoutingTable.keyOf(p).toBytes()[0] & 0x80) != 0)
+                .limit(2)
+                .collect(Collectors.toList());
+        table.touch(firstBucket.get(0), 1);
+        table.touch(firstBucket.get(1), 2);
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(firstBucket.get(0), table.find(ZERO, 10).get(0).peer);
+
+        table.remove(firstBucket.get(0));
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(firstBucket.get(1), table.find(ZERO, 10).get(0).peer);
+    }
+
+    @Test
+    public void concurrentTouches() throws Exception {
+        RoutingTable table = new RoutingTable(ZERO, 20, 10);
+        List<PeerId> peers = Stream.generate(PeerId::random).limit(200).collect(Collectors.toList());
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 8; t++)
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    table.touch(peers.get(ThreadLocalRandom.current().nextInt(peers.size())), i);
+                    table.find(RoutingTable.keyOf(peers.get(i % peers.size())), 20);
+                }
+            }));
+        for (Future<?> f : done)
+            f.get();
+        pool.shutdown();
+        Assert.assertEquals(table.size(), table.find(ZERO, Integer.MAX_VALUE).size());
+        Assert.assertEquals(table.size(), new HashSet<>(table.find(ZERO, Integer.MAX_VALUE).stream()
+                .map(e -> e.peer)
+                .collect(Collectors.toList())).size());
+    }
+
+    @Test
+    public void keyBits() {
+        byte[] a = new byte[32], b = new byte[32];
+        Random r = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            r.nextBytes(a);
+            System.arraycopy(a, 0, b, 0, 32);
+            int bit = r.nextInt(256);
+            b[bit / 8] ^= (byte) (0x80 >>> (bit % 8));
+            Key256 ka = Key256.of(a), kb = Key256.of(b);
+            Assert.assertArrayEquals(a, ka.toBytes());
+            Assert.assertEquals(bit, ka.sharedPrefixLength(kb));
+            Assert.assertEquals(256, ka.sharedPrefixLength(Key256.of(a)));
+
+            r.nextBytes(b);
+            Key256 target = Key256.of(b), other = Key256.of(a.clone());
+            r.nextBytes(a);
+            int expected = Integer.signum(distance(other.toBytes(), b).compareTo(distance(a, b)));
+            Assert.assertEquals(expected, Integer.signum(target.compareDistance(other, Key256.of(a))));
+        }
+    }
+
+    private static java.math.BigInteger distance(byte[] a, byte[] b) {
+        byte[] xor = new byte[a.length];
+        for (int i = 0; i < a.length; i++)
+            xor[i] = (byte) (a[i] ^ b[i]);
+        return new java.math.BigInteger(1, xor);
+    }
+}
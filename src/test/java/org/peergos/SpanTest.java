@@ -0,0 +1,89 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.util.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class SpanTest {
+
+    @Test
+    public void traceparentRoundTrip() {
+        Span root = Span.root("api.block_get", Span.Kind.SERVER, true);
+        Span client = root.child("bitswap.want", Span.Kind.CLIENT);
+        Assert.assertEquals(root.traceId, client.traceId);
+        Assert.assertEquals(Optional.of(root.spanId), client.parentSpanId);
+
+        Span.Traceparent remote = Span.parseTraceparent(client.traceparent()).get();
+        Span server = Span.remoteChild(remote, "bitswap.serve", Span.Kind.SERVER);
+        Assert.assertEquals(root.traceId, server.traceId);
+        Assert.assertEquals(Optional.of(client.spanId), server.parentSpanId);
+        Assert.assertTrue(server.sampled);
+    }
+
+    @Test
+    public void samplingDecisionPropagates() {
+        Span root = Span.root("api.block_get", Span.Kind.SERVER, false);
+        Span client = root.child("dht.get_providers", Span.Kind.CLIENT);
+        Assert.assertTrue(client.traceparent().endsWith("-00"));
+        Span server = Span.remoteChild(Span.parseTraceparent(client.traceparent()).get(),
+                "dht.get_providers", Span.Kind.SERVER);
+        Assert.assertFalse(server.sampled);
+    }
+
+    @Test
+    public void legacyTraceIds() {
+        String legacy = "0123456789abcdef0123456789abcdef";
+        Span.Traceparent parsed = Span.parseTraceparent(legacy).get();
+        Assert.assertEquals(legacy, parsed.traceId);
+        Assert.assertTrue(parsed.spanId.isEmpty());
+        Assert.assertTrue(parsed.sampled);
+        Assert.assertTrue(Span.parseTraceparent("").isEmpty());
+        Assert.assertTrue(Span.parseTraceparent("garbage").isEmpty());
+    }
+
+    @Test
+    public void exportsBatches() throws Exception {
+        BlockingQueue<String> exported = new LinkedBlockingQueue<>();
+        SpanExporter exporter = new SpanExporter(exported::add, Map.of("service.name", "nabu"), 16, 8, 50);
+        Span span = Span.root("api.block_get", Span.Kind.SERVER, true).setAttribute("count", 3);
+        span.end();
+        Assert.assertTrue(span.durationNanos() >= 0);
+        exporter.export(span);
+
+        String json = exported.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(json);
+        Map<String, Object> request = (Map<String, Object>) JSONParser.parse(json);
+        List<Object> resourceSpans = (List<Object>) request.get("resourceSpans");
+        Map<String, Object> scopeSpans = (Map<String, Object>) ((List<Object>)
+                ((Map<String, Object>) resourceSpans.get(0)).get("scopeSpans")).get(0);
+        Map<String, Object> exportedSpan = (Map<String, Object>) ((List<Object>) scopeSpans.get("spans")).get(0);
+        Assert.assertEquals(span.traceId, exportedSpan.get("traceId"));
+        Assert.assertEquals(Long.toString(span.startNanos), exportedSpan.get("startTimeUnixNano"));
+    }
+
+    @Test
+    public void fileSinkKeepsNewestFiles() throws Exception {
+        Path dir = Files.createTempDirectory("spans");
+        // every batch goes in a new file
+        SpanExporter.Sink sink = SpanExporter.fileSink(dir, 0, 3);
+        for (int i = 0; i < 5; i++) {
+            sink.export("{\"batch\":" + i + "}");
+            Thread.sleep(2);
+        }
+        List<String> kept;
+        try (Stream<Path> files = Files.list(dir)) {
+            kept = files.map(f -> {
+                try {
+                    return Files.readString(f).trim();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }).sorted().collect(Collectors.toList());
+        }
+        Assert.assertEquals(List.of("{\"batch\":2}", "{\"batch\":3}", "{\"batch\":4}"), kept);
+    }
+}
@@ -0,0 +1,28 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.util.*;
+
+import java.util.concurrent.*;
+
+public class TraceContextTest {
+
+    @Test
+    public void propagatesWithoutLeaking() throws Exception {
+        TraceLogger tracer = TraceLogger.getInstance();
+        ExecutorService pool = TraceLogger.propagating(Executors.newSingleThreadExecutor());
+        try {
+            tracer.startTrace(true);
+            String traceId = tracer.getTraceId();
+            Assert.assertFalse(traceId.isEmpty());
+            Assert.assertEquals(traceId, pool.submit(tracer::getTraceId).get());
+            Assert.assertEquals(traceId, TraceLogger.supplyAsync(tracer::getTraceId, ForkJoinPool.commonPool()).join());
+            tracer.endTrace();
+
+            Assert.assertEquals("", tracer.getTraceId());
+            Assert.assertEquals("pooled threads don't keep the last trace", "", pool.submit(tracer::getTraceId).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.util.*;
+
+import java.nio.*;
+import java.util.*;
+
+public class TraceRingTest {
+
+    @Test
+    public void concurrentProducers() throws InterruptedException {
+        TraceRing ring = new TraceRing(1024);
+        int producers = 4, perProducer = 50_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++)
+                    while (! ring.offer(id, i, 0, 0, 1, 0, -1, -1, null))
+                        Thread.yield();
+            });
+            t.start();
+            threads.add(t);
+        }
+        ByteBuffer event = ByteBuffer.allocate(TraceRing.EVENT_SIZE);
+        long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        long received = 0;
+        while (received < (long) producers * perProducer) {
+            event.clear();
+            if (! ring.poll(event))
+                continue;
+            event.flip();
+            int producer = (int) event.getLong();
+            long seq = event.getLong();
+            Assert.assertEquals("events from one producer stay in order", last[producer] + 1, seq);
+            last[producer] = seq;
+            received++;
+        }
+        for (Thread t : threads)
+            t.join();
+        Assert.assertFalse(ring.poll(event));
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        TraceRing ring = new TraceRing(4);
+        for (int i = 0; i < 4; i++)
+            Assert.assertTrue(ring.offer(0, i, 0, 0, 0, 0, 0, 0, new byte[100]));
+        Assert.assertFalse(ring.offer(0, 4, 0, 0, 0, 0, 0, 0, null));
+        Assert.assertEquals(1, ring.dropped());
+    }
+}
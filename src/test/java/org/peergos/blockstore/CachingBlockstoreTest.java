@@ -0,0 +1,70 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.util.*;
+
+public class CachingBlockstoreTest {
+    private static Random r = new Random(42);
+
+    @Test
+    public void sizeBound() {
+        RamBlockstore target = new RamBlockstore();
+        CachingBlockstore cache = new CachingBlockstore(target, 100 * 1024, 16 * 1024);
+        List<Cid> cids = addRandomBlocks(200, 1024, target);
+        for (Cid c : cids)
+            Assert.assertTrue(cache.get(c).join().isPresent());
+        Assert.assertTrue("Cache within bound", cache.size() <= 100 * 1024);
+
+        byte[] tooBig = new byte[32 * 1024];
+        Cid big = target.put(tooBig, Cid.Codec.Raw).join();
+        long before = cache.size();
+        Assert.assertArrayEquals(tooBig, cache.get(big).join().get());
+        Assert.assertEquals("Oversized blocks are not cached", before, cache.size());
+    }
+
+    @Test
+    public void scanResistance() {
+        RamBlockstore target = new RamBlockstore();
+        CachingBlockstore cache = new CachingBlockstore(target, 100 * 1024, 16 * 1024);
+        List<Cid> popular = addRandomBlocks(20, 1024, target);
+        for (int i = 0; i < 3; i++)
+            for (Cid c : popular)
+                cache.get(c).join();
+
+        // a single scan over many more blocks than fit in the cache
+        List<Cid> scan = addRandomBlocks(1000, 1024, target);
+        for (Cid c : scan)
+            cache.get(c).join();
+
+        // remove the popular blocks from the target, so they can only be served from the cache
+        for (Cid c : popular)
+            target.rm(c).join();
+        long cached = popular.stream()
+                .filter(c -> cache.get(c).join().isPresent())
+                .count();
+        Assert.assertEquals("Popular blocks survived the scan", popular.size(), cached);
+    }
+
+    @Test
+    public void removeInvalidates() {
+        RamBlockstore target = new RamBlockstore();
+        CachingBlockstore cache = new CachingBlockstore(target, 100 * 1024, 16 * 1024);
+        Cid c = addRandomBlocks(1, 1024, target).get(0);
+        Assert.assertTrue(cache.get(c).join().isPresent());
+        cache.rm(c).join();
+        Assert.assertTrue(cache.get(c).join().isEmpty());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private static List<Cid> addRandomBlocks(int nBlocks, int size, Blockstore b) {
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < nBlocks; i++) {
+            byte[] block = new byte[size];
+            r.nextBytes(block);
+            res.add(b.put(block, Cid.Codec.Raw).join());
+        }
+        return res;
+    }
+}
@@ -0,0 +1,125 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class SegmentBlockstoreTest {
+    private static Random r = new Random(42);
+    private static final Path ROOT = Paths.get("temp-segment-blockstore");
+
+    @Before
+    @After
+    public void deleteTempFiles() throws IOException {
+        if (ROOT.toFile().exists()) {
+            Files.walk(ROOT)
+                    .sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void putGetRemove() {
+        SegmentBlockstore bs = new SegmentBlockstore(ROOT, 64 * 1024, 0.5, 0);
+        Map<Cid, byte[]> blocks = addRandomBlocks(100, bs);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Assert.assertTrue(bs.has(e.getKey()).join());
+            Assert.assertArrayEquals(e.getValue(), bs.get(e.getKey()).join().get());
+        }
+        Assert.assertEquals(blocks.size(), bs.refs(false).join().size());
+
+        Cid removed = blocks.keySet().iterator().next();
+        Assert.assertTrue(bs.rm(removed).join());
+        Assert.assertFalse(bs.has(removed).join());
+        Assert.assertTrue(bs.get(removed).join().isEmpty());
+        bs.close();
+    }
+
+    @Test
+    public void reopen() {
+        SegmentBlockstore bs = new SegmentBlockstore(ROOT, 64 * 1024, 0.5, 0);
+        Map<Cid, byte[]> blocks = addRandomBlocks(100, bs);
+        bs.close();
+
+        SegmentBlockstore reopened = new SegmentBlockstore(ROOT, 64 * 1024, 0.5, 0);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertArrayEquals(e.getValue(), reopened.get(e.getKey()).join().get());
+        reopened.close();
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        SegmentBlockstore bs = new SegmentBlockstore(ROOT, 64 * 1024, 0.5, 0);
+        Map<Cid, byte[]> blocks = addRandomBlocks(200, bs);
+        long segmentsBefore = countSegments();
+
+        // remove most blocks so that every sealed segment is below the threshold
+        List<Cid> cids = new ArrayList<>(blocks.keySet());
+        for (int i = 0; i < cids.size(); i++) {
+            if (i % 4 != 0) {
+                bs.rm(cids.get(i)).join();
+                blocks.remove(cids.get(i));
+            }
+        }
+        int reclaimed = bs.compact();
+        Assert.assertTrue("Reclaimed segments", reclaimed > 0);
+        Assert.assertTrue("Fewer segments", countSegments() < segmentsBefore);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertArrayEquals(e.getValue(), bs.get(e.getKey()).join().get());
+        Assert.assertEquals(blocks.size(), bs.refs(false).join().size());
+        bs.close();
+    }
+
+    @Test
+    public void batches() {
+        SegmentBlockstore bs = new SegmentBlockstore(ROOT, 64 * 1024, 0.5, 0);
+        List<byte[]> blocks = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] block = new byte[1 + r.nextInt(4096)];
+            r.nextBytes(block);
+            blocks.add(block);
+        }
+        List<Cid> cids = bs.putAll(blocks, Cid.Codec.Raw).join();
+        Assert.assertEquals(blocks.size(), cids.size());
+
+        List<Cid> query = new ArrayList<>(cids);
+        Cid absent = new RamBlockstore().put(new byte[]{1, 2, 3}, Cid.Codec.Raw).join();
+        query.add(absent);
+        Collections.reverse(query);
+
+        List<Boolean> has = bs.hasAll(query).join();
+        List<Optional<byte[]>> got = bs.getAll(query).join();
+        Assert.assertFalse(has.get(0));
+        Assert.assertTrue(got.get(0).isEmpty());
+        for (int i = 1; i < query.size(); i++) {
+            Assert.assertTrue(has.get(i));
+            Assert.assertArrayEquals(blocks.get(cids.indexOf(query.get(i))), got.get(i).get());
+        }
+
+        List<Boolean> removed = bs.rmAll(query).join();
+        Assert.assertFalse(removed.get(0));
+        Assert.assertTrue(removed.subList(1, removed.size()).stream().allMatch(b -> b));
+        Assert.assertTrue(bs.hasAll(cids).join().stream().noneMatch(b -> b));
+        bs.close();
+    }
+
+    private static long countSegments() throws IOException {
+        return Files.list(ROOT)
+                .filter(p -> p.getFileName().toString().endsWith(".seg"))
+                .count();
+    }
+
+    private static Map<Cid, byte[]> addRandomBlocks(int nBlocks, Blockstore b) {
+        Map<Cid, byte[]> res = new HashMap<>();
+        for (int i = 0; i < nBlocks; i++) {
+            byte[] block = new byte[1 + r.nextInt(4096)];
+            r.nextBytes(block);
+            res.put(b.put(block, Cid.Codec.Raw).join(), block);
+        }
+        return res;
+    }
+}